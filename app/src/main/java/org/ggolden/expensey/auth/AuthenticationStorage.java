@@ -0,0 +1,85 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth;
+
+import java.util.Date;
+import java.util.Optional;
+
+import org.ggolden.expensey.auth.model.Authentication;
+import org.jvnet.hk2.annotations.Contract;
+
+/**
+ * CRUD support for Authentication, keyed by the authentication id (token), tracking when each was last used.
+ * 
+ * An authentication is live while it was created after, and last used after, some limits the caller gives.
+ */
+@Contract
+public interface AuthenticationStorage
+{
+	/**
+	 * Create a new authentication, last used as of its date.
+	 * 
+	 * @param authentication
+	 *            The authentication, with id (token), date and user set.
+	 * @return true if created, false if not.
+	 */
+	boolean createAuthentication(Authentication authentication);
+
+	/**
+	 * Delete this authentication.
+	 * 
+	 * @param id
+	 *            The authentication id.
+	 */
+	void deleteAuthentication(String id);
+
+	/**
+	 * Delete all authentications that are no longer live.
+	 * 
+	 * @param createdAfter
+	 *            Live authentications were created after this.
+	 * @param accessedAfter
+	 *            Live authentications were last used after this.
+	 * @return How many were deleted.
+	 */
+	int deleteExpiredAuthentications(Date createdAfter, Date accessedAfter);
+
+	/**
+	 * Read the authentication with this id, if it is live.
+	 * 
+	 * @param id
+	 *            The authentication id.
+	 * @param createdAfter
+	 *            Live authentications were created after this.
+	 * @param accessedAfter
+	 *            Live authentications were last used after this.
+	 * @return The authentication, or not if not found or not live.
+	 */
+	Optional<Authentication> readAuthentication(String id, Date createdAfter, Date accessedAfter);
+
+	/**
+	 * Record when this authentication was last used.
+	 * 
+	 * @param id
+	 *            The authentication id.
+	 * @param accessed
+	 *            When it was last used.
+	 */
+	void touchAuthentication(String id, Date accessed);
+}
@@ -0,0 +1,66 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth;
+
+import java.util.Optional;
+
+import org.ggolden.expensey.auth.model.Credentials;
+import org.jvnet.hk2.annotations.Contract;
+
+/**
+ * CRUD support for Credentials, keyed by user ID - the password stored as given (the AuthenticationService gives a hash)
+ */
+@Contract
+public interface CredentialsStorage
+{
+	/**
+	 * Create credentials for a new user.
+	 * 
+	 * @param credentials
+	 *            The credentials.
+	 * @return true if created, false if the user ID is already known (or the create failed).
+	 */
+	boolean createCredentials(Credentials credentials);
+
+	/**
+	 * Delete the credentials for this user.
+	 * 
+	 * @param userId
+	 *            The user ID.
+	 */
+	void deleteCredentials(String userId);
+
+	/**
+	 * Read the credentials for this user.
+	 * 
+	 * @param userId
+	 *            The user ID.
+	 * @return The credentials, or not.
+	 */
+	Optional<Credentials> readCredentials(String userId);
+
+	/**
+	 * Update the credentials (password) for a known user.
+	 * 
+	 * @param credentials
+	 *            The credentials.
+	 * @return true if updated, false if the user ID is not known (or the update failed).
+	 */
+	boolean updateCredentials(Credentials credentials);
+}
@@ -18,17 +18,15 @@
 
 package org.ggolden.expensey.auth.impl;
 
-import java.util.ArrayList;
+import java.security.SecureRandom;
+import java.util.Base64;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
 import org.ggolden.expensey.auth.AuthenticationService;
+import org.ggolden.expensey.auth.CredentialsStorage;
 import org.ggolden.expensey.auth.model.Authentication;
 import org.ggolden.expensey.auth.model.Credentials;
 import org.jvnet.hk2.annotations.Service;
@@ -38,65 +36,70 @@ import org.slf4j.LoggerFactory;
 /**
  * A simple implementation of the AuthenticationService.
  * 
- * In a real service,
+ * Passwords are stored as a salted, slow hash (see PasswordHash), and checked by hashing the password presented - so even if the storage is hacked, the
+ * passwords are not exposed.
  * 
- * - the known credentials would be persisted in a database
- * 
- * - the password in the know credentials would be stored as a hash, then checked by hashing the pw in the presented credentials (so even if hacked, the stored
- * password would not be exposed)
- * 
- * - the authentications would be logged, probably to a database, for user access and usage tracking
+ * In a real service, the authentications would be logged, probably to a database, for user access and usage tracking
  */
 @Service
 public class AuthenticationServiceImpl implements AuthenticationService
 {
 	final static private Logger logger = LoggerFactory.getLogger(AuthenticationServiceImpl.class);
 
-	/** To generate the next authentication id. TODO: usually this would be done by the database with an auto-increment column. */
-	protected AtomicInteger nextId = new AtomicInteger(1);
+	/** How many random bytes make an authentication id. */
+	protected final static int ID_BYTES = 24;
+
+	/** To generate authentication ids - random, so they can't be guessed, and unique across nodes. */
+	protected final SecureRandom random = new SecureRandom();
 
-	/** authentications: mapped by token to the Authentication */
-	Map<String, Authentication> auths = new HashMap<>();
+	/** authentications: the live sessions, by token */
+	protected final SessionStore sessions;
 
-	/** known users */
-	List<Credentials> credentials = new ArrayList<>();
+	/** known users: storage for their credentials, by user ID */
+	protected final CredentialsStorage credentials;
 
 	/**
 	 * Create the authentication service
 	 * 
-	 * @param config
-	 *            The configuration
+	 * @param sessions
+	 *            The session store.
+	 * @param credentials
+	 *            The credentials storage.
 	 */
 	@Inject
-	public AuthenticationServiceImpl()
+	public AuthenticationServiceImpl(SessionStore sessions, CredentialsStorage credentials)
 	{
+		this.sessions = sessions;
+		this.credentials = credentials;
+
 		logger.info("SimpleAuthService()");
 
-		// fill out predefined credentials TODO: from config
-		this.credentials.add(new Credentials("Welcome123", "user@mac.com"));
-		this.credentials.add(new Credentials("Welcome123", "user@gmail.com"));
+		// fill out predefined credentials, if not already known TODO: from config
+		predefine(new Credentials("Welcome123", "user@mac.com"));
+		predefine(new Credentials("Welcome123", "user@gmail.com"));
 	}
 
 	@Override
 	public Optional<Authentication> authenticateByCredentials(Credentials credentials)
 	{
 		// check credentials
-		int foundAt = this.credentials.indexOf(credentials);
-		if (foundAt == -1)
+		Optional<Credentials> found = this.credentials.readCredentials(credentials.getUserId());
+		if (!found.isPresent() || !PasswordHash.matches(credentials.getPassword(), found.get().getPassword()))
 		{
 			return Optional.empty();
 		}
 
-		// use the stored credentials for any values we need -
-		// the find process above might be less than fully strict (such as allowing case insensitive user id checks)
-		Credentials found = this.credentials.get(foundAt);
-
 		// generate a new ID
-		String id = Integer.toString(this.nextId.getAndIncrement());
+		byte[] bytes = new byte[ID_BYTES];
+		this.random.nextBytes(bytes);
+		String id = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
 
-		// create and record the authentication
-		Authentication auth = new Authentication(id, new Date(), found.getUserId());
-		this.auths.put(id, auth);
+		// create and record the authentication - using the stored credentials for any values we need
+		Authentication auth = new Authentication(id, new Date(), found.get().getUserId());
+		if (!this.sessions.put(auth))
+		{
+			return Optional.empty();
+		}
 
 		// return the authentication
 		return Optional.of(auth);
@@ -105,62 +108,30 @@ public class AuthenticationServiceImpl implements AuthenticationService
 	@Override
 	public Optional<Authentication> authenticateByToken(String token)
 	{
-		// check that the token is to a valid authentication
-		Authentication auth = this.auths.get(token);
-		if (auth == null)
-		{
-			return Optional.empty();
-		}
-
-		// all is well
-		return Optional.of(auth);
+		// check that the token is to a valid, unexpired authentication
+		return this.sessions.get(token);
 	}
 
 	@Override
 	public boolean changePassword(Authentication authentication, String newPassword)
 	{
-		// get the credentials
-		Optional<Credentials> found = this.credentials.stream().filter(c -> c.getUserId().equals(authentication.getUser())).findFirst();
-		if (!found.isPresent())
-		{
-			return false;
-		}
-
-		// we will also need the index of this so we can replace it later
-		int foundAt = this.credentials.indexOf(found.get());
-		if (foundAt == -1)
-		{
-			// this should not happen
-			logger.warn("changePassword(): could not find index of found credentials: " + found.get().getUserId());
-			return false;
-		}
-
 		// validate the new password TODO:
 
-		// create new credentials
-		Credentials replacement = new Credentials(newPassword, found.get().getUserId());
-
-		// replace
-		this.credentials.set(foundAt, replacement);
-
-		return true;
+		// replace the credentials, if the user is known
+		return this.credentials.updateCredentials(hashed(new Credentials(newPassword, authentication.getUser())));
 	}
 
 	@Override
 	public Optional<Authentication> registerUser(Credentials credentials)
 	{
-		// validate that the user ID has not already been registered
-		Optional<Credentials> found = this.credentials.stream().filter(c -> c.getUserId().equals(credentials.getUserId())).findFirst();
-		if (found.isPresent())
+		// validate the new password TODO:
+
+		// store the new credentials - rejected if the user ID has already been registered
+		if (!this.credentials.createCredentials(hashed(credentials)))
 		{
 			return Optional.empty();
 		}
 
-		// validate the new password TODO:
-
-		// store the new credentials
-		this.credentials.add(credentials);
-
 		// return the authentication
 		return this.authenticateByCredentials(credentials);
 	}
@@ -171,32 +142,43 @@ public class AuthenticationServiceImpl implements AuthenticationService
 		// TODO: if storing authentications in the database, you might want to keep the record, but mark it closed.
 
 		// remove the authentication
-		this.auths.remove(authentication.get_id());
+		this.sessions.remove(authentication.get_id());
 	}
 
 	@Override
 	public void removeUser(String userID)
 	{
-		// find the existing credentials
-		Optional<Credentials> found = this.credentials.stream().filter(c -> c.getUserId().equals(userID)).findFirst();
-		if (!found.isPresent())
-		{
-			return;
-		}
-
-		int foundAt = this.credentials.indexOf(found.get());
-		if (foundAt == -1)
-		{
-			// this should not happen
-			logger.warn("removeUser(): could not find index of found credentials: " + found.get().getUserId());
-			return;
-		}
-
 		// remove
-		this.credentials.remove(foundAt);
+		this.credentials.deleteCredentials(userID);
 
 		// TODO: if we have records of authentications, we might want to clear them
 
 		// TODO: if currently authenticated, end it
 	}
+
+	/**
+	 * Make the credentials to store for these: the password replaced by its hash.
+	 * 
+	 * @param credentials
+	 *            The credentials, with a clear text password.
+	 * @return The credentials to store.
+	 */
+	protected Credentials hashed(Credentials credentials)
+	{
+		return new Credentials(PasswordHash.of(credentials.getPassword()), credentials.getUserId());
+	}
+
+	/**
+	 * Make sure these credentials are known, leaving any already stored for the user ID as they are.
+	 * 
+	 * @param credentials
+	 *            The credentials.
+	 */
+	protected void predefine(Credentials credentials)
+	{
+		if (!this.credentials.readCredentials(credentials.getUserId()).isPresent())
+		{
+			this.credentials.createCredentials(hashed(credentials));
+		}
+	}
 }
@@ -0,0 +1,152 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth.impl;
+
+import java.util.Optional;
+
+import org.ggolden.expensey.auth.AuthenticationService;
+import org.ggolden.expensey.auth.model.Authentication;
+import org.ggolden.expensey.auth.model.Credentials;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * AuthenticationService that times each call to another AuthenticationService, and counts authentications refused.
+ */
+public class AuthenticationServiceMetered implements AuthenticationService
+{
+	/** Times authenticateByCredentials(). */
+	protected final Timer authenticateByCredentials;
+
+	/** Counts authenticateByCredentials() calls refused. */
+	protected final Meter authenticateByCredentialsFailure;
+
+	/** Times authenticateByToken(). */
+	protected final Timer authenticateByToken;
+
+	/** Counts authenticateByToken() calls refused. */
+	protected final Meter authenticateByTokenFailure;
+
+	/** Times changePassword(). */
+	protected final Timer changePassword;
+
+	/** Times registerUser(). */
+	protected final Timer registerUser;
+
+	/** Times removeAuthentication(). */
+	protected final Timer removeAuthentication;
+
+	/** Times removeUser(). */
+	protected final Timer removeUser;
+
+	/** The wrapped service. */
+	protected final AuthenticationService service;
+
+	/**
+	 * Wrap this service.
+	 * 
+	 * @param service
+	 *            The service to meter.
+	 * @param metrics
+	 *            Where to register the metrics.
+	 */
+	public AuthenticationServiceMetered(AuthenticationService service, MetricRegistry metrics)
+	{
+		this.service = service;
+
+		this.authenticateByCredentials = metrics.timer(MetricRegistry.name(AuthenticationService.class, "authenticateByCredentials"));
+		this.authenticateByCredentialsFailure = metrics.meter(MetricRegistry.name(AuthenticationService.class, "authenticateByCredentials", "failure"));
+		this.authenticateByToken = metrics.timer(MetricRegistry.name(AuthenticationService.class, "authenticateByToken"));
+		this.authenticateByTokenFailure = metrics.meter(MetricRegistry.name(AuthenticationService.class, "authenticateByToken", "failure"));
+		this.changePassword = metrics.timer(MetricRegistry.name(AuthenticationService.class, "changePassword"));
+		this.registerUser = metrics.timer(MetricRegistry.name(AuthenticationService.class, "registerUser"));
+		this.removeAuthentication = metrics.timer(MetricRegistry.name(AuthenticationService.class, "removeAuthentication"));
+		this.removeUser = metrics.timer(MetricRegistry.name(AuthenticationService.class, "removeUser"));
+	}
+
+	@Override
+	public Optional<Authentication> authenticateByCredentials(Credentials credentials)
+	{
+		Optional<Authentication> rv;
+		try (Timer.Context t = authenticateByCredentials.time())
+		{
+			rv = service.authenticateByCredentials(credentials);
+		}
+
+		if (!rv.isPresent())
+		{
+			authenticateByCredentialsFailure.mark();
+		}
+		return rv;
+	}
+
+	@Override
+	public Optional<Authentication> authenticateByToken(String token)
+	{
+		Optional<Authentication> rv;
+		try (Timer.Context t = authenticateByToken.time())
+		{
+			rv = service.authenticateByToken(token);
+		}
+
+		if (!rv.isPresent())
+		{
+			authenticateByTokenFailure.mark();
+		}
+		return rv;
+	}
+
+	@Override
+	public boolean changePassword(Authentication authentication, String newPassword)
+	{
+		try (Timer.Context t = changePassword.time())
+		{
+			return service.changePassword(authentication, newPassword);
+		}
+	}
+
+	@Override
+	public Optional<Authentication> registerUser(Credentials credentials)
+	{
+		try (Timer.Context t = registerUser.time())
+		{
+			return service.registerUser(credentials);
+		}
+	}
+
+	@Override
+	public void removeAuthentication(Authentication authentication)
+	{
+		try (Timer.Context t = removeAuthentication.time())
+		{
+			service.removeAuthentication(authentication);
+		}
+	}
+
+	@Override
+	public void removeUser(String userID)
+	{
+		try (Timer.Context t = removeUser.time())
+		{
+			service.removeUser(userID);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth.impl;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ggolden.expensey.auth.AuthenticationStorage;
+import org.ggolden.expensey.auth.model.Authentication;
+
+/**
+ * Memory (test) based storage for Authentication
+ */
+public class AuthenticationStorageMem implements AuthenticationStorage
+{
+	/**
+	 * An authentication, and when it was last used.
+	 */
+	protected static class Entry
+	{
+		protected final Authentication authentication;
+		protected volatile long accessed;
+
+		protected Entry(Authentication authentication)
+		{
+			this.authentication = authentication;
+			this.accessed = authentication.getDate().getTime();
+		}
+
+		protected boolean live(Date createdAfter, Date accessedAfter)
+		{
+			return (authentication.getDate().getTime() > createdAfter.getTime()) && (accessed > accessedAfter.getTime());
+		}
+	}
+
+	/** authentications: mapped by id */
+	protected final ConcurrentHashMap<String, Entry> authentications = new ConcurrentHashMap<>();
+
+	@Override
+	public boolean createAuthentication(Authentication authentication)
+	{
+		return authentications.putIfAbsent(authentication.get_id(), new Entry(authentication)) == null;
+	}
+
+	@Override
+	public void deleteAuthentication(String id)
+	{
+		authentications.remove(id);
+	}
+
+	@Override
+	public int deleteExpiredAuthentications(Date createdAfter, Date accessedAfter)
+	{
+		int count = 0;
+		for (Iterator<Entry> i = authentications.values().iterator(); i.hasNext();)
+		{
+			if (!i.next().live(createdAfter, accessedAfter))
+			{
+				i.remove();
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	@Override
+	public Optional<Authentication> readAuthentication(String id, Date createdAfter, Date accessedAfter)
+	{
+		Entry e = authentications.get(id);
+		if ((e == null) || !e.live(createdAfter, accessedAfter))
+		{
+			return Optional.empty();
+		}
+
+		return Optional.of(e.authentication);
+	}
+
+	@Override
+	public void touchAuthentication(String id, Date accessed)
+	{
+		Entry e = authentications.get(id);
+		if (e != null)
+		{
+			e.accessed = Math.max(e.accessed, accessed.getTime());
+		}
+	}
+}
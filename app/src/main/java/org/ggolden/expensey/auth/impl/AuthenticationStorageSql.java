@@ -0,0 +1,151 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.Optional;
+
+import javax.inject.Inject;
+
+import org.ggolden.expensey.auth.AuthenticationStorage;
+import org.ggolden.expensey.auth.model.Authentication;
+import org.ggolden.expensey.db.Transactor;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+/**
+ * SQL based storage for Authentication - shared by all nodes using the database.
+ */
+public class AuthenticationStorageSql implements AuthenticationStorage
+{
+	/**
+	 * Make an Authentication from results.
+	 */
+	protected class AuthenticationMapper implements ResultSetMapper<Authentication>
+	{
+		@Override
+		public Authentication map(int index, ResultSet r, StatementContext ctx) throws SQLException
+		{
+			Authentication rv = new Authentication(r.getString("id"), Transactor.toDate(r.getLong("date")), r.getString("user"));
+			return rv;
+		}
+	}
+
+	/** DB transaction access. */
+	protected Transactor db;
+
+	@Inject
+	public AuthenticationStorageSql(Transactor db)
+	{
+		this.db = db;
+
+		createTables();
+	}
+
+	@Override
+	public boolean createAuthentication(Authentication authentication)
+	{
+		return db.transact(h ->
+		{
+			h.createStatement("insert into authentication (id, user, date, accessed) values (:id, :user, :date, :date)") //
+					.bind("id", authentication.get_id()) //
+					.bind("user", authentication.getUser()) //
+					.bind("date", Transactor.fromDate(authentication.getDate())) //
+					.execute();
+		});
+	}
+
+	@Override
+	public void deleteAuthentication(String id)
+	{
+		db.transact(h ->
+		{
+			h.createStatement("delete from authentication where id=:id") //
+					.bind("id", id) //
+					.execute();
+		});
+	}
+
+	@Override
+	public int deleteExpiredAuthentications(Date createdAfter, Date accessedAfter)
+	{
+		Transactor.Holder<Integer> rv = new Transactor.Holder<>();
+
+		db.transact(h ->
+		{
+			int count = h.createStatement("delete from authentication where date <= :created or accessed <= :accessed") //
+					.bind("created", Transactor.fromDate(createdAfter)) //
+					.bind("accessed", Transactor.fromDate(accessedAfter)) //
+					.execute();
+
+			rv.value = Optional.of(count);
+		});
+
+		return rv.value.orElse(0);
+	}
+
+	@Override
+	public Optional<Authentication> readAuthentication(String id, Date createdAfter, Date accessedAfter)
+	{
+		Transactor.Holder<Authentication> rv = new Transactor.Holder<>();
+
+		db.transact(h ->
+		{
+			Authentication authentication = h.createQuery("select id, user, date from authentication where id=:id and date > :created and accessed > :accessed") //
+					.bind("id", id) //
+					.bind("created", Transactor.fromDate(createdAfter)) //
+					.bind("accessed", Transactor.fromDate(accessedAfter)) //
+					.map(new AuthenticationMapper()) //
+					.first();
+
+			rv.value = Optional.ofNullable(authentication);
+		});
+
+		return rv.value;
+	}
+
+	@Override
+	public void touchAuthentication(String id, Date accessed)
+	{
+		db.transact(h ->
+		{
+			h.createStatement("update authentication set accessed=:accessed where id=:id and accessed < :accessed") //
+					.bind("id", id) //
+					.bind("accessed", Transactor.fromDate(accessed)) //
+					.execute();
+		});
+	}
+
+	protected void createTables()
+	{
+		db.transact(h ->
+		{
+			h.execute("create table if not exists authentication (" //
+					+ "id varchar (64) not null primary key," //
+					+ "user varchar (255) not null," //
+					+ "date bigint not null," //
+					+ "accessed bigint not null," //
+					+ "key authentication_d (date)," //
+					+ "key authentication_a (accessed)" //
+					+ ")");
+		});
+	}
+}
@@ -0,0 +1,63 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth.impl;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ggolden.expensey.auth.CredentialsStorage;
+import org.ggolden.expensey.auth.model.Credentials;
+
+/**
+ * Memory (test) based storage for Credentials
+ */
+public class CredentialsStorageMem implements CredentialsStorage
+{
+	/** credentials: mapped by user ID */
+	protected final ConcurrentHashMap<String, Credentials> credentials = new ConcurrentHashMap<>();
+
+	@Override
+	public boolean createCredentials(Credentials credentials)
+	{
+		return this.credentials.putIfAbsent(credentials.getUserId(), credentials) == null;
+	}
+
+	@Override
+	public void deleteCredentials(String userId)
+	{
+		this.credentials.remove(userId);
+	}
+
+	@Override
+	public Optional<Credentials> readCredentials(String userId)
+	{
+		if (userId == null)
+		{
+			return Optional.empty();
+		}
+
+		return Optional.ofNullable(this.credentials.get(userId));
+	}
+
+	@Override
+	public boolean updateCredentials(Credentials credentials)
+	{
+		return this.credentials.replace(credentials.getUserId(), credentials) != null;
+	}
+}
@@ -0,0 +1,166 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth.impl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+
+import javax.inject.Inject;
+
+import org.ggolden.expensey.auth.CredentialsStorage;
+import org.ggolden.expensey.auth.model.Credentials;
+import org.ggolden.expensey.db.Transactor;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+/**
+ * SQL based storage for Credentials
+ * 
+ * The password column holds the password's hash (see PasswordHash), with its salt and iterations. Clear text passwords stored before hashing are replaced by
+ * their hash on startup.
+ */
+public class CredentialsStorageSql implements CredentialsStorage
+{
+	/**
+	 * Make Credentials from results.
+	 */
+	protected class CredentialsMapper implements ResultSetMapper<Credentials>
+	{
+		@Override
+		public Credentials map(int index, ResultSet r, StatementContext ctx) throws SQLException
+		{
+			Credentials rv = new Credentials(r.getString("password"), r.getString("user"));
+			return rv;
+		}
+	}
+
+	/** DB transaction access. */
+	protected Transactor db;
+
+	@Inject
+	public CredentialsStorageSql(Transactor db)
+	{
+		this.db = db;
+
+		createTables();
+		hashClearPasswords();
+	}
+
+	@Override
+	public boolean createCredentials(Credentials credentials)
+	{
+		// the primary key rejects a user ID already known
+		return db.transact(h ->
+		{
+			h.createStatement("insert into credentials (user, password) values (:user, :password)") //
+					.bind("user", credentials.getUserId()) //
+					.bind("password", credentials.getPassword()) //
+					.execute();
+		});
+	}
+
+	@Override
+	public void deleteCredentials(String userId)
+	{
+		db.transact(h ->
+		{
+			h.createStatement("delete from credentials where user=:user") //
+					.bind("user", userId) //
+					.execute();
+		});
+	}
+
+	@Override
+	public Optional<Credentials> readCredentials(String userId)
+	{
+		Transactor.Holder<Credentials> rv = new Transactor.Holder<>();
+
+		if (userId == null)
+		{
+			return rv.value;
+		}
+
+		db.transact(h ->
+		{
+			Credentials credentials = h.createQuery("select user, password from credentials where user=:user") //
+					.bind("user", userId) //
+					.map(new CredentialsMapper()) //
+					.first();
+
+			rv.value = Optional.ofNullable(credentials);
+		});
+
+		return rv.value;
+	}
+
+	@Override
+	public boolean updateCredentials(Credentials credentials)
+	{
+		Transactor.Holder<Integer> rv = new Transactor.Holder<>();
+
+		db.transact(h ->
+		{
+			int count = h.createStatement("update credentials set password=:password where user=:user") //
+					.bind("user", credentials.getUserId()) //
+					.bind("password", credentials.getPassword()) //
+					.execute();
+
+			rv.value = Optional.of(count);
+		});
+
+		return rv.value.orElse(0) == 1;
+	}
+
+	protected void createTables()
+	{
+		db.transact(h ->
+		{
+			h.execute("create table if not exists credentials (" //
+					+ "user varchar (255) not null primary key," //
+					+ "password varchar (255) not null" //
+					+ ")");
+		});
+	}
+
+	/**
+	 * Replace any clear text passwords (stored before hashing) with their hash.
+	 */
+	protected void hashClearPasswords()
+	{
+		db.transact(h ->
+		{
+			List<Credentials> all = h.createQuery("select user, password from credentials") //
+					.map(new CredentialsMapper()) //
+					.list();
+
+			for (Credentials credentials : all)
+			{
+				if (!PasswordHash.isHash(credentials.getPassword()))
+				{
+					h.createStatement("update credentials set password=:password where user=:user") //
+							.bind("user", credentials.getUserId()) //
+							.bind("password", PasswordHash.of(credentials.getPassword())) //
+							.execute();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,142 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted, slow (PBKDF2WithHmacSHA256) password hashes, as stored in place of the password: "pbkdf2:iterations:salt:hash", the salt and hash base64 encoded
+ * - so each stored value carries what is needed to check a password against it, even after the iterations are raised.
+ */
+public class PasswordHash
+{
+	/** The algorithm. */
+	protected final static String ALGORITHM = "PBKDF2WithHmacSHA256";
+
+	/** How many iterations new hashes use. */
+	protected final static int ITERATIONS = 100000;
+
+	/** How many random bytes of salt new hashes use. */
+	protected final static int SALT_BYTES = 16;
+
+	/** How many bits of hash. */
+	protected final static int HASH_BITS = 256;
+
+	/** What a stored hash starts with. */
+	protected final static String PREFIX = "pbkdf2:";
+
+	/** To generate salts. */
+	protected final static SecureRandom random = new SecureRandom();
+
+	/**
+	 * Hash a password, with a new random salt.
+	 * 
+	 * @param password
+	 *            The (clear text) password.
+	 * @return The stored form of the hash.
+	 */
+	public static String of(String password)
+	{
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+
+		Base64.Encoder encoder = Base64.getEncoder();
+		return PREFIX + ITERATIONS + ":" + encoder.encodeToString(salt) + ":" + encoder.encodeToString(hash(password, salt, ITERATIONS));
+	}
+
+	/**
+	 * Check if this value is a stored hash (and not, say, a clear text password stored before hashing).
+	 * 
+	 * @param value
+	 *            The stored value.
+	 * @return true if it is a hash, false if not.
+	 */
+	public static boolean isHash(String value)
+	{
+		return (value != null) && value.startsWith(PREFIX);
+	}
+
+	/**
+	 * Check a password against a stored hash, hashing it with the hash's salt and iterations.
+	 * 
+	 * @param password
+	 *            The (clear text) password.
+	 * @param stored
+	 *            The stored form of the hash, as made by of().
+	 * @return true if the password hashes to the stored hash, false if not (or the stored value is not a hash).
+	 */
+	public static boolean matches(String password, String stored)
+	{
+		if ((password == null) || !isHash(stored))
+		{
+			return false;
+		}
+
+		try
+		{
+			String[] parts = stored.substring(PREFIX.length()).split(":");
+			if (parts.length != 3)
+			{
+				return false;
+			}
+
+			Base64.Decoder decoder = Base64.getDecoder();
+			byte[] expected = decoder.decode(parts[2]);
+
+			// compared in constant time, so the time taken does not tell how much matched
+			return MessageDigest.isEqual(hash(password, decoder.decode(parts[1]), Integer.parseInt(parts[0])), expected);
+		} catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Hash a password.
+	 * 
+	 * @param password
+	 *            The password.
+	 * @param salt
+	 *            The salt.
+	 * @param iterations
+	 *            The iterations.
+	 * @return The hash.
+	 */
+	protected static byte[] hash(String password, byte[] salt, int iterations)
+	{
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+		try
+		{
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e)
+		{
+			// every Java 8 runtime has the algorithm
+			throw new IllegalStateException(e);
+		} finally
+		{
+			spec.clearPassword();
+		}
+	}
+}
@@ -0,0 +1,373 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth.impl;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.ggolden.expensey.auth.AuthenticationStorage;
+import org.ggolden.expensey.auth.model.Authentication;
+import org.ggolden.expensey.dw.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * The live authentications (sessions), by token: a local read-through cache in front of the AuthenticationStorage.
+ * 
+ * A session expires a fixed time (TTL) after it was created, or when it has gone unused for the idle timeout, whichever comes first. Expired sessions are
+ * never returned, and are evicted in the background so neither the cache nor the storage grows without bound.
+ * 
+ * A cached session is trusted for the cache TTL, then read again from storage, so a session started on any node can be used on any other, and one ended on
+ * another node stops working here within the cache TTL. Use is recorded back to storage at most once per cache TTL, so the idle timeout is shared across nodes
+ * to within that.
+ * 
+ * Safe for concurrent use - cache lookups are lock free, and writes lock only the part of the map they touch.
+ */
+public class SessionStore implements Managed
+{
+	/**
+	 * A cached session: an authentication, when it was created, loaded into the cache, last used, and last recorded as used in storage.
+	 */
+	protected static class Session
+	{
+		/** The authentication. */
+		protected final Authentication authentication;
+
+		/** When (ms) the authentication was created - the session expires a ttl after. */
+		protected final long created;
+
+		/** When (ms) the session was loaded into the cache - it is read again from storage a cache ttl after. */
+		protected final long loaded;
+
+		/** When (ms) the session was last used - it expires an idle timeout after. */
+		protected volatile long accessed;
+
+		/** When (ms) the session was last recorded as used in storage. */
+		protected volatile long touched;
+
+		protected Session(Authentication authentication, long now, long touched)
+		{
+			this.authentication = authentication;
+			this.created = authentication.getDate().getTime();
+			this.loaded = now;
+			this.accessed = now;
+			this.touched = touched;
+		}
+	}
+
+	final static private Logger logger = LoggerFactory.getLogger(SessionStore.class);
+
+	/** How long (ms) to trust a cached session before reading it again from storage. */
+	protected final long cacheTtl;
+
+	/** Time source (ms). */
+	protected final LongSupplier clock;
+
+	/** How often (ms) to sweep for expired sessions. */
+	protected final long evictionInterval;
+
+	/** How many sessions have been evicted for expiring. */
+	protected final AtomicLong evictions = new AtomicLong();
+
+	/** The background sweeper, while started. */
+	protected ScheduledExecutorService evictor = null;
+
+	/** How long (ms) a session may go unused. */
+	protected final long idleTimeout;
+
+	/** sessions: cached, mapped by token */
+	protected final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+	/** The session storage. */
+	protected final AuthenticationStorage storage;
+
+	/** How long (ms) a session lasts from creation. */
+	protected final long ttl;
+
+	/**
+	 * Create the session store as configured.
+	 * 
+	 * @param config
+	 *            The configuration.
+	 * @param storage
+	 *            The session storage.
+	 */
+	public SessionStore(Configuration config, AuthenticationStorage storage)
+	{
+		this(storage, config.getSessionTtl().toMilliseconds(), config.getSessionIdleTimeout().toMilliseconds(),
+				config.getSessionCacheTtl().toMilliseconds(), config.getSessionEvictionInterval().toMilliseconds(), System::currentTimeMillis);
+	}
+
+	/**
+	 * Create the session store.
+	 * 
+	 * @param storage
+	 *            The session storage.
+	 * @param ttl
+	 *            How long (ms) a session lasts from creation.
+	 * @param idleTimeout
+	 *            How long (ms) a session may go unused.
+	 * @param cacheTtl
+	 *            How long (ms) to trust a cached session before reading it again from storage.
+	 * @param evictionInterval
+	 *            How often (ms) to sweep for expired sessions.
+	 * @param clock
+	 *            Time source (ms).
+	 */
+	public SessionStore(AuthenticationStorage storage, long ttl, long idleTimeout, long cacheTtl, long evictionInterval, LongSupplier clock)
+	{
+		this.storage = storage;
+		this.ttl = ttl;
+		this.idleTimeout = idleTimeout;
+		this.cacheTtl = cacheTtl;
+		this.evictionInterval = evictionInterval;
+		this.clock = clock;
+	}
+
+	/**
+	 * Sweep out all expired sessions, from the cache and from storage, and drop cached sessions past the cache TTL.
+	 * 
+	 * @return How many were evicted from storage.
+	 */
+	public int evict()
+	{
+		long now = clock.getAsLong();
+
+		for (Session s : sessions.values())
+		{
+			if (expired(s, now))
+			{
+				sessions.remove(s.authentication.get_id(), s);
+			} else if (stale(s, now))
+			{
+				flush(s);
+				sessions.remove(s.authentication.get_id(), s);
+			}
+		}
+
+		int count = storage.deleteExpiredAuthentications(new Date(now - ttl), new Date(now - idleTimeout));
+		evictions.addAndGet(count);
+
+		return count;
+	}
+
+	/**
+	 * Find the live session for this token, marking it as used.
+	 * 
+	 * @param token
+	 *            The token.
+	 * @return The session's authentication, or not if there is no such session, or it has expired.
+	 */
+	public Optional<Authentication> get(String token)
+	{
+		if (token == null)
+		{
+			return Optional.empty();
+		}
+
+		long now = clock.getAsLong();
+
+		// a fresh, live, cached session
+		Session s = sessions.get(token);
+		if ((s != null) && !stale(s, now) && !expired(s, now))
+		{
+			use(s, now);
+			return Optional.of(s.authentication);
+		}
+
+		// otherwise it is up to storage - which may know of use on other nodes
+		boolean expired = false;
+		if (s != null)
+		{
+			sessions.remove(token, s);
+			flush(s);
+			expired = expired(s, now);
+		}
+
+		Optional<Authentication> found = storage.readAuthentication(token, new Date(now - ttl), new Date(now - idleTimeout));
+		if (!found.isPresent())
+		{
+			if (expired)
+			{
+				storage.deleteAuthentication(token);
+				evictions.incrementAndGet();
+			}
+			return Optional.empty();
+		}
+
+		Session loaded = new Session(found.get(), now, 0);
+		sessions.put(token, loaded);
+		use(loaded, now);
+
+		return found;
+	}
+
+	/**
+	 * @return How many sessions have been evicted for expiring.
+	 */
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * @return How many sessions are cached on this node (some may have expired, but not yet been evicted).
+	 */
+	public int getLiveCount()
+	{
+		return sessions.size();
+	}
+
+	/**
+	 * Start a session for this authentication, using its id as the token.
+	 * 
+	 * @param authentication
+	 *            The authentication.
+	 * @return true if started, false if not.
+	 */
+	public boolean put(Authentication authentication)
+	{
+		if (!storage.createAuthentication(authentication))
+		{
+			return false;
+		}
+
+		long now = clock.getAsLong();
+		sessions.put(authentication.get_id(), new Session(authentication, now, now));
+
+		return true;
+	}
+
+	/**
+	 * End the session for this token.
+	 * 
+	 * @param token
+	 *            The token.
+	 */
+	public void remove(String token)
+	{
+		sessions.remove(token);
+		storage.deleteAuthentication(token);
+	}
+
+	@Override
+	public void start()
+	{
+		evictor = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread t = new Thread(r, "session-evictor");
+			t.setDaemon(true);
+			return t;
+		});
+
+		evictor.scheduleWithFixedDelay(() ->
+		{
+			try
+			{
+				int count = evict();
+				if (count > 0)
+				{
+					logger.debug("evict: evicted: " + count + " live: " + getLiveCount());
+				}
+			} catch (Throwable t)
+			{
+				logger.warn("evict: " + t.toString());
+			}
+		}, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void stop()
+	{
+		if (evictor != null)
+		{
+			evictor.shutdownNow();
+			evictor = null;
+		}
+	}
+
+	/**
+	 * Check if the session has expired, as far as we know locally.
+	 * 
+	 * @param s
+	 *            The session.
+	 * @param now
+	 *            The time now (ms).
+	 * @return true if expired, false if not.
+	 */
+	protected boolean expired(Session s, long now)
+	{
+		return ((now - s.created) >= ttl) || ((now - s.accessed) >= idleTimeout);
+	}
+
+	/**
+	 * Record in storage any use of the session not yet recorded.
+	 * 
+	 * @param s
+	 *            The session.
+	 */
+	protected void flush(Session s)
+	{
+		long accessed = s.accessed;
+		if (accessed > s.touched)
+		{
+			s.touched = accessed;
+			storage.touchAuthentication(s.authentication.get_id(), new Date(accessed));
+		}
+	}
+
+	/**
+	 * Check if the cached session is too old to trust.
+	 * 
+	 * @param s
+	 *            The session.
+	 * @param now
+	 *            The time now (ms).
+	 * @return true if stale, false if not.
+	 */
+	protected boolean stale(Session s, long now)
+	{
+		return (now - s.loaded) >= cacheTtl;
+	}
+
+	/**
+	 * Mark the session as used now, recording that in storage if it has not been for a cache TTL.
+	 * 
+	 * @param s
+	 *            The session.
+	 * @param now
+	 *            The time now (ms).
+	 */
+	protected void use(Session s, long now)
+	{
+		s.accessed = now;
+		if ((now - s.touched) >= cacheTtl)
+		{
+			flush(s);
+		}
+	}
+}
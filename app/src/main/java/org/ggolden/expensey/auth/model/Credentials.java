@@ -30,7 +30,7 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 public class Credentials
 {
-	/** The (clear text) password. */
+	/** The password: clear text as presented, or its hash (see PasswordHash) as stored. */
 	protected String password;
 
 	/** The user ID. */
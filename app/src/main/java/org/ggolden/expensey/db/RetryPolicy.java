@@ -0,0 +1,163 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.db;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.skife.jdbi.v2.exceptions.UnableToObtainConnectionException;
+
+import io.dropwizard.util.Duration;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * How the Transactor retries a transaction that fails for a transient reason (deadlock, serialization failure, db down): exponential backoff with full jitter,
+ * within a limit on attempts and an overall deadline.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RetryPolicy
+{
+	/** H2 deadlock (DEADLOCK_1). */
+	protected final static int H2_DEADLOCK = 40001;
+
+	/** H2 lock timeout (LOCK_TIMEOUT_1). */
+	protected final static int H2_LOCK_TIMEOUT = 50200;
+
+	/** H2 MVStore concurrent update of the same row (CONCURRENT_UPDATE_1). */
+	protected final static int H2_CONCURRENT_UPDATE = 90131;
+
+	/** MySQL deadlock (ER_LOCK_DEADLOCK). */
+	protected final static int MYSQL_DEADLOCK = 1213;
+
+	/** MySQL lock wait timeout (ER_LOCK_WAIT_TIMEOUT). */
+	protected final static int MYSQL_LOCK_WAIT_TIMEOUT = 1205;
+
+	/** SQL standard state for a serialization failure / deadlock victim. */
+	protected final static String SQLSTATE_SERIALIZATION_FAILURE = "40001";
+
+	/** SQL state postgres (and some others) use for a detected deadlock. */
+	protected final static String SQLSTATE_DEADLOCK = "40P01";
+
+	/** How many attempts, in all, to make. */
+	@Min(1)
+	protected int maxAttempts = 5;
+
+	/** The backoff before the first retry, doubling for each retry after. */
+	@NotNull
+	protected Duration initialBackoff = Duration.milliseconds(50);
+
+	/** The longest backoff between attempts. */
+	@NotNull
+	protected Duration maxBackoff = Duration.seconds(1);
+
+	/** No retry is started once this long has passed since the first attempt. */
+	@NotNull
+	protected Duration deadline = Duration.seconds(3);
+
+	/**
+	 * How long to wait before this retry: a random time up to the exponential backoff for the retry (full jitter), so that transactions which collided do not
+	 * collide again.
+	 * 
+	 * @param retry
+	 *            Which retry (1 for the first).
+	 * @return The time to wait (ms).
+	 */
+	public long backoff(int retry)
+	{
+		long ceiling = Math.min(maxBackoff.toMilliseconds(), initialBackoff.toMilliseconds() << Math.min(retry - 1, 30));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	/**
+	 * Check if this failure is transient, so the transaction might succeed if tried again.
+	 * 
+	 * @param t
+	 *            The failure.
+	 * @return true if worth retrying, false if not.
+	 */
+	public boolean retryable(Throwable t)
+	{
+		for (Throwable cause = t; cause != null; cause = cause.getCause())
+		{
+			// the db is down, or the pool is exhausted
+			if (cause instanceof UnableToObtainConnectionException)
+			{
+				return true;
+			}
+
+			if (cause instanceof SQLException)
+			{
+				for (SQLException s = (SQLException) cause; s != null; s = s.getNextException())
+				{
+					if (retryable(s))
+					{
+						return true;
+					}
+				}
+			}
+
+			if (cause.getCause() == cause)
+			{
+				break;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Check if this SQLException reports a deadlock, lock timeout or serialization failure.
+	 * 
+	 * @param s
+	 *            The SQLException.
+	 * @return true if so, false if not.
+	 */
+	protected boolean retryable(SQLException s)
+	{
+		if (s instanceof SQLTransactionRollbackException)
+		{
+			return true;
+		}
+
+		if (SQLSTATE_SERIALIZATION_FAILURE.equals(s.getSQLState()) || SQLSTATE_DEADLOCK.equals(s.getSQLState()))
+		{
+			return true;
+		}
+
+		switch (s.getErrorCode())
+		{
+			case H2_DEADLOCK:
+			case H2_LOCK_TIMEOUT:
+			case H2_CONCURRENT_UPDATE:
+			case MYSQL_DEADLOCK:
+			case MYSQL_LOCK_WAIT_TIMEOUT:
+				return true;
+			default:
+				return false;
+		}
+	}
+}
@@ -18,9 +18,17 @@
 
 package org.ggolden.expensey.db;
 
-import java.sql.SQLException;
+import java.sql.Connection;
 import java.util.Date;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
 
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
@@ -29,6 +37,11 @@ import org.skife.jdbi.v2.exceptions.UnableToObtainConnectionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
 /**
  * DB wrapper with Transaction support
  */
@@ -59,6 +72,35 @@ public class Transactor
 		void accept(T t) throws DBIException;
 	}
 
+	/**
+	 * Represents a function that accepts one argument and produces a result, and may fail with a DBIException.
+	 *
+	 * @param <T>
+	 *            the type of the input to the function
+	 * @param <R>
+	 *            the type of the result of the function
+	 */
+	@FunctionalInterface
+	public interface FunctionThrowing<T, R>
+	{
+		/**
+		 * Applies this function to the given argument.
+		 *
+		 * @param t
+		 *            the function argument
+		 * @return the function result
+		 */
+		R apply(T t) throws DBIException;
+	}
+
+	/**
+	 * How an attempt at a transaction came out.
+	 */
+	protected enum Outcome
+	{
+		FAIL, RETRY, SUCCESS
+	}
+
 	/**
 	 * A way to hold and update a value that can be made final and used in a lambda.
 	 * 
@@ -71,9 +113,6 @@ public class Transactor
 
 	final static private Logger logger = LoggerFactory.getLogger(Transactor.class);
 
-	/** How many retries we attempt before giving up, in transact(), in case of db down or SQLException deadlock. */
-	protected final static int MAX_RETRIES = 5;
-
 	/**
 	 * Safe way to prepare a boolean for writing to the database (as a mysql tinyint 0/1).
 	 * 
@@ -140,16 +179,178 @@ public class Transactor
 		return Long.valueOf(value);
 	}
 
+	/** How many attempts each transaction took, when instrumented. */
+	protected Histogram attemptCounts = null;
+
+	/** Times each attempt, when instrumented. */
+	protected Timer attemptTimer = null;
+
 	/** The wrapped DBI. */
 	protected final DBI dbi;
 
+	/** Limits the handles open at once on the primary, when limited. */
+	protected Semaphore connections = null;
+
+	/** Transactions that failed for a reason not worth retrying. */
+	protected final Meter failures;
+
+	/** Transactions that ran out of retries, or time to retry. */
+	protected final Meter giveUps;
+
+	/** How long (ms) to wait for a connection, when limited. */
+	protected long connectionWait = 0;
+
+	/** The DBI for read-only queries - a read replica, or the primary. */
+	protected final DBI readDbi;
+
+	/** Limits the handles open at once on the read replica (the same as connections without one), when limited. */
+	protected Semaphore readConnections = null;
+
+	/** Retries scheduled. */
+	protected final Meter retries;
+
+	/** When and how to retry. */
+	protected final RetryPolicy retryPolicy;
+
+	/** Runs async transactions, and their retries when the backoff is up. */
+	protected final ScheduledExecutorService scheduler;
+
+	/** Transactions committed. */
+	protected final Meter successes;
+
+	/** Times the backoff waits between attempts, when instrumented. */
+	protected Timer waitTimer = null;
+
+	/** Runs the async attempts - the scheduler, unless set to run elsewhere. */
+	protected Executor worker;
+
+	/**
+	 * Create a Transactor with the default retry policy, metrics kept to itself, and its own scheduler for async transactions.
+	 * 
+	 * @param dbi
+	 *            The DBI.
+	 */
 	public Transactor(DBI dbi)
+	{
+		this(dbi, new RetryPolicy(), new MetricRegistry(), Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), r ->
+		{
+			Thread t = new Thread(r, "transactor");
+			t.setDaemon(true);
+			return t;
+		}));
+	}
+
+	/**
+	 * Create a Transactor.
+	 * 
+	 * @param dbi
+	 *            The DBI.
+	 * @param retryPolicy
+	 *            When and how to retry.
+	 * @param metrics
+	 *            Where to count transaction outcomes.
+	 * @param scheduler
+	 *            Runs async transactions and their retries - these block on the database, so size it for that.
+	 */
+	public Transactor(DBI dbi, RetryPolicy retryPolicy, MetricRegistry metrics, ScheduledExecutorService scheduler)
+	{
+		this(dbi, Optional.empty(), retryPolicy, metrics, scheduler);
+	}
+
+	/**
+	 * Create a Transactor, sending read-only queries to a replica.
+	 * 
+	 * @param dbi
+	 *            The DBI.
+	 * @param replica
+	 *            The DBI for read-only queries, if not the primary.
+	 * @param retryPolicy
+	 *            When and how to retry.
+	 * @param metrics
+	 *            Where to count transaction outcomes.
+	 * @param scheduler
+	 *            Runs async transactions and their retries - these block on the database, so size it for that.
+	 */
+	public Transactor(DBI dbi, Optional<DBI> replica, RetryPolicy retryPolicy, MetricRegistry metrics, ScheduledExecutorService scheduler)
 	{
 		this.dbi = dbi;
+		this.readDbi = replica.orElse(dbi);
+		this.retryPolicy = retryPolicy;
+		this.scheduler = scheduler;
+		this.worker = scheduler;
+
+		this.successes = metrics.meter(MetricRegistry.name(Transactor.class, "success"));
+		this.retries = metrics.meter(MetricRegistry.name(Transactor.class, "retry"));
+		this.giveUps = metrics.meter(MetricRegistry.name(Transactor.class, "give-up"));
+		this.failures = metrics.meter(MetricRegistry.name(Transactor.class, "failure"));
+	}
+
+	/**
+	 * Time the attempts and backoff waits, and record how many attempts each transaction takes. Without this, only the outcomes are counted.
+	 * 
+	 * @param metrics
+	 *            Where to register the metrics.
+	 * @return this, instrumented.
+	 */
+	public Transactor instrument(MetricRegistry metrics)
+	{
+		this.attemptTimer = metrics.timer(MetricRegistry.name(Transactor.class, "attempt"));
+		this.attemptCounts = metrics.histogram(MetricRegistry.name(Transactor.class, "attempts"));
+		this.waitTimer = metrics.timer(MetricRegistry.name(Transactor.class, "wait"));
+
+		return this;
+	}
+
+	/**
+	 * Keep the handles open at once to these limits, a thread waiting its turn here before going to the pool. With many threads (virtual threads, say),
+	 * this keeps them from crowding into the pool and the driver all at once - those waiting past the wait are treated like the db being down, and retried.
+	 * 
+	 * @param primary
+	 *            How many handles may be open on the primary - its pool's maxSize.
+	 * @param replica
+	 *            How many may be open on the read replica, if we have one.
+	 * @param wait
+	 *            How long (ms) to wait for a turn - the pool's maxWaitForConnection.
+	 * @return this, limited.
+	 */
+	public Transactor limit(int primary, int replica, long wait)
+	{
+		this.connections = new Semaphore(primary, true);
+		this.readConnections = (readDbi == dbi) ? connections : new Semaphore(replica, true);
+		this.connectionWait = wait;
+
+		return this;
+	}
+
+	/**
+	 * Run the async attempts on this executor (virtual threads, say), leaving the scheduler to only time the backoffs between them.
+	 * 
+	 * @param executor
+	 *            Runs the attempts.
+	 * @return this, running async attempts on the executor.
+	 */
+	public Transactor runOn(Executor executor)
+	{
+		this.worker = executor;
+
+		return this;
 	}
 
 	/**
-	 * Run this job now, if we can get a database handle, and in case of deadlock error, retry a few times before giving up.
+	 * @return How many threads are waiting for a turn at a connection, when limited.
+	 */
+	public int getWaitingCount()
+	{
+		if (connections == null)
+		{
+			return 0;
+		}
+		return connections.getQueueLength() + ((readConnections != connections) ? readConnections.getQueueLength() : 0);
+	}
+
+	/**
+	 * Run this job now, if we can get a database handle, and in case of a transient failure (deadlock, db down), retry as the retry policy allows before
+	 * giving up. The calling thread waits out the backoff between retries - see transactAsync() to avoid that.
 	 * 
 	 * @param job
 	 *            The job. All transaction code is added to the basic statements in the job, and should NOT be in the job. Job may run multiple times.
@@ -157,88 +358,444 @@ public class Transactor
 	 */
 	public boolean transact(ConsumerThrowing<Handle> job)
 	{
-		boolean success = false;
+		return retry(attempt -> attempt(job, attempt));
+	}
+
+	/**
+	 * Run this read-only job now, without a transaction: the connection is marked read-only, in autocommit, on the read replica if we have one. The isolation
+	 * is the pool's (defaultTransactionIsolation), set once as each connection is opened - H2 applies an isolation change to the whole database, so it is
+	 * not switched here. Transient failures are retried as with transact().
+	 * 
+	 * @param job
+	 *            The job, which must not write. Job may run multiple times.
+	 * @return The job's result, or empty if it returned null or could not be run.
+	 */
+	public <T> Optional<T> query(FunctionThrowing<Handle, T> job)
+	{
+		Holder<T> rv = new Holder<>();
+		retry(attempt -> attemptQuery(job, attempt, rv));
+
+		return rv.value;
+	}
 
-		// we will do MAX_RETRIES retries in case of deadlock or db not available
-		int retries = MAX_RETRIES;
-		while (retries > 0)
+	/**
+	 * Make attempts, retrying as the policy allows, the calling thread waiting out the backoff between.
+	 * 
+	 * @param attempt
+	 *            Makes an attempt, given which attempt it is (1 for the first).
+	 * @return true if an attempt succeeded, false if not.
+	 */
+	protected boolean retry(IntFunction<Outcome> attempt)
+	{
+		long start = System.currentTimeMillis();
+
+		for (int n = 1;; n++)
 		{
-			Optional<Handle> handle = open();
-			if (handle.isPresent())
+			Outcome outcome = timed(attempt, n);
+			if (outcome != Outcome.RETRY)
 			{
-				try (Handle h = handle.get())
-				{
-					try
-					{
-						h.begin();
-						job.accept(h);
-						h.commit();
-						retries = 0;
-						success = true;
-					} catch (DBIException e)
-					{
-						logger.info("transact: retry: " + (MAX_RETRIES - retries) + " " + e.toString());
-						if (e.getCause() instanceof SQLException)
-						{
-							SQLException s = (SQLException) e.getCause();
-
-							if (s.getErrorCode() == 1213)
-							{
-								// a mysql deadlock killed the transaction, so we might retry
-								retries--;
-							} else
-							{
-								// some other error, we are done
-								retries = 0;
-							}
-						}
-						h.rollback();
-					} catch (Throwable t)
-					{
-						logger.info("transact: fatal: " + (MAX_RETRIES - retries) + " " + t.toString());
-						h.rollback();
+				return done(outcome, n);
+			}
 
-						// we don't try again
-						retries = 0;
-					}
+			// if we are retrying, take a (short, jittered) break first
+			long delay = nextBackoff(start, n);
+			if (delay < 0)
+			{
+				return giveUp(n);
+			}
+
+			retries.mark();
+			long waitStart = System.nanoTime();
+			try
+			{
+				Thread.sleep(delay);
+			} catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				return giveUp(n);
+			} finally
+			{
+				if (waitTimer != null)
+				{
+					waitTimer.update(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
 				}
-			} else
+			}
+		}
+	}
+
+	/**
+	 * Run this job on the scheduler, retrying as with transact(), but waiting out the backoff between retries on a timer, not a thread.
+	 * 
+	 * @param job
+	 *            The job. All transaction code is added to the basic statements in the job, and should NOT be in the job. Job may run multiple times.
+	 * @return A future completing with true if run successfully, false if not.
+	 */
+	public CompletableFuture<Boolean> transactAsync(ConsumerThrowing<Handle> job)
+	{
+		CompletableFuture<Boolean> rv = new CompletableFuture<>();
+		long start = System.currentTimeMillis();
+
+		try
+		{
+			worker.execute(() -> attemptAsync(job, 1, start, rv));
+		} catch (RejectedExecutionException e)
+		{
+			rv.complete(giveUp(0));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Make one attempt at the job, in its own transaction.
+	 * 
+	 * @param job
+	 *            The job.
+	 * @param attempt
+	 *            Which attempt (1 for the first).
+	 * @return How it came out.
+	 */
+	protected Outcome attempt(ConsumerThrowing<Handle> job, int attempt)
+	{
+		Optional<Handle> handle = open(dbi);
+		if (!handle.isPresent())
+		{
+			// try again like a deadlock
+			logger.info("transact: retry: " + attempt + " DB Down");
+			return Outcome.RETRY;
+		}
+
+		try (Handle h = handle.get())
+		{
+			try
 			{
-				// try again like a deadlock
-				logger.info("transact: retry: " + (MAX_RETRIES - retries) + " DB Down");
-				retries--;
+				h.begin();
+				job.accept(h);
+				h.commit();
+				return Outcome.SUCCESS;
+			} catch (Throwable t)
+			{
+				boolean retry = retryPolicy.retryable(t);
+				logger.info("transact: " + (retry ? "retry: " : "fatal: ") + attempt + " " + t.toString());
+				rollback(h);
+
+				return retry ? Outcome.RETRY : Outcome.FAIL;
 			}
+		} finally
+		{
+			release(dbi);
+		}
+	}
 
-			// if we are retrying, take a quick break first
-			if (retries > 0)
+	/**
+	 * Make one attempt at the read-only job, outside of a transaction, restoring the connection's settings after.
+	 * 
+	 * @param job
+	 *            The job.
+	 * @param attempt
+	 *            Which attempt (1 for the first).
+	 * @param rv
+	 *            Holds the job's result.
+	 * @return How it came out.
+	 */
+	protected <T> Outcome attemptQuery(FunctionThrowing<Handle, T> job, int attempt, Holder<T> rv)
+	{
+		Optional<Handle> handle = open(readDbi);
+		if (!handle.isPresent())
+		{
+			logger.info("query: retry: " + attempt + " DB Down");
+			return Outcome.RETRY;
+		}
+
+		try (Handle h = handle.get())
+		{
+			Connection c = h.getConnection();
+			try
 			{
-				// sleep 1 .. 4 seconds, depending on how many retries we've done.
+				boolean readOnly = c.isReadOnly();
+				boolean autoCommit = c.getAutoCommit();
+				T result = null;
 				try
 				{
-					Thread.sleep((5 - retries) * 1000);
-				} catch (InterruptedException ie)
+					// only change what needs changing - some drivers pay for each set, even to the current value
+					if (!readOnly)
+					{
+						c.setReadOnly(true);
+					}
+					if (!autoCommit)
+					{
+						c.setAutoCommit(true);
+					}
+
+					result = job.apply(h);
+				} finally
 				{
+					if (!autoCommit)
+					{
+						c.setAutoCommit(false);
+					}
+					if (!readOnly)
+					{
+						c.setReadOnly(false);
+					}
 				}
+
+				rv.value = Optional.ofNullable(result);
+				return Outcome.SUCCESS;
+			} catch (Throwable t)
+			{
+				boolean retry = retryPolicy.retryable(t);
+				logger.info("query: " + (retry ? "retry: " : "fatal: ") + attempt + " " + t.toString());
+
+				return retry ? Outcome.RETRY : Outcome.FAIL;
 			}
+		} finally
+		{
+			release(readDbi);
+		}
+	}
+
+	/**
+	 * Make an attempt at the job, scheduling the next attempt if it should be retried, completing the future when done.
+	 * 
+	 * @param job
+	 *            The job.
+	 * @param attempt
+	 *            Which attempt (1 for the first).
+	 * @param start
+	 *            When the first attempt was started (ms).
+	 * @param rv
+	 *            The future to complete.
+	 */
+	protected void attemptAsync(ConsumerThrowing<Handle> job, int attempt, long start, CompletableFuture<Boolean> rv)
+	{
+		Outcome outcome = timed(n -> attempt(job, n), attempt);
+		if (outcome != Outcome.RETRY)
+		{
+			rv.complete(done(outcome, attempt));
+			return;
 		}
 
-		return success;
+		long delay = nextBackoff(start, attempt);
+		if (delay < 0)
+		{
+			rv.complete(giveUp(attempt));
+			return;
+		}
+
+		retries.mark();
+		if (waitTimer != null)
+		{
+			waitTimer.update(delay, TimeUnit.MILLISECONDS);
+		}
+		try
+		{
+			scheduler.schedule(() -> retryAsync(job, attempt + 1, start, rv), delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e)
+		{
+			rv.complete(giveUp(attempt));
+		}
 	}
 
 	/**
-	 * Open a handle, deal with exceptions.
+	 * Hand a retry, its backoff up, from the scheduler to the worker.
 	 * 
+	 * @param job
+	 *            The job.
+	 * @param attempt
+	 *            Which attempt.
+	 * @param start
+	 *            When the first attempt was started (ms).
+	 * @param rv
+	 *            The future to complete.
+	 */
+	protected void retryAsync(ConsumerThrowing<Handle> job, int attempt, long start, CompletableFuture<Boolean> rv)
+	{
+		if (worker == scheduler)
+		{
+			attemptAsync(job, attempt, start, rv);
+			return;
+		}
+
+		try
+		{
+			worker.execute(() -> attemptAsync(job, attempt, start, rv));
+		} catch (RejectedExecutionException e)
+		{
+			rv.complete(giveUp(attempt - 1));
+		}
+	}
+
+	/**
+	 * Count a final outcome.
+	 * 
+	 * @param outcome
+	 *            The outcome - SUCCESS or FAIL.
+	 * @param attempts
+	 *            How many attempts were made.
+	 * @return true for SUCCESS, false for FAIL.
+	 */
+	protected boolean done(Outcome outcome, int attempts)
+	{
+		if (attemptCounts != null)
+		{
+			attemptCounts.update(attempts);
+		}
+
+		if (outcome == Outcome.SUCCESS)
+		{
+			successes.mark();
+			return true;
+		}
+
+		failures.mark();
+		return false;
+	}
+
+	/**
+	 * Count giving up.
+	 * 
+	 * @param attempts
+	 *            How many attempts were made.
+	 * @return false.
+	 */
+	protected boolean giveUp(int attempts)
+	{
+		if (attemptCounts != null)
+		{
+			attemptCounts.update(attempts);
+		}
+		giveUps.mark();
+
+		return false;
+	}
+
+	/**
+	 * Figure the backoff before the next attempt, if the policy allows another.
+	 * 
+	 * @param start
+	 *            When the first attempt was started (ms).
+	 * @param attempt
+	 *            The attempt just made (1 for the first).
+	 * @return The backoff (ms), or -1 if we should give up.
+	 */
+	protected long nextBackoff(long start, int attempt)
+	{
+		if (attempt >= retryPolicy.getMaxAttempts())
+		{
+			return -1;
+		}
+
+		long delay = retryPolicy.backoff(attempt);
+		if ((System.currentTimeMillis() - start + delay) > retryPolicy.getDeadline().toMilliseconds())
+		{
+			return -1;
+		}
+
+		return delay;
+	}
+
+	/**
+	 * Make an attempt, timing it if instrumented.
+	 * 
+	 * @param attempt
+	 *            Makes the attempt, given which attempt it is.
+	 * @param n
+	 *            Which attempt (1 for the first).
+	 * @return How it came out.
+	 */
+	protected Outcome timed(IntFunction<Outcome> attempt, int n)
+	{
+		if (attemptTimer == null)
+		{
+			return attempt.apply(n);
+		}
+
+		try (Timer.Context t = attemptTimer.time())
+		{
+			return attempt.apply(n);
+		}
+	}
+
+	/**
+	 * Open a handle, after waiting for a turn if limited, deal with exceptions. A handle opened must be released (after it is closed).
+	 * 
+	 * @param dbi
+	 *            The DBI to open.
 	 * @return The handle, or not.
 	 */
-	protected Optional<Handle> open()
+	protected Optional<Handle> open(DBI dbi)
 	{
+		Semaphore permits = permits(dbi);
+		if (permits != null)
+		{
+			try
+			{
+				if (!permits.tryAcquire(connectionWait, TimeUnit.MILLISECONDS))
+				{
+					return Optional.empty();
+				}
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return Optional.empty();
+			}
+		}
+
 		try
 		{
 			Handle h = dbi.open();
 			return Optional.of(h);
 		} catch (UnableToObtainConnectionException e)
 		{
+			release(dbi);
 			return Optional.empty();
+		} catch (RuntimeException e)
+		{
+			release(dbi);
+			throw e;
+		}
+	}
+
+	/**
+	 * @param dbi
+	 *            The primary or replica DBI.
+	 * @return The limit on its handles, or null if not limited.
+	 */
+	protected Semaphore permits(DBI dbi)
+	{
+		return (dbi == this.dbi) ? connections : readConnections;
+	}
+
+	/**
+	 * Give back the turn taken to open a handle, if limited.
+	 * 
+	 * @param dbi
+	 *            The DBI the handle was opened on.
+	 */
+	protected void release(DBI dbi)
+	{
+		Semaphore permits = permits(dbi);
+		if (permits != null)
+		{
+			permits.release();
+		}
+	}
+
+	/**
+	 * Roll back the handle's transaction, deal with exceptions.
+	 * 
+	 * @param h
+	 *            The handle.
+	 */
+	protected void rollback(Handle h)
+	{
+		try
+		{
+			h.rollback();
+		} catch (DBIException e)
+		{
+			logger.warn("transact: rollback: " + e.toString());
 		}
 	}
 }
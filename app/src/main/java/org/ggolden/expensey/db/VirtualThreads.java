@@ -0,0 +1,150 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.db;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Virtual threads (Java 21 and up), reached by reflection so we still build and run on Java 8 - where they are not available, and we stay with platform
+ * threads.
+ */
+public class VirtualThreads
+{
+	final static private Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+	/** Thread.Builder.factory(), or null without virtual threads. */
+	protected final static Method FACTORY;
+
+	/** Thread.Builder.name(String prefix, long start), or null without virtual threads. */
+	protected final static Method NAME;
+
+	/** Executors.newThreadPerTaskExecutor(ThreadFactory), or null without virtual threads. */
+	protected final static Method NEW_EXECUTOR;
+
+	/** Thread.ofVirtual(), or null without virtual threads. */
+	protected final static Method OF_VIRTUAL;
+
+	static
+	{
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		Method newExecutor = null;
+		try
+		{
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		} catch (ReflectiveOperationException e)
+		{
+			logger.debug("virtual threads not available: " + e.toString());
+			ofVirtual = null;
+		}
+
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+		NEW_EXECUTOR = newExecutor;
+	}
+
+	/**
+	 * @return true if this JVM has virtual threads, false if not.
+	 */
+	public static boolean available()
+	{
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Wrap an executor, refusing work (with a RejectedExecutionException) past a limit on the tasks waiting and running - for an executor (such as one of
+	 * virtual threads) that would otherwise take on all it is given.
+	 * 
+	 * @param executor
+	 *            The executor.
+	 * @param limit
+	 *            How many tasks may be waiting and running at once.
+	 * @return The bounded executor.
+	 */
+	public static Executor bounded(Executor executor, int limit)
+	{
+		Semaphore permits = new Semaphore(limit);
+		return command ->
+		{
+			if (!permits.tryAcquire())
+			{
+				throw new RejectedExecutionException("limit reached: " + limit);
+			}
+
+			try
+			{
+				executor.execute(() ->
+				{
+					try
+					{
+						command.run();
+					} finally
+					{
+						permits.release();
+					}
+				});
+			} catch (RejectedExecutionException e)
+			{
+				permits.release();
+				throw e;
+			}
+		};
+	}
+
+	/**
+	 * Make an executor that starts a new virtual thread for each task.
+	 * 
+	 * @param prefix
+	 *            The threads' name prefix - each is numbered after.
+	 * @return The executor.
+	 * @throws UnsupportedOperationException
+	 *             if this JVM has no virtual threads.
+	 */
+	public static ExecutorService newExecutor(String prefix)
+	{
+		if (!available())
+		{
+			throw new UnsupportedOperationException("virtual threads need Java 21 or later, running: " + System.getProperty("java.version"));
+		}
+
+		try
+		{
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L);
+			return (ExecutorService) NEW_EXECUTOR.invoke(null, (ThreadFactory) FACTORY.invoke(builder));
+		} catch (ReflectiveOperationException e)
+		{
+			throw new UnsupportedOperationException("virtual threads: " + e.toString(), e);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * Warms up a connection pool at startup: holds the pool's minimum number of connections open at once, so all are made, and runs the validation query on each,
+ * so the first requests after a deploy don't wait on connecting.
+ */
+public class Warmup implements Managed
+{
+	final static private Logger logger = LoggerFactory.getLogger(Warmup.class);
+
+	/** How many connections to open. */
+	protected final int connections;
+
+	/** The pool's DBI. */
+	protected final DBI dbi;
+
+	/** A name for the pool, for logging. */
+	protected final String name;
+
+	/** The query to run on each connection. */
+	protected final String query;
+
+	/**
+	 * Setup to warm up the pool, with its minimum size and validation query.
+	 * 
+	 * @param name
+	 *            A name for the pool, for logging.
+	 * @param dbi
+	 *            The pool's DBI.
+	 * @param factory
+	 *            The pool's configuration.
+	 */
+	public Warmup(String name, DBI dbi, DataSourceFactory factory)
+	{
+		this.name = name;
+		this.dbi = dbi;
+		this.connections = factory.getMinSize();
+		this.query = factory.getValidationQuery();
+	}
+
+	@Override
+	public void start()
+	{
+		long start = System.currentTimeMillis();
+		List<Handle> handles = new ArrayList<>();
+		try
+		{
+			for (int i = 0; i < connections; i++)
+			{
+				Handle h = dbi.open();
+				handles.add(h);
+				h.createQuery(query).list();
+			}
+
+			logger.info("start: " + name + ": warmed: " + handles.size() + " connections in: " + (System.currentTimeMillis() - start) + "ms");
+		} catch (Throwable t)
+		{
+			// not fatal - the pool will connect as needed, and the Transactor retries while the db is down
+			logger.warn("start: " + name + ": warmed: " + handles.size() + " connections, then: " + t.toString());
+		} finally
+		{
+			for (Handle h : handles)
+			{
+				h.close();
+			}
+		}
+	}
+
+	@Override
+	public void stop()
+	{
+	}
+}
@@ -18,34 +18,63 @@
 
 package org.ggolden.expensey.dw;
 
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
 import javax.inject.Singleton;
 
 import org.eclipse.jetty.server.Server;
 import org.ggolden.expensey.auth.AuthenticationService;
+import org.ggolden.expensey.auth.AuthenticationStorage;
 import org.ggolden.expensey.auth.impl.AuthenticationServiceImpl;
+import org.ggolden.expensey.auth.impl.AuthenticationServiceMetered;
+import org.ggolden.expensey.auth.impl.AuthenticationStorageSql;
+import org.ggolden.expensey.auth.impl.CredentialsStorageSql;
+import org.ggolden.expensey.auth.impl.SessionStore;
 import org.ggolden.expensey.db.Transactor;
+import org.ggolden.expensey.db.VirtualThreads;
+import org.ggolden.expensey.db.Warmup;
 import org.ggolden.expensey.expense.ExpenseService;
 import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.impl.ExpenseEventBus;
+import org.ggolden.expensey.impl.ExpenseRollupTask;
 import org.ggolden.expensey.impl.ExpenseServiceImpl;
+import org.ggolden.expensey.impl.ExpenseStorageCached;
+import org.ggolden.expensey.impl.ExpenseStorageColumnar;
+import org.ggolden.expensey.impl.ExpenseStorageIndexed;
+import org.ggolden.expensey.impl.ExpenseStorageGrouped;
+import org.ggolden.expensey.impl.ExpenseStorageMetered;
 import org.ggolden.expensey.impl.ExpenseStorageSql;
 import org.ggolden.expensey.rest.ExpenseyRest;
+import org.ggolden.expensey.rest.RequestExecutor;
+import org.ggolden.expensey.rest.RequestPolicy;
 import org.glassfish.hk2.api.ServiceLocator;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.glassfish.jersey.servlet.ServletContainer;
 import org.skife.jdbi.v2.DBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 
 import io.dropwizard.assets.AssetsBundle;
 import io.dropwizard.configuration.EnvironmentVariableSubstitutor;
 import io.dropwizard.configuration.SubstitutingSourceProvider;
-import io.dropwizard.db.DataSourceFactory;
 import io.dropwizard.jdbi.DBIFactory;
+import io.dropwizard.lifecycle.ExecutorServiceManager;
 import io.dropwizard.lifecycle.ServerLifecycleListener;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
 
 /**
  * Dropwizard app for Expensey.
@@ -72,6 +101,9 @@ public class Application extends io.dropwizard.Application<Configuration>
 		// see: https://github.com/FasterXML/jackson-datatype-jdk8
 		bootstrap.getObjectMapper().registerModule(new Jdk8Module());
 
+		// amounts are whole minor units - refuse 12.34 rather than take it as 12
+		bootstrap.getObjectMapper().disable(DeserializationFeature.ACCEPT_FLOAT_AS_INT);
+
 		// enable configuration values like ${ENV_VAR} and ${ENV_VAR:-default value}
 		bootstrap.setConfigurationSourceProvider(
 				new SubstitutingSourceProvider(bootstrap.getConfigurationSourceProvider(), new EnvironmentVariableSubstitutor(false)));
@@ -85,24 +117,110 @@ public class Application extends io.dropwizard.Application<Configuration>
 	{
 		logger.info("run: configuration:" + configuration);
 
-		// get the db url from config
-		String dbUrl = "jdbc:h2:" + configuration.getDb() + ";mode=mysql";
+		// create our db connection pool, and one for the read replica if configured, warmed up at startup so the first requests don't wait to connect
+		DBIFactory factory = new DBIFactory();
+		DBI dbi = factory.build(environment, configuration.getDatabase(), "db");
+		environment.lifecycle().manage(new Warmup("db", dbi, configuration.getDatabase()));
+
+		Optional<DBI> replica = Optional.ofNullable(configuration.getReplica()).map(r -> factory.build(environment, r, "replica"));
+		replica.ifPresent(r -> environment.lifecycle().manage(new Warmup("replica", r, configuration.getReplica())));
+
+		// platform or virtual threads for the request and transaction work - virtual only if this JVM has them
+		boolean virtual = (configuration.getThreadMode() == ThreadMode.VIRTUAL);
+		if (virtual && !VirtualThreads.available())
+		{
+			logger.warn("run: threadMode virtual needs Java 21 or later, using platform threads on: " + System.getProperty("java.version"));
+			virtual = false;
+		}
+
+		// our wrapper around the dbi for transactions, retrying transient failures as configured, with a scheduler for async transactions and their retries
+		ScheduledExecutorService transactionScheduler = environment.lifecycle().scheduledExecutorService("transactor-%d", true)
+				.threads(configuration.getTransactionThreads()).build();
+		Transactor transactor = new Transactor(dbi, replica, configuration.getTransactionRetry(), environment.metrics(), transactionScheduler);
+		if (configuration.isInstrumented())
+		{
+			transactor.instrument(environment.metrics());
+		}
+
+		// with virtual threads, async transactions run on one each (the scheduler just times the retries), and as any number of threads may now want the
+		// database at once, they take turns at the pool's connections
+		if (virtual)
+		{
+			transactor.runOn(virtualExecutor(environment, "transactor-virtual-"));
+			transactor.limit(configuration.getDatabase().getMaxSize(), replica.isPresent() ? configuration.getReplica().getMaxSize() : 0,
+					configuration.getDatabase().getMaxWaitForConnection().toMilliseconds());
+			environment.metrics().register(MetricRegistry.name(Transactor.class, "waiting"), (Gauge<Integer>) transactor::getWaitingCount);
+		}
+
+		// the authentication sessions, stored in sql so any node can use them, cached locally, and swept for expired sessions while we run
+		// (or with the test/mem storage: new AuthenticationStorageMem())
+		AuthenticationStorage authenticationStorage = new AuthenticationStorageSql(transactor);
+		SessionStore sessions = new SessionStore(configuration, authenticationStorage);
+		environment.lifecycle().manage(sessions);
+		environment.metrics().register(MetricRegistry.name(SessionStore.class, "live"), (Gauge<Integer>) sessions::getLiveCount);
+		environment.metrics().register(MetricRegistry.name(SessionStore.class, "evictions"), (Gauge<Long>) sessions::getEvictionCount);
+
+		// authentication - using the sql credentials storage (or the test/mem storage: new CredentialsStorageMem())
+		AuthenticationService authenticationService = new AuthenticationServiceImpl(sessions, new CredentialsStorageSql(transactor));
+
+		// expenses - using the sql storage (or the test/mem storage: new ExpenseStorageMem()), with an admin task to rebuild its rollup
+		ExpenseStorageSql expenseStorageSql = new ExpenseStorageSql(transactor, configuration);
+		environment.admin().addTask(new ExpenseRollupTask(expenseStorageSql));
+		ExpenseStorage expenseStorage = expenseStorageSql;
+
+		// commit new expenses in groups, if configured, each caller waiting for its group's commit
+		if (configuration.getExpenseGroupCommit().isEnabled())
+		{
+			ExpenseStorageGrouped grouped = new ExpenseStorageGrouped(expenseStorage, configuration.getExpenseGroupCommit(), environment.metrics());
+			environment.lifecycle().manage(grouped);
+			expenseStorage = grouped;
+		}
+
+		// cache each user's expenses, if configured
+		if (configuration.getExpenseCache().isEnabled())
+		{
+			expenseStorage = new ExpenseStorageCached(expenseStorage, configuration.getExpenseCache(), environment.metrics());
+		}
+
+		// summarize from columns of each user's dates and amounts, if configured
+		if (configuration.getExpenseColumns().isEnabled())
+		{
+			expenseStorage = new ExpenseStorageColumnar(expenseStorage, configuration.getExpenseColumns(), environment.metrics());
+		}
+
+		// search from an index of each user's expense descriptions, if configured
+		if (configuration.getExpenseSearch().isEnabled())
+		{
+			expenseStorage = new ExpenseStorageIndexed(expenseStorage, configuration.getExpenseSearch(), environment.metrics());
+		}
+
+		// time them, if configured, reporting on the admin connector
+		if (configuration.isInstrumented())
+		{
+			authenticationService = new AuthenticationServiceMetered(authenticationService, environment.metrics());
+			expenseStorage = new ExpenseStorageMetered(expenseStorage, environment.metrics());
+		}
 
-		// create our db connection, and make it available for injection into services
-		// TODO: this is for test, with a file based H2 db
-		DataSourceFactory database = new DataSourceFactory();
-		database.setDriverClass("org.h2.Driver");
-		database.setUrl(dbUrl);
-		database.setUser("u");
-		database.setPassword("p");
-		DBI dbi = new DBIFactory().build(environment, database, "db");
+		// new expenses pushed to the users' event streams, written by a small shared pool, with a shared heartbeat timer
+		ExecutorService eventWriters = environment.lifecycle().executorService("expense-events-%d").minThreads(configuration.getExpenseEvents().getThreads())
+				.maxThreads(configuration.getExpenseEvents().getThreads()).build();
+		ExpenseEventBus events = new ExpenseEventBus(configuration.getExpenseEvents(), eventWriters);
+		environment.lifecycle().manage(events);
+		environment.metrics().register(MetricRegistry.name(ExpenseEventBus.class, "subscribers"), (Gauge<Integer>) events::getSubscriberCount);
+		environment.metrics().register(MetricRegistry.name(ExpenseEventBus.class, "drops"), (Gauge<Long>) events::getDropCount);
 
-		// Note: if using an external MySQL database... use this instead of the above
-		// final DBIFactory factory = new DBIFactory();
-		// dbi = factory.build(environment, configuration.getDatabase(), "mysql");
+		// the REST requests' work runs on its own bounded pool, sized to the database pool as each may hold a connection, so slow SQL does not tie up the
+		// Jetty threads - when the queue is full, requests are answered 503 right away
+		RequestPolicy requestPolicy = configuration.getRequests();
+		int requestThreads = (requestPolicy.getThreads() > 0) ? requestPolicy.getThreads() : configuration.getDatabase().getMaxSize();
+		// (with virtual threads, each request gets its own, as many let in at once as the pool would run and queue)
+		Executor requestPool = virtual ? VirtualThreads.bounded(virtualExecutor(environment, "requests-virtual-"), requestThreads + requestPolicy.getQueueSize())
+				: environment.lifecycle().executorService("requests-%d").minThreads(requestThreads).maxThreads(requestThreads)
+						.workQueue(new ArrayBlockingQueue<>(requestPolicy.getQueueSize())).rejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy()).build();
+		RequestExecutor requests = new RequestExecutor(requestPool, requestPolicy.getTimeout().toMilliseconds(), environment.metrics());
 
-		// our wrapper around the dbi for transactions
-		Transactor transactor = new Transactor(dbi);
+		final AuthenticationService authentication = authenticationService;
+		final ExpenseStorage expenses = expenseStorage;
 
 		// add our services, etc. to the component system
 		environment.jersey().register(new AbstractBinder()
@@ -113,20 +231,19 @@ public class Application extends io.dropwizard.Application<Configuration>
 				// make the configuration available
 				bind(configuration).to(Configuration.class);
 
+				// the configured jackson mapper, for resources that write their own json
+				bind(environment.getObjectMapper()).to(ObjectMapper.class);
+
 				// bind the DBI and Transactor
 				bind(dbi).to(DBI.class);
 				bind(transactor).to(Transactor.class);
 
 				// make our services available for injection - as singletons
-
-				// authentication
-				bind(AuthenticationServiceImpl.class).to(AuthenticationService.class).in(Singleton.class);
-
-				// expenses - using the test/mem storage
-				// bind(ExpenseStorageMem.class).to(ExpenseStorage.class).in(Singleton.class);
-
-				// expenses - using the sql storage
-				bind(ExpenseStorageSql.class).to(ExpenseStorage.class).in(Singleton.class);
+				bind(sessions).to(SessionStore.class);
+				bind(authentication).to(AuthenticationService.class);
+				bind(expenses).to(ExpenseStorage.class);
+				bind(events).to(ExpenseEventBus.class);
+				bind(requests).to(RequestExecutor.class);
 				bind(ExpenseServiceImpl.class).to(ExpenseService.class).in(Singleton.class);
 
 				// make our resources singleton
@@ -134,7 +251,8 @@ public class Application extends io.dropwizard.Application<Configuration>
 			}
 		});
 
-		// register our resources
+		// register our resources, and server-sent events
+		environment.jersey().register(SseFeature.class);
 		environment.jersey().register(ExpenseyRest.class);
 
 		environment.lifecycle().addServerLifecycleListener(new ServerLifecycleListener()
@@ -155,4 +273,21 @@ public class Application extends io.dropwizard.Application<Configuration>
 			}
 		});
 	}
+
+	/**
+	 * Make an executor starting a virtual thread for each task, shut down with the server.
+	 * 
+	 * @param environment
+	 *            The environment.
+	 * @param prefix
+	 *            The threads' name prefix.
+	 * @return The executor.
+	 */
+	protected ExecutorService virtualExecutor(Environment environment, String prefix)
+	{
+		ExecutorService rv = VirtualThreads.newExecutor(prefix);
+		environment.lifecycle().manage(new ExecutorServiceManager(rv, Duration.seconds(5), prefix));
+
+		return rv;
+	}
 }
@@ -18,7 +18,20 @@
 
 package org.ggolden.expensey.dw;
 
-import org.hibernate.validator.constraints.NotEmpty;
+import javax.validation.Valid;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.ggolden.expensey.db.RetryPolicy;
+import org.ggolden.expensey.impl.ExpenseCachePolicy;
+import org.ggolden.expensey.impl.ExpenseColumnsPolicy;
+import org.ggolden.expensey.impl.ExpenseEventPolicy;
+import org.ggolden.expensey.impl.ExpenseGroupCommitPolicy;
+import org.ggolden.expensey.impl.ExpenseSearchPolicy;
+import org.ggolden.expensey.rest.RequestPolicy;
+
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.util.Duration;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -34,7 +47,78 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 public class Configuration extends io.dropwizard.Configuration
 {
-	/** database URL */
-	@NotEmpty
-	protected String db = null;
+	/** the database connection pool */
+	@Valid
+	@NotNull
+	protected DataSourceFactory database = new DataSourceFactory();
+
+	/** an optional read replica connection pool, for read-only queries */
+	@Valid
+	protected DataSourceFactory replica = null;
+
+	/** time the storage, authentication and transaction calls - when off, these are not wrapped and cost nothing */
+	protected boolean instrumented = true;
+
+	/** how to retry transactions that fail for a transient reason (deadlock, db down) */
+	@Valid
+	@NotNull
+	protected RetryPolicy transactionRetry = new RetryPolicy();
+
+	/** how many threads run async transactions and their retries */
+	@Min(1)
+	protected int transactionThreads = 4;
+
+	/** how to cache each user's expenses in front of the storage */
+	@Valid
+	@NotNull
+	protected ExpenseCachePolicy expenseCache = new ExpenseCachePolicy();
+
+	/** how to hold each user's expense dates and amounts in columns, for summaries */
+	@Valid
+	@NotNull
+	protected ExpenseColumnsPolicy expenseColumns = new ExpenseColumnsPolicy();
+
+	/** how new expenses are committed in groups */
+	@Valid
+	@NotNull
+	protected ExpenseGroupCommitPolicy expenseGroupCommit = new ExpenseGroupCommitPolicy();
+
+	/** how to index each user's expense descriptions, for search */
+	@Valid
+	@NotNull
+	protected ExpenseSearchPolicy expenseSearch = new ExpenseSearchPolicy();
+
+	/** how new expenses are pushed to the users' event streams */
+	@Valid
+	@NotNull
+	protected ExpenseEventPolicy expenseEvents = new ExpenseEventPolicy();
+
+	/** what threads run the REST requests' work and the async transactions - virtual needs Java 21 or later, else platform is used */
+	@NotNull
+	protected ThreadMode threadMode = ThreadMode.PLATFORM;
+
+	/** how the REST requests are run, off the Jetty threads */
+	@Valid
+	@NotNull
+	protected RequestPolicy requests = new RequestPolicy();
+
+	/** how many expenses to insert per transaction in a bulk create */
+	@Min(1)
+	protected int batchSize = 1000;
+
+	/** how long an authentication session lasts from login */
+	@NotNull
+	protected Duration sessionTtl = Duration.hours(12);
+
+	/** how long an authentication session may go unused */
+	@NotNull
+	protected Duration sessionIdleTimeout = Duration.minutes(30);
+
+	/** how long to trust a locally cached session before reading it again from the database */
+	@NotNull
+	protected Duration sessionCacheTtl = Duration.seconds(30);
+
+	/** how often to sweep out expired sessions */
+	@NotNull
+	protected Duration sessionEvictionInterval = Duration.minutes(1);
 }
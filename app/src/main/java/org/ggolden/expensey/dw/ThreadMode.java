@@ -0,0 +1,31 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.dw;
+
+/**
+ * What threads run the REST requests' work and the async transactions.
+ */
+public enum ThreadMode
+{
+	/** Fixed pools of platform threads, sized to the database pool. */
+	PLATFORM,
+
+	/** A new virtual thread for each (Java 21 and up), the database kept to its pool's size by the Transactor's connection limit. */
+	VIRTUAL
+}
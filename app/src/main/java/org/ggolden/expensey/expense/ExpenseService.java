@@ -21,8 +21,13 @@ package org.ggolden.expensey.expense;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpensePage;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
 import org.jvnet.hk2.annotations.Contract;
 
 @Contract
@@ -32,7 +37,9 @@ public interface ExpenseService
 	 * Record a new expense
 	 * 
 	 * @param amount
-	 *            The expense amount.
+	 *            The expense amount, in minor units of the currency.
+	 * @param currency
+	 *            The ISO 4217 code of the expense currency, or null for Expense.DEFAULT_CURRENCY.
 	 * @param date
 	 *            The expense date.
 	 * @param description
@@ -41,14 +48,103 @@ public interface ExpenseService
 	 *            The user ID of the user claiming the expense.
 	 * @return The recorded expense, or not if any fields are missing or invalid.
 	 */
-	Optional<Expense> addExpense(Float amount, Date date, String description, String userId);
+	Optional<Expense> addExpense(long amount, String currency, Date date, String description, String userId);
+
+	/**
+	 * Record many new expenses, such as from an imported statement.
+	 * 
+	 * @param expenses
+	 *            The expenses to record (amount, currency, date and description are used).
+	 * @param userId
+	 *            The user ID of the user claiming the expenses.
+	 * @return The recorded expenses, with their new IDs, in the order given, or not if any fields are missing or invalid in any of the expenses. If recording
+	 *         fails part way, this holds only those recorded before the failure.
+	 */
+	Optional<List<Expense>> addExpenses(List<Expense> expenses, String userId);
 
 	/**
 	 * Get all the expenses for this user.
 	 * 
 	 * @param user
 	 *            The user ID.
-	 * @return The List of Expense, possibly empty.
+	 * @return The List of Expense, possibly empty, or not if the read failed.
+	 */
+	Optional<List<Expense>> getExpensesForUser(String user);
+
+	/**
+	 * Get a page of the expenses for this user, within a date range, newest first.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param from
+	 *            The earliest date to include, or null for no lower bound.
+	 * @param to
+	 *            The date to read up to (not included), or null for no upper bound.
+	 * @param cursor
+	 *            The "next" cursor from the prior page, or null for the first page.
+	 * @param limit
+	 *            The page size.
+	 * @return The ExpensePage, with a "next" cursor if there may be more.
+	 */
+	ExpensePage getExpensesForUser(String user, Date from, Date to, String cursor, int limit);
+
+	/**
+	 * Get the changes to this user's expenses since a version, to bring a client's copy up to date without reading them all again.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param since
+	 *            The version the client has, from getVersion() or the last changes, 0 for all.
+	 * @return The expenses created or updated, the IDs of those deleted, and the version this brings the client to, or not if the read failed.
+	 */
+	Optional<ExpenseChanges> getChangesForUser(String user, long since);
+
+	/**
+	 * Get the version of this user's expenses, which changes with every change to them - if it has not changed, neither have they.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @return The version, or -1 if it cannot be read.
+	 */
+	long getVersion(String user);
+
+	/**
+	 * Search the expenses for this user by description: those with, for each word of the query, a word in the description starting with it - so "tax air"
+	 * finds "Taxi to the airport".
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param query
+	 *            The words to search for, in any case.
+	 * @param limit
+	 *            The most to find.
+	 * @return The matching expenses, newest first, possibly none.
+	 */
+	List<Expense> search(String user, String query, int limit);
+
+	/**
+	 * Deliver all the expenses for this user, one at a time, without collecting them in memory.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param consumer
+	 *            Receives each expense.
+	 * @return true if all were delivered, false if the read failed part way.
+	 */
+	boolean streamExpensesForUser(String user, Consumer<Expense> consumer);
+
+	/**
+	 * Summarize the expenses for this user, within a date range, by period: totals, counts, min, max and average.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param from
+	 *            The earliest date to include, or null for no lower bound.
+	 * @param to
+	 *            The date to summarize up to (not included), or null for no upper bound.
+	 * @param bucket
+	 *            The period to summarize by.
+	 * @return A summary for each period with expenses, oldest first.
 	 */
-	List<Expense> getExpensesForUser(String user);
+	List<ExpenseSummary> summarize(String user, Date from, Date to, ExpenseBucket bucket);
 }
@@ -21,8 +21,13 @@ package org.ggolden.expensey.expense;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
 import org.jvnet.hk2.annotations.Contract;
 
 /**
@@ -35,7 +40,9 @@ public interface ExpenseStorage
 	 * Create a new expense
 	 * 
 	 * @param amount
-	 *            The expense amount.
+	 *            The expense amount, in minor units of the currency.
+	 * @param currency
+	 *            The ISO 4217 code of the expense currency.
 	 * @param date
 	 *            The expense date.
 	 * @param description
@@ -44,7 +51,17 @@ public interface ExpenseStorage
 	 *            The user ID of the user claiming the expense.
 	 * @return The recorded expense, or not if any fields are missing or invalid.
 	 */
-	Optional<Expense> createExpense(Float amount, Date date, String description, String userId);
+	Optional<Expense> createExpense(long amount, String currency, Date date, String description, String userId);
+
+	/**
+	 * Create many new expenses at once.
+	 * 
+	 * @param expenses
+	 *            The expenses to create, each with amount, currency, date, description and user ID set (the ID is ignored).
+	 * @return The created expenses, with their new IDs, in the same order as given. If the create fails part way, this holds only those created before the
+	 *         failure.
+	 */
+	List<Expense> createExpenses(List<Expense> expenses);
 
 	/**
 	 * Delete this expense.
@@ -68,9 +85,86 @@ public interface ExpenseStorage
 	 * 
 	 * @param user
 	 *            The user ID.
+	 * @return The List of Expense, possibly empty, or not if the read failed.
+	 */
+	Optional<List<Expense>> readExpensesForUser(String user);
+
+	/**
+	 * Read a page of the expenses for this user, within a date range, ordered by date then id, newest first.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param from
+	 *            The earliest date to include, or null for no lower bound.
+	 * @param to
+	 *            The date to read up to (not included), or null for no upper bound.
+	 * @param after
+	 *            The keyset position to continue after, or not to start with the newest.
+	 * @param limit
+	 *            The maximum number of expenses to read.
 	 * @return The List of Expense, possibly empty.
 	 */
-	List<Expense> readExpensesForUser(String user);
+	List<Expense> readExpensesForUser(String user, Date from, Date to, Optional<ExpenseCursor> after, int limit);
+
+	/**
+	 * Read all the expenses for this user, one at a time, without collecting them. Each is delivered at most once: a read that fails after delivering any is
+	 * not started over, but reported as failed.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param consumer
+	 *            Receives each expense as it is read.
+	 * @return true if all were read, false if the read failed part way.
+	 */
+	boolean streamExpensesForUser(String user, Consumer<Expense> consumer);
+
+	/**
+	 * Read the changes to this user's expenses since a version.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param since
+	 *            The version the client has, 0 for all.
+	 * @return The expenses created or updated, the IDs of those deleted, and the version this brings the client to, or not if the read failed.
+	 */
+	Optional<ExpenseChanges> readChangesForUser(String user, long since);
+
+	/**
+	 * Read the version of this user's expenses, which changes with every change to them.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @return The version, 0 if the user's expenses have never changed, or -1 if it cannot be read.
+	 */
+	long readVersion(String user);
+
+	/**
+	 * Search the expenses for this user by description: those with, for each word of the query, a word in the description starting with it.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param query
+	 *            The words to search for, in any case.
+	 * @param limit
+	 *            The maximum number of expenses to find.
+	 * @return The matching expenses, newest first, possibly none.
+	 */
+	List<Expense> searchExpensesForUser(String user, String query, int limit);
+
+	/**
+	 * Summarize the expenses for this user, within a date range, by period.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param from
+	 *            The earliest date to include, or null for no lower bound.
+	 * @param to
+	 *            The date to summarize up to (not included), or null for no upper bound.
+	 * @param bucket
+	 *            The period to summarize by.
+	 * @return A summary for each period with expenses, oldest first.
+	 */
+	List<ExpenseSummary> summarizeExpensesForUser(String user, Date from, Date to, ExpenseBucket bucket);
 
 	/**
 	 * Update the expense.
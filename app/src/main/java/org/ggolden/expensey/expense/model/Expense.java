@@ -38,8 +38,14 @@ public class Expense
 	@JsonProperty("id")
 	protected String _id;
 
-	/** amount spent */
-	protected Float amount;
+	/** The currency of expenses that do not give one. */
+	public final static String DEFAULT_CURRENCY = "USD";
+
+	/** amount spent, in minor units of the currency (cents for USD) - exact, and summed without rounding */
+	protected long amount;
+
+	/** the ISO 4217 code of the currency spent */
+	protected String currency = DEFAULT_CURRENCY;
 
 	/** date spent */
 	protected Date date;
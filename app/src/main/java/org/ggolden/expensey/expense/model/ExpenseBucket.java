@@ -0,0 +1,100 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense.model;
+
+import java.time.LocalDate;
+import java.util.Optional;
+
+/**
+ * The periods expenses are summarized over, in UTC. Weeks start on Monday.
+ */
+public enum ExpenseBucket
+{
+	DAY, WEEK, MONTH;
+
+	/** A day (ms). */
+	public static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Find the bucket by name, ignoring case.
+	 * 
+	 * @param name
+	 *            The name (i.e. "week").
+	 * @return The bucket, or not if the name is not known.
+	 */
+	public static Optional<ExpenseBucket> of(String name)
+	{
+		for (ExpenseBucket b : values())
+		{
+			if (b.name().equalsIgnoreCase(name))
+			{
+				return Optional.of(b);
+			}
+		}
+
+		return Optional.empty();
+	}
+
+	/**
+	 * Find the start of the bucket after the one that starts here.
+	 * 
+	 * @param start
+	 *            The start of a bucket (ms), from start().
+	 * @return The start of the next bucket (ms).
+	 */
+	public long next(long start)
+	{
+		switch (this)
+		{
+			case WEEK:
+				return start + 7 * DAY_MS;
+
+			case MONTH:
+				// no month is longer than 31 days, or shorter than 28, so this lands in the next month
+				return start(start + 31 * DAY_MS);
+
+			default:
+				return start + DAY_MS;
+		}
+	}
+
+	/**
+	 * Find the start of the bucket that holds this time.
+	 * 
+	 * @param time
+	 *            The time (ms).
+	 * @return The start of the bucket (ms).
+	 */
+	public long start(long time)
+	{
+		long day = Math.floorDiv(time, DAY_MS);
+		switch (this)
+		{
+			case WEEK:
+				// epoch day 0 was a Thursday
+				return (day - Math.floorMod(day + 3, 7)) * DAY_MS;
+
+			case MONTH:
+				return LocalDate.ofEpochDay(day).withDayOfMonth(1).toEpochDay() * DAY_MS;
+
+			default:
+				return day * DAY_MS;
+		}
+	}
+}
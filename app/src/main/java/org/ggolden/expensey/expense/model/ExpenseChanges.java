@@ -0,0 +1,42 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.expense.model;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The changes to a user's expenses since a version: those created or updated, and the IDs of those deleted (or moved to another user).
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExpenseChanges
+{
+	/** the expenses created or updated, in no particular order */
+	protected List<Expense> changed;
+
+	/** the IDs of the expenses deleted */
+	protected List<String> deleted;
+
+	/** the user's version these changes bring the client up to - ask for the changes since this next time */
+	protected long version;
+}
@@ -0,0 +1,93 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Optional;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A keyset position in a user's expenses, ordered by date then id (both descending). Reads continue with the expenses strictly after the cursor position.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExpenseCursor
+{
+	/**
+	 * Decode a cursor from its opaque token form.
+	 * 
+	 * @param token
+	 *            The token, as made by encode().
+	 * @return The cursor, or not if the token is missing or malformed.
+	 */
+	public static Optional<ExpenseCursor> decode(String token)
+	{
+		if ((token == null) || token.isEmpty())
+		{
+			return Optional.empty();
+		}
+
+		try
+		{
+			String[] parts = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8).split(":");
+			if (parts.length != 2)
+			{
+				return Optional.empty();
+			}
+
+			return Optional.of(new ExpenseCursor(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+		} catch (IllegalArgumentException e)
+		{
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Make a cursor positioned at this expense.
+	 * 
+	 * @param expense
+	 *            The expense.
+	 * @return The cursor.
+	 */
+	public static ExpenseCursor of(Expense expense)
+	{
+		// an expense with no date is stored, and ordered, as date 0
+		long date = (expense.getDate() == null) ? 0 : expense.getDate().getTime();
+		return new ExpenseCursor(date, Long.parseLong(expense.get_id()));
+	}
+
+	/** date of the last expense seen (ms) */
+	protected long date;
+
+	/** id of the last expense seen */
+	protected long id;
+
+	/**
+	 * @return The cursor as an opaque (URL safe) token.
+	 */
+	public String encode()
+	{
+		return Base64.getUrlEncoder().withoutPadding().encodeToString((date + ":" + id).getBytes(StandardCharsets.UTF_8));
+	}
+}
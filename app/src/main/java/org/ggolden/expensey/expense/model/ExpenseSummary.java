@@ -0,0 +1,118 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense.model;
+
+import java.util.Date;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Totals of a user's expenses in one currency over one period, in minor units of the currency. Amounts in different currencies are not added together: a
+ * period with expenses in more than one has a summary for each.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExpenseSummary
+{
+	/** the start of the period */
+	protected Date start;
+
+	/** the ISO 4217 code of the currency of the amounts */
+	protected String currency;
+
+	/** how many expenses */
+	protected int count;
+
+	/** the sum of the amounts */
+	protected long total;
+
+	/** the smallest amount */
+	protected long min;
+
+	/** the largest amount */
+	protected long max;
+
+	/** the mean amount */
+	protected double average;
+
+	/**
+	 * Start an empty summary of a period, in a currency.
+	 * 
+	 * @param start
+	 *            The start of the period (ms).
+	 * @param currency
+	 *            The currency code.
+	 * @return The summary.
+	 */
+	public static ExpenseSummary of(long start, String currency)
+	{
+		return new ExpenseSummary(new Date(start), currency, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Add an amount into this summary.
+	 * 
+	 * @param amount
+	 *            The amount.
+	 * @return this, with the amount added in.
+	 */
+	public ExpenseSummary add(long amount)
+	{
+		min = (count == 0) ? amount : Math.min(min, amount);
+		max = (count == 0) ? amount : Math.max(max, amount);
+		count++;
+		total += amount;
+		average = (double) total / count;
+
+		return this;
+	}
+
+	/**
+	 * Add another summary of the same period (or of a part of this period), in the same currency, into this one.
+	 * 
+	 * @param other
+	 *            The other summary.
+	 * @return this, with the other added in.
+	 */
+	public ExpenseSummary add(ExpenseSummary other)
+	{
+		if (other.count == 0)
+		{
+			return this;
+		}
+
+		if (count == 0)
+		{
+			min = other.min;
+			max = other.max;
+		} else
+		{
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+		count += other.count;
+		total += other.total;
+		average = (double) total / count;
+
+		return this;
+	}
+}
@@ -0,0 +1,51 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import io.dropwizard.util.Duration;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * How the ExpenseStorageCached caches each user's expenses: whether to cache at all, how many expenses to hold across all users, and for how long - and
+ * for how long each user's version.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExpenseCachePolicy
+{
+	/** Cache the expense reads - when off, the storage is not wrapped and costs nothing. */
+	protected boolean enabled = true;
+
+	/** The most expenses to hold, over all the cached users' lists - the least recently used users are evicted past this. */
+	@Min(1)
+	protected long maximumExpenses = 100000;
+
+	/** How long a user's cached expenses are used before being read again, even if not changed here (another node may have changed them). */
+	@NotNull
+	protected Duration ttl = Duration.minutes(5);
+
+	/** How long a user's cached version is used before being read again - short, as a change on another node is not seen here until it is. */
+	@NotNull
+	protected Duration versionTtl = Duration.seconds(5);
+}
@@ -0,0 +1,480 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.MediaType;
+
+import org.ggolden.expensey.expense.model.Expense;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * Pushes each user's new expenses to their open event streams (SSE).
+ * 
+ * No thread is held per stream: an idle stream is just its EventOutput and an empty buffer. Publishing puts the event in each of the user's stream buffers,
+ * and a small shared pool of writer threads drains the buffers to the streams, one writer at a time per stream, so events go out in order. A buffer that
+ * fills (the client is not keeping up) is emptied, and the stream is sent a "resync" event instead, telling the client to catch up by reading the changes
+ * since its version. A shared timer puts a heartbeat in every buffer, keeping idle connections open through proxies, and finding those the client has
+ * dropped, which are then closed and forgotten. The same timer closes and forgets a stream whose write has blocked past the write timeout (the client has
+ * stopped reading, but not closed), interrupting the write, so one stuck client does not hold a writer the other streams need.
+ * 
+ * Safe for concurrent use.
+ */
+public class ExpenseEventBus implements Managed
+{
+	/**
+	 * A user's open stream, with its buffer of events waiting to be written.
+	 */
+	protected static class Subscriber
+	{
+		/** The user whose expense events the stream gets. */
+		protected final String user;
+
+		/** The client's open stream. */
+		protected final EventOutput output;
+
+		/** Events waiting to be written to the stream, bounded - when full, events are dropped and a resync sent. */
+		protected final ArrayBlockingQueue<OutboundEvent> buffer;
+
+		/** Set when events were dropped - the stream is sent a resync before any more events. */
+		protected final AtomicBoolean resync = new AtomicBoolean();
+
+		/** Set while a writer is draining the buffer to the stream. */
+		protected final AtomicBoolean draining = new AtomicBoolean();
+
+		/** Set when a write blocked past the write timeout, and was interrupted. Guarded by the subscriber. */
+		protected boolean expired = false;
+
+		/** The thread writing to the stream, while one is. Guarded by the subscriber. */
+		protected Thread writer = null;
+
+		/** When (ms) the write in progress started. Guarded by the subscriber. */
+		protected long writeStarted = 0;
+
+		protected Subscriber(String user, EventOutput output, int bufferSize)
+		{
+			this.user = user;
+			this.output = output;
+			this.buffer = new ArrayBlockingQueue<>(bufferSize);
+		}
+	}
+
+	final static private Logger logger = LoggerFactory.getLogger(ExpenseEventBus.class);
+
+	/** The heartbeat - a comment, which clients ignore. */
+	protected final static OutboundEvent HEARTBEAT = new OutboundEvent.Builder().comment("heartbeat").build();
+
+	/** Tells the client events were dropped, and it should read the changes since its version. */
+	protected final static OutboundEvent RESYNC = new OutboundEvent.Builder().name("resync").data(String.class, "resync").build();
+
+	/** How many events a stream may have waiting. */
+	protected final int bufferSize;
+
+	/** How many events have been dropped, for streams not keeping up. */
+	protected final AtomicLong drops = new AtomicLong();
+
+	/** How often (ms) to send each stream a heartbeat. */
+	protected final long heartbeat;
+
+	/** The shared heartbeat timer, while started. */
+	protected ScheduledExecutorService heartbeats = null;
+
+	/** The open streams: mapped by user. */
+	protected final ConcurrentHashMap<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+	/** How long (ms) a write to a stream may block before the stream is closed. */
+	protected final long writeTimeout;
+
+	/** The threads writing to the streams. */
+	protected final Executor writers;
+
+	/**
+	 * Create the bus as configured.
+	 * 
+	 * @param policy
+	 *            The buffer size, heartbeat interval, writer threads and write timeout.
+	 * @param writers
+	 *            The threads to write to the streams with.
+	 */
+	public ExpenseEventBus(ExpenseEventPolicy policy, Executor writers)
+	{
+		this(writers, policy.getBufferSize(), policy.getHeartbeat().toMilliseconds(), policy.getWriteTimeout().toMilliseconds());
+	}
+
+	/**
+	 * Create the bus.
+	 * 
+	 * @param writers
+	 *            The threads to write to the streams with.
+	 * @param bufferSize
+	 *            How many events a stream may have waiting.
+	 * @param heartbeat
+	 *            How often (ms) to send each stream a heartbeat.
+	 * @param writeTimeout
+	 *            How long (ms) a write to a stream may block before the stream is closed.
+	 */
+	public ExpenseEventBus(Executor writers, int bufferSize, long heartbeat, long writeTimeout)
+	{
+		this.writers = writers;
+		this.bufferSize = bufferSize;
+		this.heartbeat = heartbeat;
+		this.writeTimeout = writeTimeout;
+	}
+
+	/**
+	 * Close and forget each stream whose write has been blocked for longer than the write timeout, interrupting the write so its writer is free.
+	 */
+	public void expire()
+	{
+		long now = System.currentTimeMillis();
+		subscribers.values().forEach(forUser -> forUser.stream().filter(s -> interruptOverdue(s, now)).forEach(this::unsubscribe));
+	}
+
+	/**
+	 * @return How many events have been dropped, for streams not keeping up.
+	 */
+	public long getDropCount()
+	{
+		return drops.get();
+	}
+
+	/**
+	 * @return How many streams are open.
+	 */
+	public int getSubscriberCount()
+	{
+		return subscribers.values().stream().mapToInt(Set::size).sum();
+	}
+
+	/**
+	 * Send every open stream a heartbeat - unless its buffer is full, which will be written soon enough.
+	 */
+	public void heartbeat()
+	{
+		subscribers.values().forEach(forUser -> forUser.forEach(s -> offer(s, HEARTBEAT, true)));
+	}
+
+	/**
+	 * Push these new expenses to the user's open streams.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param expenses
+	 *            The new expenses.
+	 */
+	public void publish(String user, List<Expense> expenses)
+	{
+		Set<Subscriber> forUser = subscribers.get(user);
+		if ((forUser == null) || forUser.isEmpty())
+		{
+			return;
+		}
+
+		// one event each, shared by all the user's streams
+		for (Expense expense : expenses)
+		{
+			OutboundEvent event = new OutboundEvent.Builder().name("expense").id(expense.get_id()).mediaType(MediaType.APPLICATION_JSON_TYPE)
+					.data(Expense.class, expense).build();
+			forUser.forEach(s -> offer(s, event, false));
+		}
+	}
+
+	/**
+	 * Push this new expense to the user's open streams.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param expense
+	 *            The new expense.
+	 */
+	public void publish(String user, Expense expense)
+	{
+		publish(user, Collections.singletonList(expense));
+	}
+
+	@Override
+	public void start()
+	{
+		heartbeats = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread t = new Thread(r, "expense-events-heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+
+		heartbeats.scheduleWithFixedDelay(() ->
+		{
+			try
+			{
+				heartbeat();
+			} catch (Throwable t)
+			{
+				logger.warn("heartbeat: " + t.toString());
+			}
+		}, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+
+		// checked at half the timeout, so a blocked write is interrupted within 1.5 timeouts
+		long expiry = Math.max(1, writeTimeout / 2);
+		heartbeats.scheduleWithFixedDelay(() ->
+		{
+			try
+			{
+				expire();
+			} catch (Throwable t)
+			{
+				logger.warn("expire: " + t.toString());
+			}
+		}, expiry, expiry, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void stop()
+	{
+		if (heartbeats != null)
+		{
+			heartbeats.shutdownNow();
+			heartbeats = null;
+		}
+
+		subscribers.values().forEach(forUser -> forUser.forEach(this::unsubscribe));
+	}
+
+	/**
+	 * Open a stream for the user, to receive their new expenses as they are published.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param output
+	 *            The stream.
+	 */
+	public void subscribe(String user, EventOutput output)
+	{
+		Subscriber s = new Subscriber(user, output, bufferSize);
+		subscribers.compute(user, (u, forUser) ->
+		{
+			Set<Subscriber> rv = (forUser == null) ? ConcurrentHashMap.newKeySet() : forUser;
+			rv.add(s);
+			return rv;
+		});
+	}
+
+	/**
+	 * Drain the subscriber's buffer to its stream, until empty - closing and forgetting the stream if it fails.
+	 * 
+	 * @param s
+	 *            The subscriber.
+	 */
+	protected void drain(Subscriber s)
+	{
+		try
+		{
+			while (true)
+			{
+				if (s.resync.getAndSet(false))
+				{
+					write(s, RESYNC);
+				}
+
+				OutboundEvent event = s.buffer.poll();
+				if (event == null)
+					break;
+
+				write(s, event);
+			}
+		} catch (IOException | RuntimeException e)
+		{
+			// the client has gone
+			unsubscribe(s);
+			return;
+		} finally
+		{
+			s.draining.set(false);
+		}
+
+		// an event offered after our last poll, but before we stopped draining, would otherwise wait for the next
+		if (!s.buffer.isEmpty() || s.resync.get())
+		{
+			schedule(s);
+		}
+	}
+
+	/**
+	 * If a write to the subscriber's stream has been blocked past the write timeout, interrupt it.
+	 * 
+	 * @param s
+	 *            The subscriber.
+	 * @param now
+	 *            The time (ms).
+	 * @return true if the write was interrupted, and the stream is to be closed, false if not.
+	 */
+	protected boolean interruptOverdue(Subscriber s, long now)
+	{
+		synchronized (s)
+		{
+			if ((s.writer == null) || (now - s.writeStarted < writeTimeout))
+			{
+				return false;
+			}
+
+			s.expired = true;
+			s.writer.interrupt();
+			return true;
+		}
+	}
+
+	/**
+	 * Put the event in the subscriber's buffer, and see that it gets written.
+	 * 
+	 * @param s
+	 *            The subscriber.
+	 * @param event
+	 *            The event.
+	 * @param optional
+	 *            If true, when the buffer is full, just skip the event - if false, empty the buffer and send a resync.
+	 */
+	protected void offer(Subscriber s, OutboundEvent event, boolean optional)
+	{
+		if (s.output.isClosed())
+		{
+			unsubscribe(s);
+			return;
+		}
+
+		if (!s.buffer.offer(event))
+		{
+			if (optional)
+				return;
+
+			// the client is not keeping up - drop what is waiting, and have it resync instead
+			drops.addAndGet(s.buffer.size() + 1);
+			s.buffer.clear();
+			s.resync.set(true);
+		}
+
+		schedule(s);
+	}
+
+	/**
+	 * Have a writer drain the subscriber's buffer, unless one already is.
+	 * 
+	 * @param s
+	 *            The subscriber.
+	 */
+	protected void schedule(Subscriber s)
+	{
+		if (s.draining.compareAndSet(false, true))
+		{
+			try
+			{
+				writers.execute(() -> drain(s));
+			} catch (RuntimeException e)
+			{
+				// the writers are shut down
+				s.draining.set(false);
+				logger.warn("schedule: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Write the event to the subscriber's stream, where interruptOverdue() can find the write if it blocks.
+	 * 
+	 * @param s
+	 *            The subscriber.
+	 * @param event
+	 *            The event.
+	 * @throws IOException
+	 *             if the write fails, or blocked past the write timeout.
+	 */
+	protected void write(Subscriber s, OutboundEvent event) throws IOException
+	{
+		synchronized (s)
+		{
+			if (s.expired)
+			{
+				throw new IOException("write timed out");
+			}
+			s.writer = Thread.currentThread();
+			s.writeStarted = System.currentTimeMillis();
+		}
+
+		boolean expired;
+		try
+		{
+			s.output.write(event);
+		} finally
+		{
+			synchronized (s)
+			{
+				s.writer = null;
+				expired = s.expired;
+
+				// an interrupt for this write that came as it finished is not left for the writer's next task
+				if (expired)
+				{
+					Thread.interrupted();
+				}
+			}
+		}
+
+		if (expired)
+		{
+			throw new IOException("write timed out");
+		}
+	}
+
+	/**
+	 * Close and forget the subscriber's stream.
+	 * 
+	 * @param s
+	 *            The subscriber.
+	 */
+	protected void unsubscribe(Subscriber s)
+	{
+		subscribers.computeIfPresent(s.user, (user, forUser) ->
+		{
+			forUser.remove(s);
+			return forUser.isEmpty() ? null : forUser;
+		});
+
+		try
+		{
+			s.output.close();
+		} catch (IOException e)
+		{
+			logger.debug("unsubscribe: " + e.toString());
+		}
+	}
+}
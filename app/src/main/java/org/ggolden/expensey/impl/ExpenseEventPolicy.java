@@ -0,0 +1,52 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import io.dropwizard.util.Duration;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * How the ExpenseEventBus pushes new expenses to the users' event streams: how many events each stream may have waiting, how often idle streams get a
+ * heartbeat, how many threads write to the streams, and how long a write to one may block.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExpenseEventPolicy
+{
+	/** The most events waiting to be written to a stream - past this, they are dropped, and the stream told to resync. */
+	@Min(1)
+	protected int bufferSize = 100;
+
+	/** How often each stream gets a heartbeat, so idle connections are kept open by proxies, and dead ones found. */
+	@NotNull
+	protected Duration heartbeat = Duration.seconds(20);
+
+	/** How many threads write to the streams, shared by all of them. */
+	@Min(1)
+	protected int threads = 2;
+
+	/** How long a write to a stream may block (the client is not reading) before the stream is closed, so it does not hold one of the shared threads. */
+	@NotNull
+	protected Duration writeTimeout = Duration.seconds(10);
+}
@@ -0,0 +1,51 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import io.dropwizard.util.Duration;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * How the ExpenseStorageGrouped commits new expenses together: whether to at all, how many to a transaction, how long to wait to fill one, and how many
+ * may be waiting.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExpenseGroupCommitPolicy
+{
+	/** Commit new expenses in groups - when off, the storage is not wrapped and costs nothing. */
+	protected boolean enabled = true;
+
+	/** The most expenses to commit in one transaction. */
+	@Min(1)
+	protected int maxGroup = 500;
+
+	/** How long to wait for more expenses to fill out a group, once the first is in - 0 commits just those already waiting. */
+	@NotNull
+	protected Duration maxWait = Duration.milliseconds(2);
+
+	/** How many expenses may wait to be committed - past this, each is committed on its own. */
+	@Min(1)
+	protected int queueSize = 10000;
+}
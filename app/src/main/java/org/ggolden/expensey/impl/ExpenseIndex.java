@@ -0,0 +1,414 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+import org.ggolden.expensey.expense.model.Expense;
+
+/**
+ * An inverted index of one user's expenses, by the words of their descriptions. Each expense has a slot, and each word the slots of the expenses with it
+ * (in slot order). The words are kept sorted, so those starting with a search term are a range. An expense changed or removed leaves its old slot empty,
+ * and the index is compacted when more slots are empty than full.
+ * 
+ * A search finds the expenses with, for each term of the query, a word that starts with it - so "tax air" finds "Taxi to the airport" - newest first.
+ * 
+ * Given expenses (accept) as they are read, it indexes them. Not safe for concurrent use: the caller synchronizes.
+ */
+public class ExpenseIndex implements Consumer<Expense>
+{
+	/**
+	 * The slots of the expenses with a word, in order.
+	 */
+	protected static class Postings
+	{
+		/** The slots, ascending, in the first size entries. */
+		int[] slots = new int[2];
+
+		/** How many slots there are. */
+		int size = 0;
+
+		void add(int slot)
+		{
+			if (size == slots.length)
+			{
+				slots = Arrays.copyOf(slots, size * 2);
+			}
+			slots[size++] = slot;
+		}
+
+		boolean contains(int slot)
+		{
+			return Arrays.binarySearch(slots, 0, size, slot) >= 0;
+		}
+	}
+
+	/**
+	 * Collects the newest expenses offered, up to a limit.
+	 */
+	public static class Newest implements Consumer<Expense>
+	{
+		/** The newest so far, oldest on top. */
+		protected final PriorityQueue<Expense> heap;
+
+		/** How many to keep. */
+		protected final int limit;
+
+		/**
+		 * @param limit
+		 *            How many to keep.
+		 */
+		public Newest(int limit)
+		{
+			this.limit = limit;
+			this.heap = new PriorityQueue<>(Math.max(1, Math.min(limit, 1024)), NEWEST_FIRST.reversed());
+		}
+
+		@Override
+		public void accept(Expense e)
+		{
+			if (heap.size() < limit)
+			{
+				heap.add(e);
+			} else if ((limit > 0) && (NEWEST_FIRST.compare(e, heap.peek()) < 0))
+			{
+				heap.poll();
+				heap.add(e);
+			}
+		}
+
+		/**
+		 * @return The newest kept, newest first.
+		 */
+		public List<Expense> list()
+		{
+			List<Expense> rv = new ArrayList<>(heap);
+			rv.sort(NEWEST_FIRST);
+			return rv;
+		}
+	}
+
+	/** IDs in numeric order, as the storages make them - shorter first, then by digit. */
+	protected final static Comparator<String> ID_ORDER = Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder());
+
+	/** Expenses by date, newest first, then by ID, highest first - as the storages read them. */
+	public final static Comparator<Expense> NEWEST_FIRST = Comparator.comparing(Expense::getDate, Comparator.nullsLast(Comparator.<Date> reverseOrder()))
+			.thenComparing(Expense::get_id, Comparator.nullsLast(ID_ORDER.reversed()));
+
+	/** Past this many empty slots, when more are empty than full, the index is compacted. */
+	protected final static int COMPACT_MIN = 1024;
+
+	/**
+	 * Split text into the words it is indexed or searched by: runs of letters and digits, in lower case.
+	 * 
+	 * @param text
+	 *            The text, may be null.
+	 * @return The words, in order, possibly repeated, possibly none.
+	 */
+	public static List<String> terms(String text)
+	{
+		List<String> rv = new ArrayList<>();
+		if (text == null)
+		{
+			return rv;
+		}
+
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++)
+		{
+			boolean word = (i < text.length()) && Character.isLetterOrDigit(text.charAt(i));
+			if (word && (start < 0))
+			{
+				start = i;
+			} else if (!word && (start >= 0))
+			{
+				rv.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Check a description against search terms without an index.
+	 * 
+	 * @param description
+	 *            The description.
+	 * @param terms
+	 *            The search terms, from terms().
+	 * @return true if, for each term, the description has a word starting with it.
+	 */
+	public static boolean matches(String description, List<String> terms)
+	{
+		List<String> words = terms(description);
+		return terms.stream().allMatch(t -> words.stream().anyMatch(w -> w.startsWith(t)));
+	}
+
+	/** The number of empty slots. */
+	protected int empty = 0;
+
+	/** The expense in each slot, or null if it was removed. */
+	protected final List<Expense> expenses = new ArrayList<>();
+
+	/** The slot of each expense, by ID. */
+	protected final Map<String, Integer> slots = new HashMap<>();
+
+	/** The user's version the index is as of. */
+	protected long version;
+
+	/** The expenses' slots, by word. */
+	protected final TreeMap<String, Postings> words = new TreeMap<>();
+
+	/**
+	 * Start an empty index.
+	 * 
+	 * @param version
+	 *            The user's version the index will be as of.
+	 */
+	public ExpenseIndex(long version)
+	{
+		this.version = version;
+	}
+
+	@Override
+	public void accept(Expense expense)
+	{
+		add(expense);
+	}
+
+	/**
+	 * Index an expense, in place of any with the same ID.
+	 * 
+	 * @param expense
+	 *            The expense.
+	 */
+	public void add(Expense expense)
+	{
+		remove(expense.get_id());
+
+		int slot = expenses.size();
+		expenses.add(expense);
+		slots.put(expense.get_id(), slot);
+
+		// each word once, even if repeated in the description
+		String last = null;
+		List<String> terms = terms(expense.getDescription());
+		terms.sort(null);
+		for (String term : terms)
+		{
+			if (term.equals(last))
+			{
+				continue;
+			}
+			words.computeIfAbsent(term, t -> new Postings()).add(slot);
+			last = term;
+		}
+	}
+
+	/**
+	 * Remove an expense from the index, if it is in it.
+	 * 
+	 * @param id
+	 *            The expense ID.
+	 */
+	public void remove(String id)
+	{
+		Integer slot = slots.remove(id);
+		if (slot == null)
+		{
+			return;
+		}
+
+		expenses.set(slot, null);
+		empty++;
+
+		if ((empty > COMPACT_MIN) && (empty > slots.size()))
+		{
+			compact();
+		}
+	}
+
+	/**
+	 * Find the newest expenses that match a query.
+	 * 
+	 * @param terms
+	 *            The search terms, from terms().
+	 * @param limit
+	 *            The most to find.
+	 * @return The matching expenses, newest first, possibly none.
+	 */
+	public List<Expense> search(List<String> terms, int limit)
+	{
+		if (terms.isEmpty())
+		{
+			return new ArrayList<>();
+		}
+
+		// the postings of the words starting with each term - if any term has none, nothing matches
+		List<Collection<Postings>> postings = new ArrayList<>(terms.size());
+		int driver = 0;
+		long driverSize = Long.MAX_VALUE;
+		for (String term : terms)
+		{
+			Collection<Postings> forTerm = words.subMap(term, true, term + Character.MAX_VALUE, false).values();
+			if (forTerm.isEmpty())
+			{
+				return new ArrayList<>();
+			}
+
+			long size = forTerm.stream().mapToLong(p -> p.size).sum();
+			if (size < driverSize)
+			{
+				driver = postings.size();
+				driverSize = size;
+			}
+			postings.add(forTerm);
+		}
+
+		// the other terms are checked by a binary search of their word's postings, or if they are many words, by a set of their slots
+		List<IntPredicate> others = new ArrayList<>();
+		for (int i = 0; i < postings.size(); i++)
+		{
+			if (i == driver)
+			{
+				continue;
+			}
+			others.add((postings.get(i).size() == 1) ? postings.get(i).iterator().next()::contains : union(postings.get(i))::get);
+		}
+
+		// walk the smallest term's slots
+		Newest rv = new Newest(limit);
+		BitSet seen = (postings.get(driver).size() > 1) ? new BitSet(expenses.size()) : null;
+		for (Postings p : postings.get(driver))
+		{
+			for (int i = 0; i < p.size; i++)
+			{
+				int slot = p.slots[i];
+				if (seen != null)
+				{
+					if (seen.get(slot))
+					{
+						continue;
+					}
+					seen.set(slot);
+				}
+
+				Expense e = expenses.get(slot);
+				if ((e != null) && all(others, slot))
+				{
+					rv.accept(e);
+				}
+			}
+		}
+
+		return rv.list();
+	}
+
+	/**
+	 * @return How many expenses are indexed.
+	 */
+	public int size()
+	{
+		return slots.size();
+	}
+
+	/**
+	 * @return The user's version the index is as of.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @param version
+	 *            The user's version the index is now as of.
+	 */
+	public void setVersion(long version)
+	{
+		this.version = version;
+	}
+
+	/**
+	 * @return true if each of the checks passes the slot.
+	 */
+	protected static boolean all(List<IntPredicate> others, int slot)
+	{
+		for (IntPredicate other : others)
+		{
+			if (!other.test(slot))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Index the expenses again, into slots with none empty.
+	 */
+	protected void compact()
+	{
+		List<Expense> live = new ArrayList<>(slots.size());
+		for (Expense e : expenses)
+		{
+			if (e != null)
+			{
+				live.add(e);
+			}
+		}
+
+		expenses.clear();
+		slots.clear();
+		words.clear();
+		empty = 0;
+		live.forEach(this::add);
+	}
+
+	/**
+	 * @return The slots in any of the postings.
+	 */
+	protected BitSet union(Collection<Postings> postings)
+	{
+		BitSet rv = new BitSet(expenses.size());
+		for (Postings p : postings)
+		{
+			for (int i = 0; i < p.size; i++)
+			{
+				rv.set(p.slots[i]);
+			}
+		}
+
+		return rv;
+	}
+}
@@ -0,0 +1,53 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import java.io.PrintWriter;
+
+import com.google.common.collect.ImmutableMultimap;
+
+import io.dropwizard.servlets.tasks.Task;
+
+/**
+ * Admin task to rebuild the expense daily rollup from the expenses: POST /tasks/rebuild-expense-rollups on the admin connector, with an optional threads
+ * parameter.
+ */
+public class ExpenseRollupTask extends Task
+{
+	/** How many threads to rebuild with, unless asked for. */
+	protected final static int DEFAULT_THREADS = 4;
+
+	/** The storage whose rollup we rebuild. */
+	protected final ExpenseStorageSql storage;
+
+	public ExpenseRollupTask(ExpenseStorageSql storage)
+	{
+		super("rebuild-expense-rollups");
+		this.storage = storage;
+	}
+
+	@Override
+	public void execute(ImmutableMultimap<String, String> parameters, PrintWriter output) throws Exception
+	{
+		int threads = parameters.get("threads").stream().findFirst().map(Integer::valueOf).orElse(DEFAULT_THREADS);
+
+		long start = System.currentTimeMillis();
+		int users = storage.rebuildRollups(threads);
+		output.println("rebuilt: " + users + " users in: " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
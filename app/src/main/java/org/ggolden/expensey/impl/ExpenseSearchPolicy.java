@@ -0,0 +1,40 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import javax.validation.constraints.Min;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * How the ExpenseStorageIndexed indexes the expenses it searches: whether to at all, and how many to index across all users.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ExpenseSearchPolicy
+{
+	/** Search from the indexes - when off, the storage is not wrapped and costs nothing, and searches read all of a user's expenses. */
+	protected boolean enabled = true;
+
+	/** The most expenses to index, over all the users - the least recently searched users are dropped past this. */
+	@Min(1)
+	protected long maximumExpenses = 1000000;
+}
@@ -18,15 +18,24 @@
 
 package org.ggolden.expensey.impl;
 
+import java.util.ArrayList;
+import java.util.Currency;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 
 import org.ggolden.expensey.expense.ExpenseService;
 import org.ggolden.expensey.expense.ExpenseStorage;
 import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.expense.model.ExpensePage;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
 import org.jvnet.hk2.annotations.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,35 +52,148 @@ public class ExpenseServiceImpl implements ExpenseService
 {
 	final static private Logger logger = LoggerFactory.getLogger(ExpenseServiceImpl.class);
 
+	/** The largest page we will read at once. */
+	protected final static int MAX_PAGE_SIZE = 500;
+
+	/** where new expenses are pushed to the users' event streams, if anywhere. */
+	protected Optional<ExpenseEventBus> events;
+
 	/** storage manager for expenses. */
 	protected ExpenseStorage storage;
 
 	/**
-	 * Create the expense service
+	 * Create the expense service, pushing new expenses to the event bus.
 	 */
 	@Inject
-	public ExpenseServiceImpl(ExpenseStorage storage)
+	public ExpenseServiceImpl(ExpenseStorage storage, ExpenseEventBus events)
 	{
 		this.storage = storage;
+		this.events = Optional.ofNullable(events);
 
 		logger.info("SimpleExpenseService()");
 	}
 
+	/**
+	 * Create the expense service, without pushing new expenses.
+	 */
+	public ExpenseServiceImpl(ExpenseStorage storage)
+	{
+		this(storage, null);
+	}
+
+	@Override
+	public Optional<Expense> addExpense(long amount, String currency, Date date, String description, String userId)
+	{
+		if (currency == null)
+		{
+			currency = Expense.DEFAULT_CURRENCY;
+		}
+
+		// TODO: validate the fields
+		if ((date == null) || (description == null) || (userId == null) || !isCurrency(currency))
+		{
+			return Optional.empty();
+		}
+
+		Optional<Expense> rv = storage.createExpense(amount, currency, date, description, userId);
+		rv.ifPresent(e -> events.ifPresent(bus -> bus.publish(userId, e)));
+
+		return rv;
+	}
+
 	@Override
-	public Optional<Expense> addExpense(Float amount, Date date, String description, String userId)
+	public Optional<List<Expense>> addExpenses(List<Expense> expenses, String userId)
 	{
 		// TODO: validate the fields
-		if ((date == null) || (description == null) || (userId == null))
+		if ((expenses == null) || (userId == null) || expenses.stream().anyMatch(
+				e -> (e.getDate() == null) || (e.getDescription() == null) || ((e.getCurrency() != null) && !isCurrency(e.getCurrency()))))
 		{
 			return Optional.empty();
 		}
 
-		return storage.createExpense(amount, date, description, userId);
+		// claim them all for the user
+		List<Expense> claimed = expenses.stream() //
+				.map(e -> new Expense(null, e.getAmount(), (e.getCurrency() == null) ? Expense.DEFAULT_CURRENCY : e.getCurrency(), e.getDate(),
+						e.getDescription(), userId)) //
+				.collect(Collectors.toList());
+
+		List<Expense> rv = storage.createExpenses(claimed);
+		events.ifPresent(bus -> bus.publish(userId, rv));
+
+		return Optional.of(rv);
 	}
 
 	@Override
-	public List<Expense> getExpensesForUser(String user)
+	public Optional<List<Expense>> getExpensesForUser(String user)
 	{
 		return storage.readExpensesForUser(user);
 	}
+
+	@Override
+	public ExpensePage getExpensesForUser(String user, Date from, Date to, String cursor, int limit)
+	{
+		int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+		// read one more than the page, to know if there is a next page
+		List<Expense> expenses = storage.readExpensesForUser(user, from, to, ExpenseCursor.decode(cursor), pageSize + 1);
+
+		String next = null;
+		if (expenses.size() > pageSize)
+		{
+			expenses = expenses.subList(0, pageSize);
+			next = ExpenseCursor.of(expenses.get(pageSize - 1)).encode();
+		}
+
+		return new ExpensePage(expenses, next);
+	}
+
+	@Override
+	public Optional<ExpenseChanges> getChangesForUser(String user, long since)
+	{
+		return storage.readChangesForUser(user, since);
+	}
+
+	@Override
+	public long getVersion(String user)
+	{
+		return storage.readVersion(user);
+	}
+
+	@Override
+	public List<Expense> search(String user, String query, int limit)
+	{
+		if ((user == null) || (query == null))
+		{
+			return new ArrayList<>();
+		}
+
+		return storage.searchExpensesForUser(user, query, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+	}
+
+	@Override
+	public boolean streamExpensesForUser(String user, Consumer<Expense> consumer)
+	{
+		return storage.streamExpensesForUser(user, consumer);
+	}
+
+	@Override
+	public List<ExpenseSummary> summarize(String user, Date from, Date to, ExpenseBucket bucket)
+	{
+		return storage.summarizeExpensesForUser(user, from, to, bucket);
+	}
+
+	/**
+	 * @return true if the code is an ISO 4217 currency code, false if not.
+	 */
+	protected static boolean isCurrency(String code)
+	{
+		try
+		{
+			Currency.getInstance(code);
+			return true;
+		} catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+	}
 }
@@ -0,0 +1,284 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * ExpenseStorage that caches each user's full list of expenses (readExpensesForUser) from another ExpenseStorage, bounded by the total expenses held, least
+ * recently used users evicted first, and each list kept no longer than the policy's TTL. Each user's version is cached too, for the policy's much shorter
+ * version TTL (a few seconds), so a client polling an unchanged list costs few storage reads. Other reads go straight to the wrapped storage.
+ * 
+ * Changes made through here invalidate the users they touch. A read that misses loads from storage, and caches what it read only if no change to the user
+ * was made while it was reading, so a read racing a change does not cache the list from before the change. A read that fails is not cached, but reported
+ * as failed, and tried again by the next read. Changes made on other nodes are seen in the version after the version TTL, and in the list after the TTL -
+ * so a client whose requests reach different nodes may get a 304 (ExpenseyRest's ETag is the version) for up to the version TTL after a change made on
+ * another node.
+ * 
+ * Safe for concurrent use.
+ */
+public class ExpenseStorageCached implements ExpenseStorage
+{
+	/** How many change counters the users are spread over. */
+	protected final static int STRIPES = 1024;
+
+	/** Each user's expenses, unmodifiable, by user. */
+	protected final Cache<String, List<Expense>> cache;
+
+	/** Each user's version, by user. */
+	protected final Cache<String, Long> versions;
+
+	/** Counts changes, for the users hashing to each stripe - a load caches only if its user's count did not change while it read. */
+	protected final AtomicLongArray changes = new AtomicLongArray(STRIPES);
+
+	/** The wrapped storage. */
+	protected final ExpenseStorage storage;
+
+	/**
+	 * Wrap this storage.
+	 * 
+	 * @param storage
+	 *            The storage to cache.
+	 * @param policy
+	 *            How much to cache, and for how long.
+	 * @param metrics
+	 *            Where to register the cache's hit, miss, eviction and size gauges.
+	 */
+	public ExpenseStorageCached(ExpenseStorage storage, ExpenseCachePolicy policy, MetricRegistry metrics)
+	{
+		this.storage = storage;
+		// one segment: Guava splits the bound over its segments, so with more, a user over a segment's share of the bound would never be cached - reads
+		// are lock free either way
+		this.cache = CacheBuilder.newBuilder() //
+				.concurrencyLevel(1) //
+				.maximumWeight(policy.getMaximumExpenses()) //
+				.weigher((String user, List<Expense> expenses) -> expenses.size() + 1) //
+				.expireAfterWrite(policy.getTtl().toMilliseconds(), TimeUnit.MILLISECONDS) //
+				.recordStats() //
+				.build();
+		this.versions = CacheBuilder.newBuilder() //
+				.maximumSize(policy.getMaximumExpenses()) //
+				.expireAfterWrite(policy.getVersionTtl().toMilliseconds(), TimeUnit.MILLISECONDS) //
+				.build();
+
+		metrics.register(MetricRegistry.name(ExpenseStorageCached.class, "hits"), (Gauge<Long>) () -> cache.stats().hitCount());
+		metrics.register(MetricRegistry.name(ExpenseStorageCached.class, "misses"), (Gauge<Long>) () -> cache.stats().missCount());
+		metrics.register(MetricRegistry.name(ExpenseStorageCached.class, "evictions"), (Gauge<Long>) () -> cache.stats().evictionCount());
+		metrics.register(MetricRegistry.name(ExpenseStorageCached.class, "hit-ratio"), (Gauge<Double>) () -> cache.stats().hitRate());
+		metrics.register(MetricRegistry.name(ExpenseStorageCached.class, "users"), (Gauge<Long>) cache::size);
+	}
+
+	@Override
+	public Optional<Expense> createExpense(long amount, String currency, Date date, String description, String userId)
+	{
+		try
+		{
+			return storage.createExpense(amount, currency, date, description, userId);
+		} finally
+		{
+			invalidate(userId);
+		}
+	}
+
+	@Override
+	public List<Expense> createExpenses(List<Expense> expenses)
+	{
+		try
+		{
+			return storage.createExpenses(expenses);
+		} finally
+		{
+			expenses.stream().map(Expense::getUserId).distinct().forEach(this::invalidate);
+		}
+	}
+
+	@Override
+	public void deleteExpense(Expense expense)
+	{
+		// the stored expense says whose it is, not the caller's copy
+		Optional<Expense> existing = storage.readExpense(expense.get_id());
+		try
+		{
+			storage.deleteExpense(expense);
+		} finally
+		{
+			existing.ifPresent(e -> invalidate(e.getUserId()));
+		}
+	}
+
+	@Override
+	public Optional<Expense> readExpense(String id)
+	{
+		return storage.readExpense(id);
+	}
+
+	@Override
+	public Optional<List<Expense>> readExpensesForUser(String user)
+	{
+		List<Expense> rv = cache.getIfPresent(user);
+		if (rv == null)
+		{
+			long before = changes.get(stripe(user));
+			Optional<List<Expense>> read = storage.readExpensesForUser(user);
+
+			// a failed read is not cached, but passed on, to be tried again next time
+			if (!read.isPresent())
+			{
+				return read;
+			}
+			rv = Collections.unmodifiableList(read.get());
+
+			// cache it only if the user was not changed while we read
+			put(cache, user, rv, before);
+		}
+
+		return Optional.of(new ArrayList<>(rv));
+	}
+
+	@Override
+	public List<Expense> readExpensesForUser(String user, Date from, Date to, Optional<ExpenseCursor> after, int limit)
+	{
+		return storage.readExpensesForUser(user, from, to, after, limit);
+	}
+
+	@Override
+	public Optional<ExpenseChanges> readChangesForUser(String user, long since)
+	{
+		return storage.readChangesForUser(user, since);
+	}
+
+	@Override
+	public long readVersion(String user)
+	{
+		Long rv = versions.getIfPresent(user);
+		if (rv == null)
+		{
+			long before = changes.get(stripe(user));
+			rv = storage.readVersion(user);
+
+			// cache it only if read, and the user was not changed while we read
+			if (rv >= 0)
+			{
+				put(versions, user, rv, before);
+			}
+		}
+
+		return rv;
+	}
+
+	@Override
+	public List<Expense> searchExpensesForUser(String user, String query, int limit)
+	{
+		return storage.searchExpensesForUser(user, query, limit);
+	}
+
+	@Override
+	public boolean streamExpensesForUser(String user, Consumer<Expense> consumer)
+	{
+		return storage.streamExpensesForUser(user, consumer);
+	}
+
+	@Override
+	public List<ExpenseSummary> summarizeExpensesForUser(String user, Date from, Date to, ExpenseBucket bucket)
+	{
+		return storage.summarizeExpensesForUser(user, from, to, bucket);
+	}
+
+	@Override
+	public void updateExpense(Expense expense)
+	{
+		// the expense may be moving to another user: both lists change
+		Optional<Expense> existing = storage.readExpense(expense.get_id());
+		try
+		{
+			storage.updateExpense(expense);
+		} finally
+		{
+			existing.ifPresent(e -> invalidate(e.getUserId()));
+			invalidate(expense.getUserId());
+		}
+	}
+
+	/**
+	 * Drop the user's cached expenses, and count the change so a read already in progress does not cache what it read.
+	 */
+	protected void invalidate(String user)
+	{
+		if (user == null)
+			return;
+
+		changes.incrementAndGet(stripe(user));
+		cache.invalidate(user);
+		versions.invalidate(user);
+	}
+
+	/**
+	 * Cache what was read for the user, unless the user was changed since the read started. The change count is checked again after the put, and the entry
+	 * dropped if it moved: a change counted between the first check and the put would otherwise have its invalidate run before the put, leaving what was
+	 * read before the change cached for the TTL. A change counted after the second check invalidates after the put.
+	 * 
+	 * @param into
+	 *            The cache.
+	 * @param user
+	 *            The user ID.
+	 * @param value
+	 *            What was read.
+	 * @param before
+	 *            The user's change count, taken before the read.
+	 */
+	protected <V> void put(Cache<String, V> into, String user, V value, long before)
+	{
+		if (changes.get(stripe(user)) != before)
+		{
+			return;
+		}
+
+		into.put(user, value);
+		if (changes.get(stripe(user)) != before)
+		{
+			into.invalidate(user);
+		}
+	}
+
+	/**
+	 * @return The change counter stripe for the user.
+	 */
+	protected static int stripe(String user)
+	{
+		return (user.hashCode() & Integer.MAX_VALUE) % STRIPES;
+	}
+}
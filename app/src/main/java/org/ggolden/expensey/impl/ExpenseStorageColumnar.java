@@ -0,0 +1,427 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * ExpenseStorage that summarizes (summarizeExpensesForUser) from columns of each user's expense dates and amounts, in primitive arrays sorted by date,
+ * rather than from Expense objects or the database. A user's expenses cost 16 bytes each here, not an Expense's 150 or so, and being arrays of primitives,
+ * the garbage collector has nothing in them to trace - so tens of millions can be held for reporting. A summary finds the range by binary search, and sums
+ * each bucket in a tight loop over the arrays. Amounts in different currencies are summarized apart, so each currency has its own pair of columns.
+ * 
+ * The columns are partitioned by user (UserPartitions - the user ID is held once, as the partition's key, not per expense), loaded on first use, and
+ * loaded again when the user's version has changed, so changes made anywhere are seen (those made on another node within ExpenseStorageCached's version
+ * TTL, if wrapped in it).
+ * 
+ * All other calls go straight to the wrapped storage. Safe for concurrent use.
+ */
+public class ExpenseStorageColumnar implements ExpenseStorage
+{
+	/**
+	 * A user's expenses' dates and amounts, as of a version: a pair of columns for each currency, sorted by date. Not changed once built.
+	 */
+	protected static class Columns
+	{
+		/** The amounts of each currency's expenses, in date order. */
+		final long[][] amounts;
+
+		/** The currency codes, in order - the columns of each are at its index. */
+		final String[] currencies;
+
+		/** The dates (ms) of each currency's expenses, in order. */
+		final long[][] dates;
+
+		/** How many expenses, in all the currencies. */
+		final int size;
+
+		/** The user's version, read before the expenses were. */
+		final long version;
+
+		Columns(long version, String[] currencies, long[][] dates, long[][] amounts, int size)
+		{
+			this.version = version;
+			this.currencies = currencies;
+			this.dates = dates;
+			this.amounts = amounts;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Collects a user's expenses in one currency into a pair of columns.
+	 */
+	protected static class ColumnBuilder
+	{
+		long[] amounts = new long[16];
+
+		long[] dates = new long[16];
+
+		int size = 0;
+
+		void add(long date, long amount)
+		{
+			if (size == dates.length)
+			{
+				dates = Arrays.copyOf(dates, size * 2);
+				amounts = Arrays.copyOf(amounts, size * 2);
+			}
+
+			dates[size] = date;
+			amounts[size] = amount;
+			size++;
+		}
+	}
+
+	/**
+	 * Collects a user's expenses into columns, for each currency.
+	 */
+	protected static class ColumnsBuilder implements Consumer<Expense>
+	{
+		/** Each currency's columns, by code, in order. */
+		final TreeMap<String, ColumnBuilder> currencies = new TreeMap<>();
+
+		/** The user's version, as it was before the expenses were read. */
+		final long version;
+
+		ColumnsBuilder(long version)
+		{
+			this.version = version;
+		}
+
+		@Override
+		public void accept(Expense e)
+		{
+			currencies.computeIfAbsent(e.getCurrency(), c -> new ColumnBuilder()).add(e.getDate().getTime(), e.getAmount());
+		}
+
+		/**
+		 * @return The columns, trimmed and sorted by date.
+		 */
+		Columns build()
+		{
+			String[] c = currencies.keySet().toArray(new String[currencies.size()]);
+			long[][] d = new long[c.length][];
+			long[][] a = new long[c.length][];
+			int size = 0;
+			for (int i = 0; i < c.length; i++)
+			{
+				ColumnBuilder column = currencies.get(c[i]);
+				d[i] = Arrays.copyOf(column.dates, column.size);
+				a[i] = Arrays.copyOf(column.amounts, column.size);
+				sort(d[i], a[i], 0, column.size - 1);
+				size += column.size;
+			}
+
+			return new Columns(version, c, d, a, size);
+		}
+	}
+
+	/** Below this many, sort() uses an insertion sort. */
+	protected final static int INSERTION_SORT = 16;
+
+	/**
+	 * Find the first index in the dates at or after a time.
+	 * 
+	 * @param dates
+	 *            The dates (ms), sorted.
+	 * @param time
+	 *            The time (ms).
+	 * @return The index of the first date >= time, or dates.length if none are.
+	 */
+	protected static int lowerBound(long[] dates, long time)
+	{
+		int low = 0;
+		int high = dates.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (dates[mid] < time)
+			{
+				low = mid + 1;
+			} else
+			{
+				high = mid;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Sort the dates, and the amounts along with them, in [low, high] - a quicksort, as there is no sort of one primitive array by another.
+	 * 
+	 * @param dates
+	 *            The dates.
+	 * @param amounts
+	 *            The amounts.
+	 * @param low
+	 *            The first index.
+	 * @param high
+	 *            The last index.
+	 */
+	protected static void sort(long[] dates, long[] amounts, int low, int high)
+	{
+		while (high - low >= INSERTION_SORT)
+		{
+			// partition around the median of the first, middle and last
+			int mid = (low + high) >>> 1;
+			if (dates[mid] < dates[low])
+			{
+				swap(dates, amounts, mid, low);
+			}
+			if (dates[high] < dates[low])
+			{
+				swap(dates, amounts, high, low);
+			}
+			if (dates[high] < dates[mid])
+			{
+				swap(dates, amounts, high, mid);
+			}
+			long pivot = dates[mid];
+
+			int i = low;
+			int j = high;
+			while (i <= j)
+			{
+				while (dates[i] < pivot)
+				{
+					i++;
+				}
+				while (dates[j] > pivot)
+				{
+					j--;
+				}
+				if (i <= j)
+				{
+					swap(dates, amounts, i++, j--);
+				}
+			}
+
+			// recurse into the smaller side, loop on the larger, to bound the stack
+			if (j - low < high - i)
+			{
+				sort(dates, amounts, low, j);
+				low = i;
+			} else
+			{
+				sort(dates, amounts, i, high);
+				high = j;
+			}
+		}
+
+		for (int i = low + 1; i <= high; i++)
+		{
+			long d = dates[i];
+			long a = amounts[i];
+			int j = i - 1;
+			while (j >= low && dates[j] > d)
+			{
+				dates[j + 1] = dates[j];
+				amounts[j + 1] = amounts[j];
+				j--;
+			}
+			dates[j + 1] = d;
+			amounts[j + 1] = a;
+		}
+	}
+
+	/**
+	 * Swap two rows of the columns.
+	 */
+	protected static void swap(long[] dates, long[] amounts, int i, int j)
+	{
+		long d = dates[i];
+		dates[i] = dates[j];
+		dates[j] = d;
+
+		long a = amounts[i];
+		amounts[i] = amounts[j];
+		amounts[j] = a;
+	}
+
+	/** Each user's columns. */
+	protected final UserPartitions<Columns> columns;
+
+	/** The wrapped storage. */
+	protected final ExpenseStorage storage;
+
+	/**
+	 * Wrap this storage.
+	 * 
+	 * @param storage
+	 *            The storage to summarize.
+	 * @param policy
+	 *            How many expenses to hold.
+	 * @param metrics
+	 *            Where to register the load meter and size gauges.
+	 */
+	public ExpenseStorageColumnar(ExpenseStorage storage, ExpenseColumnsPolicy policy, MetricRegistry metrics)
+	{
+		this.storage = storage;
+		this.columns = new UserPartitions<>(storage, policy.getMaximumExpenses(), c -> c.size, c -> c.version, ExpenseStorageColumnar.class, metrics);
+	}
+
+	@Override
+	public Optional<Expense> createExpense(long amount, String currency, Date date, String description, String userId)
+	{
+		return storage.createExpense(amount, currency, date, description, userId);
+	}
+
+	@Override
+	public List<Expense> createExpenses(List<Expense> expenses)
+	{
+		return storage.createExpenses(expenses);
+	}
+
+	@Override
+	public void deleteExpense(Expense expense)
+	{
+		storage.deleteExpense(expense);
+	}
+
+	@Override
+	public Optional<Expense> readExpense(String id)
+	{
+		return storage.readExpense(id);
+	}
+
+	@Override
+	public Optional<List<Expense>> readExpensesForUser(String user)
+	{
+		return storage.readExpensesForUser(user);
+	}
+
+	@Override
+	public List<Expense> readExpensesForUser(String user, Date from, Date to, Optional<ExpenseCursor> after, int limit)
+	{
+		return storage.readExpensesForUser(user, from, to, after, limit);
+	}
+
+	@Override
+	public Optional<ExpenseChanges> readChangesForUser(String user, long since)
+	{
+		return storage.readChangesForUser(user, since);
+	}
+
+	@Override
+	public long readVersion(String user)
+	{
+		return storage.readVersion(user);
+	}
+
+	@Override
+	public List<Expense> searchExpensesForUser(String user, String query, int limit)
+	{
+		return storage.searchExpensesForUser(user, query, limit);
+	}
+
+	@Override
+	public boolean streamExpensesForUser(String user, Consumer<Expense> consumer)
+	{
+		return storage.streamExpensesForUser(user, consumer);
+	}
+
+	@Override
+	public List<ExpenseSummary> summarizeExpensesForUser(String user, Date from, Date to, ExpenseBucket bucket)
+	{
+		Optional<Columns> forUser = columns(user);
+		if (!forUser.isPresent())
+		{
+			return storage.summarizeExpensesForUser(user, from, to, bucket);
+		}
+
+		List<ExpenseSummary> rv = new ArrayList<>();
+		String[] currencies = forUser.get().currencies;
+		for (int c = 0; c < currencies.length; c++)
+		{
+			long[] dates = forUser.get().dates[c];
+			long[] amounts = forUser.get().amounts[c];
+
+			int i = (from == null) ? 0 : lowerBound(dates, from.getTime());
+			int end = (to == null) ? dates.length : lowerBound(dates, to.getTime());
+
+			// the dates are in order, so each bucket is a run of them
+			while (i < end)
+			{
+				long start = bucket.start(dates[i]);
+				long next = bucket.next(start);
+
+				int count = 0;
+				long total = 0;
+				long min = amounts[i];
+				long max = amounts[i];
+				for (; (i < end) && (dates[i] < next); i++)
+				{
+					long amount = amounts[i];
+					total += amount;
+					if (amount < min)
+					{
+						min = amount;
+					}
+					if (amount > max)
+					{
+						max = amount;
+					}
+					count++;
+				}
+
+				rv.add(new ExpenseSummary(new Date(start), currencies[c], count, total, min, max, (double) total / count));
+			}
+		}
+
+		// each currency's are in period order, and the currencies in order - a (stable) sort by period keeps them so within each period
+		rv.sort(Comparator.comparing(ExpenseSummary::getStart));
+
+		return rv;
+	}
+
+	@Override
+	public void updateExpense(Expense expense)
+	{
+		storage.updateExpense(expense);
+	}
+
+	/**
+	 * Get the user's columns, loading them if we don't have them as of the user's current version.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @return The columns, or empty if they could not be read.
+	 */
+	protected Optional<Columns> columns(String user)
+	{
+		return columns.get(user, ColumnsBuilder::new, ColumnsBuilder::build);
+	}
+}
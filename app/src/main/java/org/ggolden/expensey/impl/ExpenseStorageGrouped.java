@@ -0,0 +1,336 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.lifecycle.Managed;
+
+/**
+ * ExpenseStorage that commits new expenses (createExpense) in groups: each waits in a queue, and a flusher takes what is waiting (up to the policy's group
+ * size, waiting up to its max wait to fill one out) and creates them all with one createExpenses() - one transaction, one batched insert - in the wrapped
+ * storage. Each caller waits for its group's commit, and gets its expense with its generated id, so a create returns only once it is committed, as before.
+ * Under load, the groups grow with the callers, so more callers cost more rows per commit, not more commits.
+ * 
+ * If a group fails, its expenses are created again each on its own, so one that cannot be created fails alone. When the queue is full, or we are not
+ * running, an expense is created on its own right away. Other calls go straight to the wrapped storage.
+ * 
+ * Safe for concurrent use.
+ */
+public class ExpenseStorageGrouped implements ExpenseStorage, Managed
+{
+	/**
+	 * An expense waiting to be created, and its caller's future.
+	 */
+	protected static class Pending
+	{
+		/** Completed with the created expense, or empty if it could not be created. */
+		final CompletableFuture<Optional<Expense>> created = new CompletableFuture<>();
+
+		/** The expense to create. */
+		final Expense expense;
+
+		Pending(Expense expense)
+		{
+			this.expense = expense;
+		}
+	}
+
+	final static private Logger logger = LoggerFactory.getLogger(ExpenseStorageGrouped.class);
+
+	/** Creates a group's expenses each on its own, when the group fails. */
+	protected final Meter fallbacks;
+
+	/** Takes groups from the queue and commits them, while running. */
+	protected Thread flusher = null;
+
+	/** The sizes of the groups committed. */
+	protected final Histogram groups;
+
+	/** The most expenses to a group. */
+	protected final int maxGroup;
+
+	/** How long (ns) to wait to fill out a group. */
+	protected final long maxWait;
+
+	/** The expenses waiting to be created. */
+	protected final BlockingQueue<Pending> queue;
+
+	/** Queueing is done under the read lock, and stopping under the write lock, so nothing is queued after the flusher's last look. */
+	protected final ReadWriteLock queueing = new ReentrantReadWriteLock();
+
+	/** true while we queue expenses, and the flusher runs. */
+	protected volatile boolean running = false;
+
+	/** The wrapped storage. */
+	protected final ExpenseStorage storage;
+
+	/**
+	 * Wrap this storage.
+	 * 
+	 * @param storage
+	 *            The storage to create expenses in.
+	 * @param policy
+	 *            How to group them.
+	 * @param metrics
+	 *            Where to register the group size, fallback and queued metrics.
+	 */
+	public ExpenseStorageGrouped(ExpenseStorage storage, ExpenseGroupCommitPolicy policy, MetricRegistry metrics)
+	{
+		this.storage = storage;
+		this.maxGroup = policy.getMaxGroup();
+		this.maxWait = TimeUnit.MILLISECONDS.toNanos(policy.getMaxWait().toMilliseconds());
+		this.queue = new ArrayBlockingQueue<>(policy.getQueueSize());
+
+		this.groups = metrics.histogram(MetricRegistry.name(ExpenseStorageGrouped.class, "group-size"));
+		this.fallbacks = metrics.meter(MetricRegistry.name(ExpenseStorageGrouped.class, "fallback"));
+		metrics.register(MetricRegistry.name(ExpenseStorageGrouped.class, "queued"), (Gauge<Integer>) queue::size);
+	}
+
+	@Override
+	public void start()
+	{
+		running = true;
+		flusher = new Thread(this::flushing, "expense-group-commit");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	@Override
+	public void stop() throws InterruptedException
+	{
+		queueing.writeLock().lock();
+		try
+		{
+			running = false;
+		} finally
+		{
+			queueing.writeLock().unlock();
+		}
+
+		// the flusher commits what is still waiting before it is done
+		if (flusher != null)
+		{
+			flusher.join();
+			flusher = null;
+		}
+	}
+
+	@Override
+	public Optional<Expense> createExpense(long amount, String currency, Date date, String description, String userId)
+	{
+		Pending pending = new Pending(new Expense(null, amount, currency, date, description, userId));
+
+		boolean queued = false;
+		queueing.readLock().lock();
+		try
+		{
+			queued = running && queue.offer(pending);
+		} finally
+		{
+			queueing.readLock().unlock();
+		}
+
+		// the caller waits for the commit either way
+		if (!queued)
+		{
+			return storage.createExpense(amount, currency, date, description, userId);
+		}
+		return pending.created.join();
+	}
+
+	@Override
+	public List<Expense> createExpenses(List<Expense> expenses)
+	{
+		return storage.createExpenses(expenses);
+	}
+
+	@Override
+	public void deleteExpense(Expense expense)
+	{
+		storage.deleteExpense(expense);
+	}
+
+	@Override
+	public Optional<Expense> readExpense(String id)
+	{
+		return storage.readExpense(id);
+	}
+
+	@Override
+	public Optional<List<Expense>> readExpensesForUser(String user)
+	{
+		return storage.readExpensesForUser(user);
+	}
+
+	@Override
+	public List<Expense> readExpensesForUser(String user, Date from, Date to, Optional<ExpenseCursor> after, int limit)
+	{
+		return storage.readExpensesForUser(user, from, to, after, limit);
+	}
+
+	@Override
+	public Optional<ExpenseChanges> readChangesForUser(String user, long since)
+	{
+		return storage.readChangesForUser(user, since);
+	}
+
+	@Override
+	public long readVersion(String user)
+	{
+		return storage.readVersion(user);
+	}
+
+	@Override
+	public List<Expense> searchExpensesForUser(String user, String query, int limit)
+	{
+		return storage.searchExpensesForUser(user, query, limit);
+	}
+
+	@Override
+	public boolean streamExpensesForUser(String user, Consumer<Expense> consumer)
+	{
+		return storage.streamExpensesForUser(user, consumer);
+	}
+
+	@Override
+	public List<ExpenseSummary> summarizeExpensesForUser(String user, Date from, Date to, ExpenseBucket bucket)
+	{
+		return storage.summarizeExpensesForUser(user, from, to, bucket);
+	}
+
+	@Override
+	public void updateExpense(Expense expense)
+	{
+		storage.updateExpense(expense);
+	}
+
+	/**
+	 * Commit a group, completing each of its callers.
+	 * 
+	 * @param group
+	 *            The group.
+	 */
+	protected void flush(List<Pending> group)
+	{
+		groups.update(group.size());
+
+		int done = 0;
+		try
+		{
+			List<Expense> created = storage.createExpenses(group.stream().map(p -> p.expense).collect(Collectors.toList()));
+			for (Expense e : created)
+			{
+				group.get(done++).created.complete(Optional.of(e));
+			}
+		} catch (RuntimeException e)
+		{
+			logger.warn("flush: " + e.toString());
+		}
+
+		// any not created in the group (it failed) are tried each on its own, so only those that cannot be created fail
+		for (Pending p : group.subList(done, group.size()))
+		{
+			fallbacks.mark();
+			try
+			{
+				p.created.complete(storage.createExpense(p.expense.getAmount(), p.expense.getCurrency(), p.expense.getDate(), p.expense.getDescription(),
+						p.expense.getUserId()));
+			} catch (RuntimeException e)
+			{
+				logger.warn("flush: " + e.toString());
+				p.created.complete(Optional.empty());
+			}
+		}
+	}
+
+	/**
+	 * The flusher: take a group from the queue and commit it, over and over, until stopped and the queue is empty.
+	 */
+	protected void flushing()
+	{
+		List<Pending> group = new ArrayList<>(maxGroup);
+		while (running || !queue.isEmpty())
+		{
+			try
+			{
+				// wait for the first
+				Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+				{
+					continue;
+				}
+				group.add(first);
+
+				// take what else is waiting, and what comes in for a little while, up to a full group
+				queue.drainTo(group, maxGroup - group.size());
+				long deadline = System.nanoTime() + maxWait;
+				while (group.size() < maxGroup)
+				{
+					long left = deadline - System.nanoTime();
+					if (left <= 0)
+					{
+						break;
+					}
+					Pending next = queue.poll(left, TimeUnit.NANOSECONDS);
+					if (next == null)
+					{
+						break;
+					}
+					group.add(next);
+					queue.drainTo(group, maxGroup - group.size());
+				}
+			} catch (InterruptedException e)
+			{
+				// keep going until stopped - stop() waits for us to empty the queue
+				logger.warn("flushing: interrupted");
+			}
+
+			if (!group.isEmpty())
+			{
+				flush(group);
+				group.clear();
+			}
+		}
+	}
+}
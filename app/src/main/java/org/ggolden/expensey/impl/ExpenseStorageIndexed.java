@@ -0,0 +1,210 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * ExpenseStorage that searches (searchExpensesForUser) from an inverted index of each user's expense descriptions (an ExpenseIndex), held in memory, rather
+ * than reading all of the user's expenses for each search.
+ * 
+ * The indexes are partitioned by user (UserPartitions), built on first use. A search checks the user's version first, and if it has changed, brings the
+ * index up to date with the changes since its version (readChangesForUser) - so expenses created, updated and deleted anywhere are found (or not) by the
+ * next search, and only what changed is indexed again.
+ * 
+ * All other calls go straight to the wrapped storage. Safe for concurrent use.
+ */
+public class ExpenseStorageIndexed implements ExpenseStorage
+{
+	/** Each user's index. */
+	protected final UserPartitions<ExpenseIndex> indexes;
+
+	/** The wrapped storage. */
+	protected final ExpenseStorage storage;
+
+	/** Counts users' indexes brought up to date with their changes. */
+	protected final Meter updates;
+
+	/**
+	 * Wrap this storage.
+	 * 
+	 * @param storage
+	 *            The storage to search.
+	 * @param policy
+	 *            How many expenses to index.
+	 * @param metrics
+	 *            Where to register the load and update meters and size gauges.
+	 */
+	public ExpenseStorageIndexed(ExpenseStorage storage, ExpenseSearchPolicy policy, MetricRegistry metrics)
+	{
+		this.storage = storage;
+		this.indexes = new UserPartitions<>(storage, policy.getMaximumExpenses(), ExpenseIndex::size, ExpenseIndex::getVersion, ExpenseStorageIndexed.class,
+				metrics);
+		this.updates = metrics.meter(MetricRegistry.name(ExpenseStorageIndexed.class, "updates"));
+	}
+
+	@Override
+	public Optional<Expense> createExpense(long amount, String currency, Date date, String description, String userId)
+	{
+		return storage.createExpense(amount, currency, date, description, userId);
+	}
+
+	@Override
+	public List<Expense> createExpenses(List<Expense> expenses)
+	{
+		return storage.createExpenses(expenses);
+	}
+
+	@Override
+	public void deleteExpense(Expense expense)
+	{
+		storage.deleteExpense(expense);
+	}
+
+	@Override
+	public Optional<Expense> readExpense(String id)
+	{
+		return storage.readExpense(id);
+	}
+
+	@Override
+	public Optional<List<Expense>> readExpensesForUser(String user)
+	{
+		return storage.readExpensesForUser(user);
+	}
+
+	@Override
+	public List<Expense> readExpensesForUser(String user, Date from, Date to, Optional<ExpenseCursor> after, int limit)
+	{
+		return storage.readExpensesForUser(user, from, to, after, limit);
+	}
+
+	@Override
+	public Optional<ExpenseChanges> readChangesForUser(String user, long since)
+	{
+		return storage.readChangesForUser(user, since);
+	}
+
+	@Override
+	public long readVersion(String user)
+	{
+		return storage.readVersion(user);
+	}
+
+	@Override
+	public List<Expense> searchExpensesForUser(String user, String query, int limit)
+	{
+		List<String> terms = ExpenseIndex.terms(query);
+		if (terms.isEmpty())
+		{
+			return new ArrayList<>();
+		}
+
+		Optional<ExpenseIndex> index = index(user);
+		if (!index.isPresent())
+		{
+			return storage.searchExpensesForUser(user, query, limit);
+		}
+
+		synchronized (index.get())
+		{
+			return index.get().search(terms, limit);
+		}
+	}
+
+	@Override
+	public boolean streamExpensesForUser(String user, Consumer<Expense> consumer)
+	{
+		return storage.streamExpensesForUser(user, consumer);
+	}
+
+	@Override
+	public List<ExpenseSummary> summarizeExpensesForUser(String user, Date from, Date to, ExpenseBucket bucket)
+	{
+		return storage.summarizeExpensesForUser(user, from, to, bucket);
+	}
+
+	@Override
+	public void updateExpense(Expense expense)
+	{
+		storage.updateExpense(expense);
+	}
+
+	/**
+	 * Get the user's index, as of the user's current version: built if we don't have one, or brought up to date with the user's changes.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @return The index, or empty if the user's expenses could not be read.
+	 */
+	protected Optional<ExpenseIndex> index(String user)
+	{
+		return indexes.get(user, ExpenseIndex::new, Function.identity(), this::update);
+	}
+
+	/**
+	 * Bring the user's index up to date with the user's changes since its version: those changed are indexed again, and those deleted (or moved to another
+	 * user) removed.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param index
+	 *            The user's index.
+	 * @param version
+	 *            The user's current version.
+	 * @return true if the index is now as of the version, false if not.
+	 */
+	protected boolean update(String user, ExpenseIndex index, long version)
+	{
+		synchronized (index)
+		{
+			if (index.getVersion() >= version)
+			{
+				return true;
+			}
+
+			Optional<ExpenseChanges> changes = storage.readChangesForUser(user, index.getVersion());
+			if (!changes.isPresent())
+			{
+				return false;
+			}
+
+			changes.get().getDeleted().forEach(index::remove);
+			changes.get().getChanged().forEach(index::add);
+			index.setVersion(changes.get().getVersion());
+			updates.mark();
+
+			return index.getVersion() >= version;
+		}
+	}
+}
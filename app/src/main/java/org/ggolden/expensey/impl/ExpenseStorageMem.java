@@ -17,72 +17,305 @@
  **********************************************************************************/
 package org.ggolden.expensey.impl;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.ggolden.expensey.expense.ExpenseStorage;
 import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
 
 /**
  * Memory (test) based storage for Expense
+ * 
+ * Safe for concurrent use. Each user's expenses are also indexed by (date, id), newest first, so reads cost only the user's own expenses. All changes to a
+ * user's index are made inside a compute() on that user's entry, so they are serialized per user while reads go lock free.
+ * 
+ * The expenses returned are the ones stored - callers must not modify them, but use updateExpense().
  */
 public class ExpenseStorageMem implements ExpenseStorage
 {
+	/** Keyset order: date then id, newest first. */
+	protected static final Comparator<ExpenseCursor> NEWEST_FIRST = Comparator.comparingLong(ExpenseCursor::getDate)
+			.thenComparingLong(ExpenseCursor::getId).reversed();
+
 	/** To generate the next expense id. TODO: usually this would be done by the database with an autoincrement column. */
 	protected AtomicInteger nextId = new AtomicInteger(1);
 
-	/** authentications: mapped by token to the Authentication */
-	Map<String, Expense> expenses = new HashMap<>();
+	/** expenses: mapped by id */
+	protected final ConcurrentHashMap<String, Expense> expenses = new ConcurrentHashMap<>();
+
+	/** versions: mapped by user, bumped with each change to the user's index */
+	protected final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+
+	/** seq - the user's version when the expense was last changed: mapped by expense id */
+	protected final ConcurrentHashMap<String, Long> seqs = new ConcurrentHashMap<>();
+
+	/** the seq when each expense was deleted from (or moved away from) a user: mapped by user, then expense id */
+	protected final ConcurrentHashMap<String, ConcurrentHashMap<String, Long>> tombstones = new ConcurrentHashMap<>();
+
+	/** expenses: mapped by user, then by (date, id), newest first */
+	protected final ConcurrentHashMap<String, ConcurrentSkipListMap<ExpenseCursor, Expense>> expensesByUser = new ConcurrentHashMap<>();
 
 	@Override
-	public Optional<Expense> createExpense(Float amount, Date date, String description, String userId)
+	public Optional<Expense> createExpense(long amount, String currency, Date date, String description, String userId)
 	{
 		// generate a new ID
 		String id = Integer.toString(nextId.getAndIncrement());
 
 		// create the expense
-		Expense ex = new Expense(id, amount, date, description, userId);
+		Expense ex = new Expense(id, amount, currency, date, description, userId);
 
 		// remember it
 		expenses.put(ex.get_id(), ex);
+		index(ex);
 
 		return Optional.of(ex);
 	}
 
 	@Override
-	public void deleteExpense(Expense expense)
+	public List<Expense> createExpenses(List<Expense> expenses)
 	{
-		// TODO Auto-generated method stub
+		List<Expense> rv = expenses.stream() //
+				.map(e -> createExpense(e.getAmount(), e.getCurrency(), e.getDate(), e.getDescription(), e.getUserId()).get()) //
+				.collect(Collectors.toList());
 
+		return rv;
+	}
+
+	@Override
+	public void deleteExpense(Expense expense)
+	{
+		expenses.computeIfPresent(expense.get_id(), (id, existing) ->
+		{
+			unindex(existing);
+			seqs.remove(id);
+			return null;
+		});
 	}
 
 	@Override
 	public Optional<Expense> readExpense(String id)
 	{
-		// TODO Auto-generated method stub
-		return null;
+		return Optional.ofNullable(expenses.get(id));
 	}
 
 	@Override
-	public List<Expense> readExpensesForUser(String user)
+	public Optional<List<Expense>> readExpensesForUser(String user)
 	{
 		// the expenses for this user
-		List<Expense> rv = expenses.values().stream() //
-				.filter(e -> e.getUserId().equals(user)) //
-				.collect(Collectors.toList());
+		ConcurrentSkipListMap<ExpenseCursor, Expense> forUser = expensesByUser.get(user);
+		if (forUser == null)
+		{
+			return Optional.of(new ArrayList<>());
+		}
+
+		return Optional.of(new ArrayList<>(forUser.values()));
+	}
+
+	@Override
+	public List<Expense> readExpensesForUser(String user, Date from, Date to, Optional<ExpenseCursor> after, int limit)
+	{
+		List<Expense> rv = new ArrayList<>();
+
+		ConcurrentSkipListMap<ExpenseCursor, Expense> forUser = expensesByUser.get(user);
+		if (forUser == null)
+		{
+			return rv;
+		}
+
+		// start at the newest before "to", or just past the cursor, whichever comes later
+		ExpenseCursor start = null;
+		boolean inclusive = true;
+		if (to != null)
+		{
+			start = new ExpenseCursor(to.getTime() - 1, Long.MAX_VALUE);
+		}
+		if (after.isPresent() && ((start == null) || (NEWEST_FIRST.compare(after.get(), start) >= 0)))
+		{
+			start = after.get();
+			inclusive = false;
+		}
+		NavigableMap<ExpenseCursor, Expense> range = (start == null) ? forUser : forUser.tailMap(start, inclusive);
+
+		// take them, newest first, until we reach "from" or the limit
+		for (Expense e : range.values())
+		{
+			if ((rv.size() >= limit) || ((from != null) && (e.getDate().getTime() < from.getTime())))
+			{
+				break;
+			}
+			rv.add(e);
+		}
 
 		return rv;
 	}
 
+	@Override
+	public Optional<ExpenseChanges> readChangesForUser(String user, long since)
+	{
+		// the version first: a change made while we read is then also in the next changes, never missed
+		long version = readVersion(user);
+
+		List<Expense> changed = new ArrayList<>();
+		ConcurrentSkipListMap<ExpenseCursor, Expense> forUser = expensesByUser.get(user);
+		if (forUser != null)
+		{
+			forUser.values().stream().filter(e -> seqs.getOrDefault(e.get_id(), 0L) > since).forEach(changed::add);
+		}
+
+		List<String> deleted = new ArrayList<>();
+		ConcurrentHashMap<String, Long> gone = tombstones.get(user);
+		if (gone != null)
+		{
+			gone.forEach((id, seq) ->
+			{
+				if (seq > since)
+				{
+					deleted.add(id);
+				}
+			});
+		}
+
+		return Optional.of(new ExpenseChanges(changed, deleted, version));
+	}
+
+	@Override
+	public long readVersion(String user)
+	{
+		return versions.getOrDefault(user, 0L);
+	}
+
+	@Override
+	public List<Expense> searchExpensesForUser(String user, String query, int limit)
+	{
+		List<Expense> rv = new ArrayList<>();
+
+		List<String> terms = ExpenseIndex.terms(query);
+		ConcurrentSkipListMap<ExpenseCursor, Expense> forUser = expensesByUser.get(user);
+		if (terms.isEmpty() || (forUser == null))
+		{
+			return rv;
+		}
+
+		// check each, newest first, until we have the limit
+		for (Expense e : forUser.values())
+		{
+			if (rv.size() >= limit)
+			{
+				break;
+			}
+			if (ExpenseIndex.matches(e.getDescription(), terms))
+			{
+				rv.add(e);
+			}
+		}
+
+		return rv;
+	}
+
+	@Override
+	public boolean streamExpensesForUser(String user, Consumer<Expense> consumer)
+	{
+		ConcurrentSkipListMap<ExpenseCursor, Expense> forUser = expensesByUser.get(user);
+		if (forUser != null)
+		{
+			forUser.values().forEach(consumer);
+		}
+
+		return true;
+	}
+
+	@Override
+	public List<ExpenseSummary> summarizeExpensesForUser(String user, Date from, Date to, ExpenseBucket bucket)
+	{
+		ConcurrentSkipListMap<ExpenseCursor, Expense> forUser = expensesByUser.get(user);
+		if (forUser == null)
+		{
+			return new ArrayList<>();
+		}
+
+		// one pass, newest first, from the newest before "to" until we reach "from"
+		// by period, then by currency
+		TreeMap<Long, TreeMap<String, ExpenseSummary>> summaries = new TreeMap<>();
+		NavigableMap<ExpenseCursor, Expense> range = (to == null) ? forUser : forUser.tailMap(new ExpenseCursor(to.getTime() - 1, Long.MAX_VALUE), true);
+		for (Expense e : range.values())
+		{
+			if ((from != null) && (e.getDate().getTime() < from.getTime()))
+			{
+				break;
+			}
+
+			long start = bucket.start(e.getDate().getTime());
+			summaries.computeIfAbsent(start, s -> new TreeMap<>()).computeIfAbsent(e.getCurrency(), c -> ExpenseSummary.of(start, c)).add(e.getAmount());
+		}
+
+		return summaries.values().stream().flatMap(s -> s.values().stream()).collect(Collectors.toList());
+	}
+
 	@Override
 	public void updateExpense(Expense expense)
 	{
-		// TODO Auto-generated method stub
+		// store our own copy, so the caller's later changes do not disturb the index
+		Expense replacement = new Expense(expense.get_id(), expense.getAmount(), expense.getCurrency(), expense.getDate(), expense.getDescription(),
+				expense.getUserId());
+
+		expenses.computeIfPresent(expense.get_id(), (id, existing) ->
+		{
+			unindex(existing);
+			index(replacement);
+			return replacement;
+		});
+	}
 
+	/**
+	 * Add the expense to its user's index.
+	 * 
+	 * @param expense
+	 *            The expense.
+	 */
+	protected void index(Expense expense)
+	{
+		expensesByUser.compute(expense.getUserId(), (user, forUser) ->
+		{
+			ConcurrentSkipListMap<ExpenseCursor, Expense> rv = (forUser == null) ? new ConcurrentSkipListMap<>(NEWEST_FIRST) : forUser;
+			rv.put(ExpenseCursor.of(expense), expense);
+			seqs.put(expense.get_id(), versions.merge(user, 1L, Long::sum));
+			tombstones.computeIfPresent(user, (u, gone) ->
+			{
+				gone.remove(expense.get_id());
+				return gone.isEmpty() ? null : gone;
+			});
+			return rv;
+		});
+	}
+
+	/**
+	 * Remove the expense from its user's index, dropping the user's index if it is left empty.
+	 * 
+	 * @param expense
+	 *            The expense.
+	 */
+	protected void unindex(Expense expense)
+	{
+		expensesByUser.computeIfPresent(expense.getUserId(), (user, forUser) ->
+		{
+			forUser.remove(ExpenseCursor.of(expense));
+			long seq = versions.merge(user, 1L, Long::sum);
+			tombstones.computeIfAbsent(user, u -> new ConcurrentHashMap<>()).put(expense.get_id(), seq);
+			return forUser.isEmpty() ? null : forUser;
+		});
 	}
 }
@@ -0,0 +1,282 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.impl;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * ExpenseStorage that times each call to another ExpenseStorage, and records the sizes of reads and bulk creates. Metrics are named for ExpenseStorage and
+ * the method, so they read the same whichever storage is wrapped.
+ */
+public class ExpenseStorageMetered implements ExpenseStorage
+{
+	/** Times createExpense(). */
+	protected final Timer createExpense;
+
+	/** Times createExpenses(). */
+	protected final Timer createExpenses;
+
+	/** Sizes of the lists given to createExpenses(). */
+	protected final Histogram createExpensesSize;
+
+	/** Times deleteExpense(). */
+	protected final Timer deleteExpense;
+
+	/** Times readChangesForUser(). */
+	protected final Timer readChangesForUser;
+
+	/** Sizes of what is read by readChangesForUser(): changed and deleted. */
+	protected final Histogram readChangesForUserSize;
+
+	/** Times readExpense(). */
+	protected final Timer readExpense;
+
+	/** Times readExpensesForUser(). */
+	protected final Timer readExpensesForUser;
+
+	/** Sizes of what is read by readExpensesForUser(). */
+	protected final Histogram readExpensesForUserSize;
+
+	/** Times the paged readExpensesForUser(). */
+	protected final Timer readPage;
+
+	/** Sizes of what is read by the paged readExpensesForUser(). */
+	protected final Histogram readPageSize;
+
+	/** The wrapped storage. */
+	protected final ExpenseStorage storage;
+
+	/** Times readVersion(). */
+	protected final Timer readVersion;
+
+	/** Times searchExpensesForUser(). */
+	protected final Timer searchExpensesForUser;
+
+	/** Sizes of what is found by searchExpensesForUser(). */
+	protected final Histogram searchExpensesForUserSize;
+
+	/** Times streamExpensesForUser(). */
+	protected final Timer streamExpensesForUser;
+
+	/** Counts streamExpensesForUser() reads that failed part way. */
+	protected final Meter streamExpensesForUserFailure;
+
+	/** Sizes of what is read by streamExpensesForUser(). */
+	protected final Histogram streamExpensesForUserSize;
+
+	/** Times summarizeExpensesForUser(). */
+	protected final Timer summarizeExpensesForUser;
+
+	/** Sizes of what is read by summarizeExpensesForUser(). */
+	protected final Histogram summarizeExpensesForUserSize;
+
+	/** Times updateExpense(). */
+	protected final Timer updateExpense;
+
+	/**
+	 * Wrap this storage.
+	 * 
+	 * @param storage
+	 *            The storage to meter.
+	 * @param metrics
+	 *            Where to register the metrics.
+	 */
+	public ExpenseStorageMetered(ExpenseStorage storage, MetricRegistry metrics)
+	{
+		this.storage = storage;
+
+		this.createExpense = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "createExpense"));
+		this.createExpenses = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "createExpenses"));
+		this.createExpensesSize = metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "createExpenses", "size"));
+		this.deleteExpense = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "deleteExpense"));
+		this.readChangesForUser = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "readChangesForUser"));
+		this.readChangesForUserSize = metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "readChangesForUser", "size"));
+		this.readExpense = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "readExpense"));
+		this.readExpensesForUser = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "readExpensesForUser"));
+		this.readExpensesForUserSize = metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "readExpensesForUser", "size"));
+		this.readPage = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "readPage"));
+		this.readPageSize = metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "readPage", "size"));
+		this.readVersion = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "readVersion"));
+		this.searchExpensesForUser = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "searchExpensesForUser"));
+		this.searchExpensesForUserSize = metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "searchExpensesForUser", "size"));
+		this.streamExpensesForUser = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "streamExpensesForUser"));
+		this.streamExpensesForUserFailure = metrics.meter(MetricRegistry.name(ExpenseStorage.class, "streamExpensesForUser", "failure"));
+		this.streamExpensesForUserSize = metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "streamExpensesForUser", "size"));
+		this.summarizeExpensesForUser = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "summarizeExpensesForUser"));
+		this.summarizeExpensesForUserSize = metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "summarizeExpensesForUser", "size"));
+		this.updateExpense = metrics.timer(MetricRegistry.name(ExpenseStorage.class, "updateExpense"));
+	}
+
+	@Override
+	public Optional<Expense> createExpense(long amount, String currency, Date date, String description, String userId)
+	{
+		try (Timer.Context t = createExpense.time())
+		{
+			return storage.createExpense(amount, currency, date, description, userId);
+		}
+	}
+
+	@Override
+	public List<Expense> createExpenses(List<Expense> expenses)
+	{
+		createExpensesSize.update(expenses.size());
+		try (Timer.Context t = createExpenses.time())
+		{
+			return storage.createExpenses(expenses);
+		}
+	}
+
+	@Override
+	public void deleteExpense(Expense expense)
+	{
+		try (Timer.Context t = deleteExpense.time())
+		{
+			storage.deleteExpense(expense);
+		}
+	}
+
+	@Override
+	public Optional<Expense> readExpense(String id)
+	{
+		try (Timer.Context t = readExpense.time())
+		{
+			return storage.readExpense(id);
+		}
+	}
+
+	@Override
+	public Optional<List<Expense>> readExpensesForUser(String user)
+	{
+		Optional<List<Expense>> rv;
+		try (Timer.Context t = readExpensesForUser.time())
+		{
+			rv = storage.readExpensesForUser(user);
+		}
+
+		rv.ifPresent(expenses -> readExpensesForUserSize.update(expenses.size()));
+		return rv;
+	}
+
+	@Override
+	public List<Expense> readExpensesForUser(String user, Date from, Date to, Optional<ExpenseCursor> after, int limit)
+	{
+		List<Expense> rv;
+		try (Timer.Context t = readPage.time())
+		{
+			rv = storage.readExpensesForUser(user, from, to, after, limit);
+		}
+
+		readPageSize.update(rv.size());
+		return rv;
+	}
+
+	@Override
+	public Optional<ExpenseChanges> readChangesForUser(String user, long since)
+	{
+		Optional<ExpenseChanges> rv;
+		try (Timer.Context t = readChangesForUser.time())
+		{
+			rv = storage.readChangesForUser(user, since);
+		}
+
+		rv.ifPresent(c -> readChangesForUserSize.update(c.getChanged().size() + c.getDeleted().size()));
+		return rv;
+	}
+
+	@Override
+	public long readVersion(String user)
+	{
+		try (Timer.Context t = readVersion.time())
+		{
+			return storage.readVersion(user);
+		}
+	}
+
+	@Override
+	public List<Expense> searchExpensesForUser(String user, String query, int limit)
+	{
+		List<Expense> rv;
+		try (Timer.Context t = searchExpensesForUser.time())
+		{
+			rv = storage.searchExpensesForUser(user, query, limit);
+		}
+
+		searchExpensesForUserSize.update(rv.size());
+		return rv;
+	}
+
+	@Override
+	public boolean streamExpensesForUser(String user, Consumer<Expense> consumer)
+	{
+		int[] count = new int[1];
+		boolean rv;
+		try (Timer.Context t = streamExpensesForUser.time())
+		{
+			rv = storage.streamExpensesForUser(user, e ->
+			{
+				count[0]++;
+				consumer.accept(e);
+			});
+		}
+
+		streamExpensesForUserSize.update(count[0]);
+		if (!rv)
+		{
+			streamExpensesForUserFailure.mark();
+		}
+		return rv;
+	}
+
+	@Override
+	public List<ExpenseSummary> summarizeExpensesForUser(String user, Date from, Date to, ExpenseBucket bucket)
+	{
+		List<ExpenseSummary> rv;
+		try (Timer.Context t = summarizeExpensesForUser.time())
+		{
+			rv = storage.summarizeExpensesForUser(user, from, to, bucket);
+		}
+
+		summarizeExpensesForUserSize.update(rv.size());
+		return rv;
+	}
+
+	@Override
+	public void updateExpense(Expense expense)
+	{
+		try (Timer.Context t = updateExpense.time())
+		{
+			storage.updateExpense(expense);
+		}
+	}
+}
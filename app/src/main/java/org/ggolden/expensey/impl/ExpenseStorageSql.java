@@ -17,116 +17,592 @@
  **********************************************************************************/
 package org.ggolden.expensey.impl;
 
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 
 import org.ggolden.expensey.db.Transactor;
+import org.ggolden.expensey.dw.Configuration;
 import org.ggolden.expensey.expense.ExpenseStorage;
 import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.skife.jdbi.v2.util.BooleanColumnMapper;
 import org.skife.jdbi.v2.util.LongColumnMapper;
+import org.skife.jdbi.v2.util.StringColumnMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * SQL based storage for Expense
+ * 
+ * Each user has a version in expense_version, bumped in the same transaction as each change to their expenses. Each expense's seq is its user's version
+ * as of its last change, and expense_tombstone holds the expenses deleted from each user, with the version as of the delete, so the changes since any
+ * version are those with a greater seq.
+ * 
+ * Each user's daily totals, for each currency, are kept in the expense_daily rollup, recomputed for the days touched in the same transaction as each
+ * write, so summaries read the rollup for whole days and only read expenses for the partial days at the edges of the range.
  */
 public class ExpenseStorageSql implements ExpenseStorage
 {
 	/**
-	 * Make an Expense from results.
+	 * Make an Expense from results. The columns are found by name once for each result set, not for each row. A row's user and currency are the previous
+	 * row's String when equal, as they mostly are, so the Expenses read share them rather than each holding its own copy.
 	 */
-	protected class ExpenseMapper implements ResultSetMapper<Expense>
+	protected static class ExpenseMapper implements ResultSetMapper<Expense>
 	{
+		/** The result set the column indexes were found in. */
+		protected ResultSet columnsOf;
+
+		/** The index of the id column. */
+		protected int id;
+
+		/** The index of the user column. */
+		protected int user;
+
+		/** The index of the date column. */
+		protected int date;
+
+		/** The index of the amount_minor column. */
+		protected int amount;
+
+		/** The index of the currency column. */
+		protected int currency;
+
+		/** The index of the description column. */
+		protected int description;
+
+		/** The previous row's user, shared with the rows after it that have the same. */
+		protected String lastUser;
+
+		/** The previous row's currency, shared with the rows after it that have the same. */
+		protected String lastCurrency;
+
 		@Override
 		public Expense map(int index, ResultSet r, StatementContext ctx) throws SQLException
 		{
-			Expense rv = new Expense(Long.toString(r.getLong("id")), r.getFloat("amount"), Transactor.toDate(r.getLong("date")), r.getString("description"),
-					r.getString("user"));
+			if (r != columnsOf)
+			{
+				id = r.findColumn("id");
+				user = r.findColumn("user");
+				date = r.findColumn("date");
+				amount = r.findColumn("amount_minor");
+				currency = r.findColumn("currency");
+				description = r.findColumn("description");
+				columnsOf = r;
+			}
+
+			String u = r.getString(user);
+			if (u.equals(lastUser))
+			{
+				u = lastUser;
+			} else
+			{
+				lastUser = u;
+			}
+
+			String c = r.getString(currency);
+			if (c.equals(lastCurrency))
+			{
+				c = lastCurrency;
+			} else
+			{
+				lastCurrency = c;
+			}
+
+			Expense rv = new Expense(Long.toString(r.getLong(id)), r.getLong(amount), c, Transactor.toDate(r.getLong(date)), r.getString(description), u);
+			return rv;
+		}
+	}
+
+	/**
+	 * Make an ExpenseSummary for a day from results.
+	 */
+	protected class DaySummaryMapper implements ResultSetMapper<ExpenseSummary>
+	{
+		@Override
+		public ExpenseSummary map(int index, ResultSet r, StatementContext ctx) throws SQLException
+		{
+			int count = r.getInt("n");
+			long total = r.getLong("total");
+			ExpenseSummary rv = new ExpenseSummary(Transactor.toDate(r.getLong("day") * ExpenseBucket.DAY_MS), r.getString("currency"), count, total,
+					r.getLong("low"), r.getLong("high"), (double) total / count);
 			return rv;
 		}
 	}
 
 	final static private Logger logger = LoggerFactory.getLogger(ExpenseServiceImpl.class);
 
+	/** How many users to rebuild the rollup for in each transaction of rebuildRollups(). */
+	protected final static int REBUILD_CHUNK = 100;
+
+	/** How many threads rebuild the rollup at startup, if it is found empty while there are expenses. */
+	protected final static int REBUILD_THREADS = 4;
+
+	/**
+	 * How many rows to ask the driver to fetch at a time when reading or streaming many. Note: MySQL Connector/J fetches in chunks (and streams) only with
+	 * useCursorFetch=true on the URL.
+	 */
+	protected final static int FETCH_SIZE = 500;
+
 	/** DB transaction access. */
 	protected Transactor db;
 
+	/** How many rows to insert per transaction in createExpenses(). */
+	protected final int batchSize;
+
 	@Inject
-	public ExpenseStorageSql(Transactor db)
+	public ExpenseStorageSql(Transactor db, Configuration config)
 	{
 		this.db = db;
+		this.batchSize = config.getBatchSize();
 
 		createTables();
+		backfillRollups();
 	}
 
 	@Override
-	public Optional<Expense> createExpense(Float amount, Date date, String description, String userId)
+	public Optional<Expense> createExpense(long amount, String currency, Date date, String description, String userId)
 	{
 		Transactor.Holder<Expense> rv = new Transactor.Holder<>();
-		rv.value = Optional.of(new Expense(null, amount, date, description, userId));
+		rv.value = Optional.of(new Expense(null, amount, currency, date, description, userId));
 
-		db.transact(h ->
+		boolean success = db.transact(h ->
 		{
-			long id = h.createStatement("insert into expense (user, date, amount, description) values (:user, :date, :amount, :description)") //
+			long seq = bump(h, userId);
+			long id = h.createStatement("insert into expense (user, date, amount_minor, currency, description, seq)"
+					+ " values (:user, :date, :amount, :currency, :description, :seq)") //
 					.bind("user", userId) //
 					.bind("date", Transactor.fromDate(date)) //
 					.bind("amount", amount) //
+					.bind("currency", currency) //
 					.bind("description", description) //
+					.bind("seq", seq) //
 					.executeAndReturnGeneratedKeys(LongColumnMapper.PRIMITIVE) //
 					.first();
 
+			rollup(h, userId, day(date));
+
 			// set the generated id
 			rv.value.get().set_id(Long.toString(id));
 		});
 
-		return rv.value;
+		return success ? rv.value : Optional.empty();
+	}
+
+	@Override
+	public List<Expense> createExpenses(List<Expense> expenses)
+	{
+		List<Expense> rv = new ArrayList<>(expenses.size());
+
+		// each chunk is one batched insert, in its own transaction
+		for (int start = 0; start < expenses.size(); start += batchSize)
+		{
+			List<Expense> chunk = expenses.subList(start, Math.min(start + batchSize, expenses.size()));
+			Transactor.Holder<List<Long>> ids = new Transactor.Holder<>();
+
+			boolean success = db.transact(h ->
+			{
+				// bump each user the chunk touches, once, for the chunk's rows' seq
+				Map<String, Long> seqs = new HashMap<>();
+				for (Expense e : chunk)
+				{
+					seqs.computeIfAbsent(e.getUserId(), u -> bump(h, u));
+				}
+
+				PreparedBatch batch = h.prepareBatch("insert into expense (user, date, amount_minor, currency, description, seq)"
+						+ " values (:user, :date, :amount, :currency, :description, :seq)");
+				for (Expense e : chunk)
+				{
+					batch.add() //
+							.bind("user", e.getUserId()) //
+							.bind("date", Transactor.fromDate(e.getDate())) //
+							.bind("amount", e.getAmount()) //
+							.bind("currency", e.getCurrency()) //
+							.bind("description", e.getDescription()) //
+							.bind("seq", seqs.get(e.getUserId()));
+				}
+
+				// the generated keys come back in batch order - if the driver does not give us one per row, we cannot match them up, so roll back
+				List<Long> generated = batch.executeAndGenerateKeys(LongColumnMapper.PRIMITIVE).list();
+				if (generated.size() != chunk.size())
+				{
+					throw new IllegalStateException("createExpenses: generated keys: " + generated.size() + " for rows: " + chunk.size());
+				}
+
+				// recompute each (user, day) the chunk touched, once
+				Map<String, Set<Long>> days = new HashMap<>();
+				for (Expense e : chunk)
+				{
+					days.computeIfAbsent(e.getUserId(), u -> new HashSet<>()).add(day(e.getDate()));
+				}
+				days.forEach((user, forUser) -> forUser.forEach(day -> rollup(h, user, day)));
+
+				ids.value = Optional.of(generated);
+			});
+
+			if (!success)
+			{
+				logger.warn("createExpenses: stopped after: " + rv.size() + " of: " + expenses.size());
+				break;
+			}
+
+			for (int i = 0; i < chunk.size(); i++)
+			{
+				Expense e = chunk.get(i);
+				rv.add(new Expense(Long.toString(ids.value.get().get(i)), e.getAmount(), e.getCurrency(), e.getDate(), e.getDescription(), e.getUserId()));
+			}
+		}
+
+		return rv;
 	}
 
 	@Override
 	public void deleteExpense(Expense expense)
 	{
-		// TODO Auto-generated method stub
+		Optional<Long> id = id(expense.get_id());
+		if (!id.isPresent())
+			return;
 
+		db.transact(h ->
+		{
+			// the stored expense, not the caller's, says which day to recompute
+			Expense existing = readForUpdate(h, id.get());
+			if (existing == null)
+				return;
+
+			h.createStatement("delete from expense where id=:id").bind("id", id.get()).execute();
+			rollup(h, existing.getUserId(), day(existing.getDate()));
+			tombstone(h, existing.getUserId(), id.get(), bump(h, existing.getUserId()));
+		});
 	}
 
 	@Override
 	public Optional<Expense> readExpense(String id)
 	{
-		// TODO Auto-generated method stub
-		return null;
+		Optional<Long> key = id(id);
+		if (!key.isPresent())
+			return Optional.empty();
+
+		Optional<Expense> rv = db.query(h -> h.createQuery("select id, user, date, amount_minor, currency, description from expense where id=:id") //
+				.bind("id", key.get()) //
+				.map(new ExpenseMapper()) //
+				.first());
+
+		return rv;
+	}
+
+	@Override
+	public Optional<List<Expense>> readExpensesForUser(String user)
+	{
+		return db.query(h -> h.createQuery("select id, user, date, amount_minor, currency, description from expense where user=:user") //
+				.bind("user", user) //
+				.setFetchSize(FETCH_SIZE) //
+				.fetchForward() //
+				.map(new ExpenseMapper()) //
+				.list());
 	}
 
 	@Override
-	public List<Expense> readExpensesForUser(String user)
+	public List<Expense> readExpensesForUser(String user, Date from, Date to, Optional<ExpenseCursor> after, int limit)
 	{
-		Transactor.Holder<List<Expense>> rv = new Transactor.Holder<>();
+		// keyset paging on (user, date, id), covered by the expense_udi index
+		StringBuilder sql = new StringBuilder("select id, user, date, amount_minor, currency, description from expense where user=:user");
+		if (from != null)
+			sql.append(" and date >= :from");
+		if (to != null)
+			sql.append(" and date < :to");
+		if (after.isPresent())
+			sql.append(" and (date < :afterDate or (date = :afterDate and id < :afterId))");
+		sql.append(" order by date desc, id desc limit :limit");
 
-		db.transact(h ->
+		Optional<List<Expense>> rv = db.query(h ->
 		{
-			List<Expense> expenses = h.createQuery("select id, user, date, amount, description from expense where user=:user") //
+			// the page in one fetch, up to FETCH_SIZE rows
+			Query<Map<String, Object>> q = h.createQuery(sql.toString()) //
 					.bind("user", user) //
+					.bind("limit", limit) //
+					.setFetchSize(Math.min(limit, FETCH_SIZE)) //
+					.fetchForward();
+			if (from != null)
+				q.bind("from", Transactor.fromDate(from));
+			if (to != null)
+				q.bind("to", Transactor.fromDate(to));
+			if (after.isPresent())
+				q.bind("afterDate", after.get().getDate()).bind("afterId", after.get().getId());
+
+			return q.map(new ExpenseMapper()).list();
+		});
+
+		return rv.orElse(new ArrayList<>());
+	}
+
+	@Override
+	public Optional<ExpenseChanges> readChangesForUser(String user, long since)
+	{
+		return db.query(h ->
+		{
+			// the version first: a change made while we read is then also in the next changes, never missed
+			long version = Optional.ofNullable(h.createQuery("select version from expense_version where user=:user") //
+					.bind("user", user) //
+					.map(LongColumnMapper.PRIMITIVE) //
+					.first()).orElse(0L);
+
+			List<Expense> changed = h
+					.createQuery("select id, user, date, amount_minor, currency, description from expense where user=:user and seq > :since") //
+					.bind("user", user) //
+					.bind("since", since) //
+					.setFetchSize(FETCH_SIZE) //
+					.fetchForward() //
 					.map(new ExpenseMapper()) //
 					.list();
 
-			rv.value = Optional.ofNullable(expenses);
+			List<String> deleted = h.createQuery("select id from expense_tombstone where user=:user and seq > :since") //
+					.bind("user", user) //
+					.bind("since", since) //
+					.map(StringColumnMapper.INSTANCE) //
+					.list();
+
+			return new ExpenseChanges(changed, deleted, version);
 		});
+	}
+
+	@Override
+	public long readVersion(String user)
+	{
+		Optional<Long> rv = db.query(h -> Optional.ofNullable(h.createQuery("select version from expense_version where user=:user") //
+				.bind("user", user) //
+				.map(LongColumnMapper.PRIMITIVE) //
+				.first()).orElse(0L));
 
-		return rv.value.orElse(new ArrayList<>());
+		// no row is version 0 - a failed read is no version
+		return rv.isPresent() ? rv.get() : -1;
+	}
+
+	@Override
+	public List<Expense> searchExpensesForUser(String user, String query, int limit)
+	{
+		List<String> terms = ExpenseIndex.terms(query);
+		if (terms.isEmpty())
+		{
+			return new ArrayList<>();
+		}
+
+		// the description is not indexed in the database, so check each expense as it streams by - ExpenseStorageIndexed keeps an index, in front of this
+		ExpenseIndex.Newest rv = new ExpenseIndex.Newest(limit);
+		boolean complete = streamExpensesForUser(user, e ->
+		{
+			if (ExpenseIndex.matches(e.getDescription(), terms))
+			{
+				rv.accept(e);
+			}
+		});
+
+		return complete ? rv.list() : new ArrayList<>();
+	}
+
+	@Override
+	public boolean streamExpensesForUser(String user, Consumer<Expense> consumer)
+	{
+		AtomicBoolean delivered = new AtomicBoolean(false);
+		return db.query(h ->
+		{
+			// a retry after expenses were delivered would deliver them again - fail the read instead (not a retryable failure)
+			if (delivered.get())
+			{
+				throw new IllegalStateException("streamExpensesForUser: failed after delivering expenses: " + user);
+			}
+
+			// iterate the results, so only the current row is mapped and held
+			try (ResultIterator<Expense> expenses = h.createQuery("select id, user, date, amount_minor, currency, description from expense where user=:user") //
+					.bind("user", user) //
+					.setFetchSize(FETCH_SIZE) //
+					.fetchForward() //
+					.map(new ExpenseMapper()) //
+					.iterator())
+			{
+				while (expenses.hasNext())
+				{
+					Expense e = expenses.next();
+					delivered.set(true);
+					consumer.accept(e);
+				}
+			}
+
+			return Boolean.TRUE;
+		}).isPresent();
+	}
+
+	@Override
+	public List<ExpenseSummary> summarizeExpensesForUser(String user, Date from, Date to, ExpenseBucket bucket)
+	{
+		// the whole days in the range: from the first day starting at or after "from", to the day "to" falls in
+		Long firstDay = (from == null) ? null : Math.floorDiv(Transactor.fromDate(from) + ExpenseBucket.DAY_MS - 1, ExpenseBucket.DAY_MS);
+		Long endDay = (to == null) ? null : Math.floorDiv(Transactor.fromDate(to), ExpenseBucket.DAY_MS);
+
+		Optional<List<ExpenseSummary>> days = db.query(h ->
+		{
+			// a range within a single day has no whole days
+			if ((firstDay != null) && (endDay != null) && (firstDay >= endDay))
+			{
+				return summarizeRaw(h, user, Transactor.fromDate(from), Transactor.fromDate(to));
+			}
+
+			// the whole days from the rollup, and the partial days at either edge from the expenses
+			List<ExpenseSummary> rv = summarizeRollup(h, user, firstDay, endDay);
+			if ((from != null) && (Transactor.fromDate(from) < firstDay * ExpenseBucket.DAY_MS))
+			{
+				rv.addAll(summarizeRaw(h, user, Transactor.fromDate(from), firstDay * ExpenseBucket.DAY_MS));
+			}
+			if ((to != null) && (Transactor.fromDate(to) > endDay * ExpenseBucket.DAY_MS))
+			{
+				rv.addAll(summarizeRaw(h, user, endDay * ExpenseBucket.DAY_MS, Transactor.fromDate(to)));
+			}
+
+			return rv;
+		});
+
+		// merge the days into the bucket periods, each currency apart
+		TreeMap<Long, TreeMap<String, ExpenseSummary>> rv = new TreeMap<>();
+		for (ExpenseSummary day : days.orElse(new ArrayList<>()))
+		{
+			long start = bucket.start(day.getStart().getTime());
+			rv.computeIfAbsent(start, s -> new TreeMap<>()).computeIfAbsent(day.getCurrency(), c -> ExpenseSummary.of(start, c)).add(day);
+		}
+
+		return rv.values().stream().flatMap(s -> s.values().stream()).collect(Collectors.toList());
 	}
 
 	@Override
 	public void updateExpense(Expense expense)
 	{
-		// TODO Auto-generated method stub
+		Optional<Long> id = id(expense.get_id());
+		if (!id.isPresent())
+			return;
+
+		db.transact(h ->
+		{
+			// updating an unknown expense does not create it
+			Expense existing = readForUpdate(h, id.get());
+			if (existing == null)
+				return;
+
+			h.createStatement("update expense set user=:user, date=:date, amount_minor=:amount, currency=:currency, description=:description, seq=:seq"
+					+ " where id=:id") //
+					.bind("id", id.get()) //
+					.bind("user", expense.getUserId()) //
+					.bind("date", Transactor.fromDate(expense.getDate())) //
+					.bind("amount", expense.getAmount()) //
+					.bind("currency", expense.getCurrency()) //
+					.bind("description", expense.getDescription()) //
+					.bind("seq", bump(h, expense.getUserId())) //
+					.execute();
+
+			// the day it left, and the day it joined
+			rollup(h, existing.getUserId(), day(existing.getDate()));
+			if (!existing.getUserId().equals(expense.getUserId()) || (day(existing.getDate()) != day(expense.getDate())))
+			{
+				rollup(h, expense.getUserId(), day(expense.getDate()));
+			}
+
+			// to the user it left, it is deleted - to the user it joined, it is no longer deleted, if it ever was
+			if (!existing.getUserId().equals(expense.getUserId()))
+			{
+				tombstone(h, existing.getUserId(), id.get(), bump(h, existing.getUserId()));
+				h.createStatement("delete from expense_tombstone where user=:user and id=:id") //
+						.bind("user", expense.getUserId()) //
+						.bind("id", id.get()) //
+						.execute();
+			}
+		});
+	}
+
+	/**
+	 * Rebuild the expense_daily rollup from the expenses, for all users. Users are rebuilt in chunks, each chunk in its own transaction, with the chunks
+	 * spread over threads.
+	 * 
+	 * @param threads
+	 *            How many threads to use.
+	 * @return The number of users rebuilt.
+	 */
+	public int rebuildRollups(int threads)
+	{
+		// every user with expenses or with a (possibly stale) rollup
+		List<String> users = db.query(h -> h.createQuery("select user from expense union select user from expense_daily") //
+				.map(StringColumnMapper.INSTANCE) //
+				.list()).orElse(new ArrayList<>());
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Integer>> futures = new ArrayList<>();
+		try
+		{
+			for (int start = 0; start < users.size(); start += REBUILD_CHUNK)
+			{
+				List<String> chunk = users.subList(start, Math.min(start + REBUILD_CHUNK, users.size()));
+				futures.add(executor.submit(() -> db.transact(h -> chunk.forEach(user -> rebuild(h, user))) ? chunk.size() : 0));
+			}
+
+			int rv = 0;
+			for (Future<Integer> f : futures)
+			{
+				rv += f.get();
+			}
 
+			if (rv < users.size())
+			{
+				logger.warn("rebuildRollups: rebuilt: " + rv + " of: " + users.size() + " users");
+			}
+			return rv;
+		} catch (InterruptedException | ExecutionException e)
+		{
+			logger.warn("rebuildRollups: " + e);
+			return 0;
+		} finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * If the rollup is empty while there are expenses (such as for tables created before the rollup), build it.
+	 */
+	protected void backfillRollups()
+	{
+		boolean needed = db.query(h -> h.createQuery("select (select count(*) from expense_daily) = 0 and (select count(*) from expense) > 0") //
+				.map(BooleanColumnMapper.PRIMITIVE) //
+				.first()).orElse(Boolean.FALSE);
+
+		if (needed)
+		{
+			logger.info("backfillRollups: rebuilt: " + rebuildRollups(REBUILD_THREADS) + " users");
+		}
 	}
 
 	protected void createTables()
@@ -137,10 +613,294 @@ public class ExpenseStorageSql implements ExpenseStorage
 					+ "id bigint unsigned auto_increment not null primary key," //
 					+ "user varchar (255) not null," //
 					+ "date bigint not null," //
-					+ "amount float not null," //
+					+ "amount_minor bigint not null," //
+					+ "currency varchar (3) not null," //
 					+ "description longtext," //
-					+ "key expense_u (user)" //
+					+ "key expense_udi (user, date, id)" //
+					+ ")");
+
+			// for tables created before keyset paging, which had only a (user) key
+			if (!hasIndex(h, "expense", "expense_udi"))
+			{
+				h.execute("create index expense_udi on expense (user, date, id)");
+			}
+
+			// for tables created before fixed-point amounts, which had a float amount
+			migrateAmounts(h);
+
+			// a rollup from before each currency was summed apart is dropped, to be created again and rebuilt from the expenses by backfillRollups()
+			if (!hasColumn(h, "expense_daily", "currency"))
+			{
+				h.execute("drop table if exists expense_daily");
+			}
+
+			// the daily rollup, for each currency: day is the UTC day number, date / 86400000
+			h.execute("create table if not exists expense_daily (" //
+					+ "user varchar (255) not null," //
+					+ "day bigint not null," //
+					+ "currency varchar (3) not null," //
+					+ "n int not null," //
+					+ "total bigint not null," //
+					+ "low bigint not null," //
+					+ "high bigint not null," //
+					+ "primary key (user, day, currency)" //
+					+ ")");
+
+			// each user's version, bumped with each change to their expenses
+			h.execute("create table if not exists expense_version (" //
+					+ "user varchar (255) not null primary key," //
+					+ "version bigint not null" //
+					+ ")");
+
+			// each expense's seq is its user's version when it was last changed - for tables created before change tracking, the rows are all seq 0
+			if (!hasColumn(h, "expense", "seq"))
+			{
+				h.execute("alter table expense add column seq bigint not null default 0");
+			}
+			if (!hasIndex(h, "expense", "expense_us"))
+			{
+				h.execute("create index expense_us on expense (user, seq)");
+			}
+
+			// the expenses deleted from (or moved away from) each user, with the user's version at the time
+			h.execute("create table if not exists expense_tombstone (" //
+					+ "user varchar (255) not null," //
+					+ "id bigint not null," //
+					+ "seq bigint not null," //
+					+ "primary key (user, id)," //
+					+ "key expense_tombstone_us (user, seq)" //
 					+ ")");
 		});
 	}
+
+	/**
+	 * If the expense table has the float amount column from before fixed-point amounts, move the amounts to amount_minor (in cents, of the default
+	 * currency), drop the float column, and drop the rollup (its float totals), to be created again and rebuilt from the expenses by backfillRollups().
+	 * Each step may be done again, so a migration stopped part way is finished at the next start.
+	 */
+	protected void migrateAmounts(Handle h)
+	{
+		if (!hasColumn(h, "expense", "amount"))
+			return;
+
+		logger.info("migrateAmounts: moving float amounts to amount_minor, currency: " + Expense.DEFAULT_CURRENCY);
+
+		if (!hasColumn(h, "expense", "amount_minor"))
+		{
+			h.execute("alter table expense add column amount_minor bigint not null default 0");
+		}
+		if (!hasColumn(h, "expense", "currency"))
+		{
+			h.execute("alter table expense add column currency varchar (3) not null default '" + Expense.DEFAULT_CURRENCY + "'");
+		}
+		h.execute("update expense set amount_minor = round(amount * 100)");
+		h.execute("drop table if exists expense_daily");
+		h.execute("alter table expense drop column amount");
+	}
+
+	/**
+	 * @return true if the table has the column, false if not.
+	 */
+	protected static boolean hasColumn(Handle h, String table, String column)
+	{
+		try
+		{
+			// the metadata is matched as the database stores names: H2 upper case, MySQL as created
+			DatabaseMetaData meta = h.getConnection().getMetaData();
+			if (meta.storesUpperCaseIdentifiers())
+			{
+				table = table.toUpperCase();
+				column = column.toUpperCase();
+			}
+
+			try (ResultSet columns = meta.getColumns(null, null, table, column))
+			{
+				return columns.next();
+			}
+		} catch (SQLException e)
+		{
+			throw new UnableToExecuteStatementException(e, null);
+		}
+	}
+
+	/**
+	 * Check for an index in the metadata, rather than with "create index if not exists", which MySQL does not have.
+	 * 
+	 * @return true if the table has the index, false if not.
+	 */
+	protected static boolean hasIndex(Handle h, String table, String index)
+	{
+		try
+		{
+			// the metadata is matched as the database stores names: H2 upper case, MySQL as created
+			DatabaseMetaData meta = h.getConnection().getMetaData();
+			if (meta.storesUpperCaseIdentifiers())
+			{
+				table = table.toUpperCase();
+			}
+
+			try (ResultSet indexes = meta.getIndexInfo(h.getConnection().getCatalog(), null, table, false, true))
+			{
+				while (indexes.next())
+				{
+					if (index.equalsIgnoreCase(indexes.getString("INDEX_NAME")))
+					{
+						return true;
+					}
+				}
+				return false;
+			}
+		} catch (SQLException e)
+		{
+			throw new UnableToExecuteStatementException(e, null);
+		}
+	}
+
+	/**
+	 * Bump the user's version, as part of a change to their expenses.
+	 * 
+	 * @return The new version, the seq for what is changed.
+	 */
+	protected long bump(Handle h, String user)
+	{
+		h.createStatement("insert into expense_version (user, version) values (:user, 1) on duplicate key update version = version + 1") //
+				.bind("user", user) //
+				.execute();
+
+		// the row is ours (locked) until we commit
+		return h.createQuery("select version from expense_version where user=:user") //
+				.bind("user", user) //
+				.map(LongColumnMapper.PRIMITIVE) //
+				.first();
+	}
+
+	/**
+	 * Record that the expense is gone from the user, as of this seq.
+	 */
+	protected void tombstone(Handle h, String user, long id, long seq)
+	{
+		h.createStatement("insert into expense_tombstone (user, id, seq) values (:user, :id, :seq) on duplicate key update seq = :seq") //
+				.bind("user", user) //
+				.bind("id", id) //
+				.bind("seq", seq) //
+				.execute();
+	}
+
+	/**
+	 * @return The UTC day number of the date.
+	 */
+	protected static long day(Date date)
+	{
+		return Math.floorDiv(Transactor.fromDate(date), ExpenseBucket.DAY_MS);
+	}
+
+	/**
+	 * @return The expense's numeric key, or empty if the id is not one of ours.
+	 */
+	protected static Optional<Long> id(String id)
+	{
+		try
+		{
+			return Optional.of(Long.valueOf(id));
+		} catch (NumberFormatException e)
+		{
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Read an expense, locking it for the rest of the transaction.
+	 * 
+	 * @return The expense, or null if not found.
+	 */
+	protected Expense readForUpdate(Handle h, long id)
+	{
+		return h.createQuery("select id, user, date, amount_minor, currency, description from expense where id=:id for update") //
+				.bind("id", id) //
+				.map(new ExpenseMapper()) //
+				.first();
+	}
+
+	/**
+	 * Recompute the user's rollup rows for the day from the expenses, one for each currency - none if there are no expenses that day. A recompute, rather
+	 * than applying deltas, keeps min and max right on update and delete, and is the same SQL in H2 and MySQL.
+	 */
+	protected void rollup(Handle h, String user, long day)
+	{
+		h.createStatement("delete from expense_daily where user=:user and day=:day") //
+				.bind("user", user) //
+				.bind("day", day) //
+				.execute();
+
+		h.createStatement("insert into expense_daily (user, day, currency, n, total, low, high)"
+				+ " select user, :day, currency, count(*), sum(amount_minor), min(amount_minor), max(amount_minor) from expense"
+				+ " where user=:user and date >= :start and date < :end group by user, currency") //
+				.bind("user", user) //
+				.bind("day", day) //
+				.bind("start", day * ExpenseBucket.DAY_MS) //
+				.bind("end", (day + 1) * ExpenseBucket.DAY_MS) //
+				.execute();
+	}
+
+	/**
+	 * Rebuild all the user's rollup rows from the expenses.
+	 */
+	protected void rebuild(Handle h, String user)
+	{
+		h.createStatement("delete from expense_daily where user=:user").bind("user", user).execute();
+
+		h.createStatement("insert into expense_daily (user, day, currency, n, total, low, high)"
+				+ " select user, floor(date / 86400000.0), currency, count(*), sum(amount_minor), min(amount_minor), max(amount_minor) from expense"
+				+ " where user=:user group by user, floor(date / 86400000.0), currency") //
+				.bind("user", user) //
+				.execute();
+	}
+
+	/**
+	 * Sum the user's expenses by (UTC) day and currency, in the range of dates [from, to).
+	 */
+	protected List<ExpenseSummary> summarizeRaw(Handle h, String user, Long from, Long to)
+	{
+		StringBuilder sql = new StringBuilder("select floor(date / 86400000.0) as day, currency, count(*) as n,"
+				+ " sum(amount_minor) as total, min(amount_minor) as low, max(amount_minor) as high"
+				+ " from expense where user=:user");
+		if (from != null)
+			sql.append(" and date >= :from");
+		if (to != null)
+			sql.append(" and date < :to");
+		sql.append(" group by floor(date / 86400000.0), currency order by day, currency");
+
+		Query<Map<String, Object>> q = h.createQuery(sql.toString()) //
+				.bind("user", user);
+		if (from != null)
+			q.bind("from", from);
+		if (to != null)
+			q.bind("to", to);
+
+		return q.map(new DaySummaryMapper()).list();
+	}
+
+	/**
+	 * Read the user's rollup rows in the range of days [firstDay, endDay).
+	 */
+	protected List<ExpenseSummary> summarizeRollup(Handle h, String user, Long firstDay, Long endDay)
+	{
+		StringBuilder sql = new StringBuilder("select day, currency, n, total, low, high from expense_daily where user=:user");
+		if (firstDay != null)
+			sql.append(" and day >= :firstDay");
+		if (endDay != null)
+			sql.append(" and day < :endDay");
+		sql.append(" order by day, currency");
+
+		Query<Map<String, Object>> q = h.createQuery(sql.toString()) //
+				.bind("user", user);
+		if (firstDay != null)
+			q.bind("firstDay", firstDay);
+		if (endDay != null)
+			q.bind("endDay", endDay);
+
+		// a new list, so the caller may add the edge days
+		return new ArrayList<>(q.map(new DaySummaryMapper()).list());
+	}
 }
+
@@ -0,0 +1,191 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.impl;
+
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * What a storage wrapper keeps in memory for each user, built from the user's expenses (ExpenseStorageColumnar's columns, ExpenseStorageIndexed's index),
+ * as of the user's version.
+ * 
+ * A user's partition is built on first use, by streaming the user's expenses from the wrapped storage, and tagged with the user's version as it was before
+ * the read. Each get checks the user's version first: a partition as of an older version is brought up to date, if the wrapper can do that, or else built
+ * again - so changes made anywhere are seen (those made on another node once the version read shows them: see ExpenseStorageCached's version TTL).
+ * Partitions are bounded by the total expenses held, least recently used users dropped first.
+ * 
+ * Registers, under the wrapper's name, a "loads" meter and "users" and "expenses" gauges. Safe for concurrent use.
+ */
+public class UserPartitions<T>
+{
+	/**
+	 * Brings a user's partition up to date.
+	 */
+	public interface Updater<T>
+	{
+		/**
+		 * @param user
+		 *            The user ID.
+		 * @param partition
+		 *            The partition, as of an older version.
+		 * @param version
+		 *            The user's current version.
+		 * @return true if the partition is now as of the version, false if it should be built again.
+		 */
+		boolean update(String user, T partition, long version);
+	}
+
+	/** How many times to try reading a user's expenses into a partition. */
+	protected final static int LOAD_ATTEMPTS = 2;
+
+	/** Counts users' partitions built (or built again). */
+	protected final Meter loads;
+
+	/** Each user's partition, by user. */
+	protected final Cache<String, T> partitions;
+
+	/** How many expenses a partition holds. */
+	protected final ToIntFunction<T> sizes;
+
+	/** The wrapped storage. */
+	protected final ExpenseStorage storage;
+
+	/** The user's version a partition is as of. */
+	protected final ToLongFunction<T> versions;
+
+	/**
+	 * Set up the partitions.
+	 * 
+	 * @param storage
+	 *            The storage the partitions are built from.
+	 * @param maximumExpenses
+	 *            How many expenses to hold, over all the users.
+	 * @param sizes
+	 *            How many expenses a partition holds.
+	 * @param versions
+	 *            The user's version a partition is as of.
+	 * @param owner
+	 *            The wrapper, whose name the metrics are registered under.
+	 * @param metrics
+	 *            Where to register the load meter and size gauges.
+	 */
+	public UserPartitions(ExpenseStorage storage, long maximumExpenses, ToIntFunction<T> sizes, ToLongFunction<T> versions, Class<?> owner,
+			MetricRegistry metrics)
+	{
+		this.storage = storage;
+		this.sizes = sizes;
+		this.versions = versions;
+
+		// one segment: Guava splits the weight over the segments, and a large user must fit in one
+		this.partitions = CacheBuilder.newBuilder() //
+				.concurrencyLevel(1) //
+				.maximumWeight(maximumExpenses) //
+				.weigher((String user, T p) -> sizes.applyAsInt(p) + 1) //
+				.build();
+
+		this.loads = metrics.meter(MetricRegistry.name(owner, "loads"));
+		metrics.register(MetricRegistry.name(owner, "users"), (Gauge<Long>) partitions::size);
+		metrics.register(MetricRegistry.name(owner, "expenses"), (Gauge<Long>) () -> partitions.asMap().values().stream().mapToLong(sizes::applyAsInt).sum());
+	}
+
+	/**
+	 * Get the user's partition, as of the user's current version, built again if we don't have it as of that version.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param builders
+	 *            Makes a builder, given the user's version, to be given each of the user's expenses.
+	 * @param build
+	 *            Makes the partition from a builder given all of the user's expenses.
+	 * @return The partition, or empty if the user's expenses could not be read.
+	 */
+	public <B extends Consumer<Expense>> Optional<T> get(String user, LongFunction<B> builders, Function<B, T> build)
+	{
+		return get(user, builders, build, (u, p, v) -> false);
+	}
+
+	/**
+	 * Get the user's partition, as of the user's current version: built if we don't have one, or brought up to date.
+	 * 
+	 * @param user
+	 *            The user ID.
+	 * @param builders
+	 *            Makes a builder, given the user's version, to be given each of the user's expenses.
+	 * @param build
+	 *            Makes the partition from a builder given all of the user's expenses.
+	 * @param updater
+	 *            Brings a partition as of an older version up to date, if it can.
+	 * @return The partition, or empty if the user's expenses could not be read.
+	 */
+	public <B extends Consumer<Expense>> Optional<T> get(String user, LongFunction<B> builders, Function<B, T> build, Updater<T> updater)
+	{
+		long version = storage.readVersion(user);
+		if (version < 0)
+		{
+			return Optional.empty();
+		}
+
+		T rv = partitions.getIfPresent(user);
+		if (rv != null)
+		{
+			if (versions.applyAsLong(rv) >= version)
+			{
+				return Optional.of(rv);
+			}
+
+			if (updater.update(user, rv, version))
+			{
+				// put again, so it is weighed as it is now
+				partitions.put(user, rv);
+				return Optional.of(rv);
+			}
+		}
+
+		// read the version first: if it changes while we read, the next get sees the newer version
+		for (int attempt = 1; attempt <= LOAD_ATTEMPTS; attempt++)
+		{
+			// a new builder for each attempt, so nothing from a read that failed part way is kept
+			B builder = builders.apply(version);
+			if (storage.streamExpensesForUser(user, builder))
+			{
+				loads.mark();
+
+				rv = build.apply(builder);
+				partitions.put(user, rv);
+
+				return Optional.of(rv);
+			}
+		}
+
+		return Optional.empty();
+	}
+}
@@ -18,7 +18,10 @@
 
 package org.ggolden.expensey.rest;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 
@@ -26,17 +29,25 @@ import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.CookieParam;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.NewCookie;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.ggolden.expensey.auth.AuthenticationService;
 import org.ggolden.expensey.auth.model.Authentication;
@@ -44,11 +55,25 @@ import org.ggolden.expensey.auth.model.Credentials;
 import org.ggolden.expensey.dw.Configuration;
 import org.ggolden.expensey.expense.ExpenseService;
 import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpensePage;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
+import org.ggolden.expensey.impl.ExpenseEventBus;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
 /**
  * Expensey REST endpoints.
+ * 
+ * Each request is suspended, and its work (which may block on the database) run by the RequestExecutor, off the Jetty threads.
  */
 @Path("/data")
 public class ExpenseyRest
@@ -58,35 +83,356 @@ public class ExpenseyRest
 	protected final AuthenticationService authService;
 	protected final Configuration config;
 	protected final ExpenseService expenseService;
+	protected final ExpenseEventBus events;
+	protected final ObjectMapper mapper;
+	protected final RequestExecutor requests;
+
+	/** Responses that may be kept only by the user's browser, and must be checked with us (If-None-Match) before each use. */
+	protected final static CacheControl REVALIDATE = new CacheControl();
+	static
+	{
+		REVALIDATE.setPrivate(true);
+		REVALIDATE.setNoCache(true);
+	}
+
+	/** For writing one streamed expense at a time - without a flush after each. */
+	protected final ObjectWriter expenseWriter;
 
 	@Inject
-	public ExpenseyRest(Configuration config, AuthenticationService authService, ExpenseService expenseService)
+	public ExpenseyRest(Configuration config, AuthenticationService authService, ExpenseService expenseService, ExpenseEventBus events, ObjectMapper mapper,
+			RequestExecutor requests)
 	{
 		this.config = config;
 		this.authService = authService;
 		this.expenseService = expenseService;
+		this.events = events;
+		this.mapper = mapper;
+		this.requests = requests;
+		this.expenseWriter = mapper.writerFor(Expense.class).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
 
 		logger.info("ExpenseyRsrc()");
 	}
 
+	/**
+	 * Get all the user's expenses, with a weak ETag for their version - if the client's If-None-Match has the current version, answer 304 Not Modified
+	 * without reading them.
+	 * 
+	 * @param authenticationToken
+	 * @param request
+	 *            The request, for its preconditions.
+	 * @param req
+	 * @param response
+	 *            Resumed with the expenses, or 304, or an INTERNAL_SERVER_ERROR without a tag if the expenses could not be read.
+	 */
 	@GET
 	@Path("/expenses")
 	@Produces(MediaType.APPLICATION_JSON)
-	public List<Expense> getExpenses( //
+	public void getExpenses( //
+			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
+			@Context Request request, //
+			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response)
+	{
+		requests.submit(response, () ->
+		{
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
+
+			// TODO: do other security checks before satisfying the request
+
+			// the version, read before the expenses, so a change between the two leaves the client with an older tag, not newer
+			String user = authentication.get().getUser();
+			long version = expenseService.getVersion(user);
+			if (version < 0)
+			{
+				return expenseService.getExpensesForUser(user).map(rv -> Response.ok(rv))
+						.orElse(Response.status(Status.INTERNAL_SERVER_ERROR)).build();
+			}
+
+			// the tag is for this user's version - the same URL serves every user
+			EntityTag tag = new EntityTag(Integer.toHexString(user.hashCode()) + "-" + version, true);
+			Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+			if (notModified != null)
+			{
+				return notModified.cacheControl(REVALIDATE).build();
+			}
+
+			// get the expenses for this user - if that fails, no tag, else the client would keep a failed read as this version
+			Optional<List<Expense>> rv = expenseService.getExpensesForUser(user);
+			if (!rv.isPresent())
+			{
+				return Response.status(Status.INTERNAL_SERVER_ERROR).build();
+			}
+
+			return Response.ok(rv.get()).tag(tag).cacheControl(REVALIDATE).build();
+		});
+	}
+
+	/**
+	 * Get all the user's expenses, streamed as a JSON array as they are read, so the response is never held in memory.
+	 * 
+	 * @param authenticationToken
+	 * @param req
+	 * @param response
+	 *            Resumed with the expenses, as a streamed JSON array.
+	 */
+	@GET
+	@Path("/expenses/stream")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void getExpensesStream( //
 			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
-			@Context HttpServletRequest req)
+			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response)
 	{
-		// authenticate based on the cookie delivered token
-		Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
-		if (!authentication.isPresent())
-			return null;
+		requests.submit(response, () ->
+		{
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
 
-		// TODO: do other security checks before satisfying the request
+			// TODO: do other security checks before satisfying the request
 
-		// get the expenses for this user
-		List<Expense> rv = expenseService.getExpensesForUser(authentication.get().getUser());
+			// resumed from the request thread, so the read and write happen there, too
+			String user = authentication.get().getUser();
+			return (StreamingOutput) output ->
+			{
+				try (JsonGenerator json = mapper.getFactory().createGenerator(output))
+				{
+					// if we fail part way, leave the array open so the client cannot mistake it for a complete list
+					json.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+					json.writeStartArray();
 
-		return rv;
+					// write each expense as it comes from storage
+					boolean complete = expenseService.streamExpensesForUser(user, expense ->
+					{
+						try
+						{
+							expenseWriter.writeValue(json, expense);
+						} catch (IOException e)
+						{
+							throw new UncheckedIOException(e);
+						}
+					});
+
+					// the response is already under way, so all we can do is cut it off
+					if (!complete)
+					{
+						throw new IOException("getExpensesStream: incomplete read for user: " + user);
+					}
+
+					json.writeEndArray();
+				}
+			};
+		});
+	}
+
+	/**
+	 * Get a page of the user's expenses, newest first.
+	 * 
+	 * @param from
+	 *            The earliest date (ms) to include, if any.
+	 * @param to
+	 *            The date (ms) to read up to, not included, if any.
+	 * @param cursor
+	 *            The "next" cursor from the prior page, if any.
+	 * @param limit
+	 *            The page size.
+	 * @param authenticationToken
+	 * @param req
+	 * @param response
+	 *            Resumed with the page of expenses, with a "next" cursor if there may be more.
+	 */
+	@GET
+	@Path("/expenses/page")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void getExpensesPage( //
+			@QueryParam("from") Long from, //
+			@QueryParam("to") Long to, //
+			@QueryParam("cursor") String cursor, //
+			@QueryParam("limit") @DefaultValue("50") int limit, //
+			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
+			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response)
+	{
+		requests.submit(response, () ->
+		{
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
+
+			// TODO: do other security checks before satisfying the request
+
+			// get the page of expenses for this user
+			ExpensePage rv = expenseService.getExpensesForUser(authentication.get().getUser(), (from == null) ? null : new Date(from),
+					(to == null) ? null : new Date(to), cursor, limit);
+
+			return rv;
+		});
+	}
+
+	/**
+	 * Open an event stream (SSE) of the user's new expenses: an "expense" event for each, as it is added, and a "resync" event if any were dropped, when the
+	 * client should read the changes since its version. The stream is held open, without a thread, until the client closes it.
+	 * 
+	 * @param authenticationToken
+	 * @param req
+	 * @param response
+	 *            Resumed with the event stream.
+	 */
+	@GET
+	@Path("/expenses/events")
+	@Produces(SseFeature.SERVER_SENT_EVENTS)
+	public void getExpensesEvents( //
+			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
+			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response)
+	{
+		requests.submit(response, () ->
+		{
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
+
+			// TODO: do other security checks before satisfying the request
+
+			EventOutput rv = new EventOutput();
+			events.subscribe(authentication.get().getUser(), rv);
+
+			return rv;
+		});
+	}
+
+	/**
+	 * Get the changes to the user's expenses since a version: those created or updated, and the IDs of those deleted, with the version to ask from next time.
+	 * Without "since", just the current version, for a client to start from.
+	 * 
+	 * @param since
+	 *            The version the client has, from the last changes (0 for all), if any.
+	 * @param authenticationToken
+	 * @param req
+	 * @param response
+	 *            Resumed with the changes.
+	 */
+	@GET
+	@Path("/expenses/changes")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void getExpensesChanges( //
+			@QueryParam("since") Long since, //
+			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
+			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response)
+	{
+		requests.submit(response, () ->
+		{
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
+
+			// TODO: do other security checks before satisfying the request
+
+			String user = authentication.get().getUser();
+			if (since == null)
+			{
+				long version = expenseService.getVersion(user);
+				return (version < 0) ? null : new ExpenseChanges(new ArrayList<>(), new ArrayList<>(), version);
+			}
+
+			// the changes for this user
+			Optional<ExpenseChanges> rv = expenseService.getChangesForUser(user, since);
+
+			return rv.orElse(null);
+		});
+	}
+
+	/**
+	 * Summarize the user's expenses within a date range, by day, week or month (UTC) - totals, counts, min, max and average for each period with expenses.
+	 * 
+	 * @param from
+	 *            The earliest date to include (ms), if any.
+	 * @param to
+	 *            The date to summarize up to, not included (ms), if any.
+	 * @param bucket
+	 *            The period: "day", "week" or "month".
+	 * @param authenticationToken
+	 * @param req
+	 * @param response
+	 *            Resumed with the summaries, oldest first.
+	 */
+	@GET
+	@Path("/expenses/summary")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void getExpensesSummary( //
+			@QueryParam("from") Long from, //
+			@QueryParam("to") Long to, //
+			@QueryParam("bucket") @DefaultValue("month") String bucket, //
+			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
+			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response)
+	{
+		requests.submit(response, () ->
+		{
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
+
+			// TODO: do other security checks before satisfying the request
+
+			Optional<ExpenseBucket> period = ExpenseBucket.of(bucket);
+			if (!period.isPresent())
+				return null;
+
+			// summarize this user's expenses
+			List<ExpenseSummary> rv = expenseService.summarize(authentication.get().getUser(), (from == null) ? null : new Date(from),
+					(to == null) ? null : new Date(to), period.get());
+
+			return rv;
+		});
+	}
+
+	/**
+	 * Search the user's expenses for those whose descriptions have all the words of the query, each word matching the start of a word in the description, in
+	 * any case.
+	 * 
+	 * @param q
+	 *            The words to search for.
+	 * @param limit
+	 *            The most to find.
+	 * @param authenticationToken
+	 * @param req
+	 * @param response
+	 *            Resumed with the matching expenses, newest first.
+	 */
+	@GET
+	@Path("/expenses/search")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void getExpensesSearch( //
+			@QueryParam("q") String q, //
+			@QueryParam("limit") @DefaultValue("50") int limit, //
+			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
+			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response)
+	{
+		requests.submit(response, () ->
+		{
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
+
+			// TODO: do other security checks before satisfying the request
+
+			// search this user's expenses
+			List<Expense> rv = expenseService.search(authentication.get().getUser(), q, limit);
+
+			return rv;
+		});
 	}
 
 	/**
@@ -96,31 +442,36 @@ public class ExpenseyRest
 	 *            The hello id.
 	 * @param authenticationToken
 	 * @param req
-	 * @return The array of Strings making up the hello.
+	 * @param response
+	 *            Resumed with the array of Strings making up the hello.
 	 */
 	@GET
 	@Path("/hello/{id : \\d+}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public List<String> getPathId(@PathParam("id") Long id, //
+	public void getPathId(@PathParam("id") Long id, //
 			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
-			@Context HttpServletRequest req)
+			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response)
 	{
-		// authenticate based on the cookie delivered token
-		Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
-		if (!authentication.isPresent())
-			return null;
+		requests.submit(response, () ->
+		{
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
 
-		// TODO: do other security checks before satisfying the request
+			// TODO: do other security checks before satisfying the request
 
-		List<String> rv = new ArrayList<>();
+			List<String> rv = new ArrayList<>();
 
-		// satisfy the request
-		rv.add("Hello");
-		rv.add("Gigsters");
-		rv.add("(" + id.toString() + ")");
-		rv.add("!");
+			// satisfy the request
+			rv.add("Hello");
+			rv.add("Gigsters");
+			rv.add("(" + id.toString() + ")");
+			rv.add("!");
 
-		return rv;
+			return rv;
+		});
 	}
 
 	/**
@@ -130,32 +481,85 @@ public class ExpenseyRest
 	 * @param req
 	 * @param expense
 	 *            The expense to post.
-	 * @return The expense posted.
+	 * @param response
+	 *            Resumed with the expense posted.
 	 */
 	@POST
 	@Path("/expenses")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
-	public Expense postExpense( //
+	public void postExpense( //
 			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
 			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response, //
 			Expense expense)
 	{
-		// authenticate based on the cookie delivered token
-		Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
-		if (!authentication.isPresent())
-			return null;
+		requests.submit(response, () ->
+		{
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
+
+			// TODO: do other security checks before satisfying the request
 
-		// TODO: do other security checks before satisfying the request
+			// add the expense for the authenticated user
+			Optional<Expense> added = expenseService.addExpense(expense.getAmount(), expense.getCurrency(), expense.getDate(), expense.getDescription(),
+					authentication.get().getUser());
+			if (!added.isPresent())
+			{
+				return null;
+			}
 
-		// add the expense for the authenticated user
-		Optional<Expense> added = expenseService.addExpense(expense.getAmount(), expense.getDate(), expense.getDescription(), authentication.get().getUser());
-		if (!added.isPresent())
+			return added.get();
+		});
+	}
+
+	/**
+	 * Post many new expenses at once, such as from an imported statement.
+	 * 
+	 * @param authenticationToken
+	 * @param req
+	 * @param expenses
+	 *            The expenses to post.
+	 * @param response
+	 *            Resumed with the expenses posted, with their IDs, in the order given. If posting failed part way, resumed with an INTERNAL_SERVER_ERROR
+	 *            whose body holds the expenses that were posted - the first of those given, in order - so the client may post the rest again.
+	 */
+	@POST
+	@Path("/expenses/batch")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public void postExpenses( //
+			@CookieParam(AuthenticationService.TOKEN) String authenticationToken, //
+			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response, //
+			List<Expense> expenses)
+	{
+		requests.submit(response, () ->
 		{
-			return null;
-		}
+			// authenticate based on the cookie delivered token
+			Optional<Authentication> authentication = authService.authenticateByToken(authenticationToken);
+			if (!authentication.isPresent())
+				return null;
+
+			// TODO: do other security checks before satisfying the request
+
+			// add the expenses for the authenticated user
+			Optional<List<Expense>> added = expenseService.addExpenses(expenses, authentication.get().getUser());
+			if (!added.isPresent())
+			{
+				return null;
+			}
+
+			// if only some were posted, say so, with those that were
+			if (added.get().size() < expenses.size())
+			{
+				return Response.status(Status.INTERNAL_SERVER_ERROR).entity(added.get()).build();
+			}
 
-		return added.get();
+			return added.get();
+		});
 	}
 
 	/**
@@ -167,25 +571,30 @@ public class ExpenseyRest
 	 *            The request.
 	 * @param credentials
 	 *            The user's login credentials.
-	 * @return An OK Response with authentication token cookie if successful, or a FORBIDDEN if not.
+	 * @param response
+	 *            Resumed with an OK Response with authentication token cookie if successful, or a FORBIDDEN if not.
 	 */
 	@POST
 	@Path("/login")
 	@Consumes(MediaType.APPLICATION_JSON)
-	public Response postLogin( //
+	public void postLogin( //
 			@HeaderParam("user-agent") String userAgent, //
 			@Context HttpServletRequest req, //
+			@Suspended AsyncResponse response, //
 			Credentials credentials)
 	{
-		// authenticate these credentials - records the authentication if successful
-		Optional<Authentication> auth = authService.authenticateByCredentials(credentials);
-		if (!auth.isPresent())
+		requests.submit(response, () ->
 		{
-			return Response.status(Status.FORBIDDEN).build();
-		}
+			// authenticate these credentials - records the authentication if successful
+			Optional<Authentication> auth = authService.authenticateByCredentials(credentials);
+			if (!auth.isPresent())
+			{
+				return Response.status(Status.FORBIDDEN).build();
+			}
 
-		// return OK with the authentication's id for a token
-		return Response.ok().entity(auth.get().get_id()).cookie(new NewCookie(AuthenticationService.TOKEN, auth.get().get_id(), "/", null, "", -1, false))
-				.build();
+			// return OK with the authentication's id for a token
+			return Response.ok().entity(auth.get().get_id()).cookie(new NewCookie(AuthenticationService.TOKEN, auth.get().get_id(), "/", null, "", -1, false))
+					.build();
+		});
 	}
 }
@@ -0,0 +1,128 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.rest;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Runs the REST requests' work (which may block on the database) on its own bounded executor, resuming the suspended request with the result, so the Jetty
+ * threads only accept requests and write responses. A request is answered 503 right away if the executor will not take it (its queue is full), and 503 if
+ * it is not done within the timeout - work already started then runs on, but its result is dropped.
+ */
+public class RequestExecutor
+{
+	final static private Logger logger = LoggerFactory.getLogger(RequestExecutor.class);
+
+	/** Seconds for a client to wait before trying again, when we are too busy. */
+	protected final static String RETRY_AFTER = "1";
+
+	/** Runs the work. */
+	protected final Executor executor;
+
+	/** Counts requests refused for a full queue. */
+	protected final Meter rejections;
+
+	/** How long (ms) a request may wait and run. */
+	protected final long timeout;
+
+	/** Counts requests that timed out. */
+	protected final Meter timeouts;
+
+	/**
+	 * Setup to run requests.
+	 * 
+	 * @param executor
+	 *            Runs the work - bounded, so it rejects work when full.
+	 * @param timeout
+	 *            How long (ms) a request may wait and run.
+	 * @param metrics
+	 *            Where to register the rejection and timeout meters.
+	 */
+	public RequestExecutor(Executor executor, long timeout, MetricRegistry metrics)
+	{
+		this.executor = executor;
+		this.timeout = timeout;
+		this.rejections = metrics.meter(MetricRegistry.name(RequestExecutor.class, "rejected"));
+		this.timeouts = metrics.meter(MetricRegistry.name(RequestExecutor.class, "timeout"));
+	}
+
+	/**
+	 * Run the work for this suspended request, resuming it with the work's result (null for no content), or the exception it throws.
+	 * 
+	 * @param response
+	 *            The suspended request.
+	 * @param work
+	 *            The work, giving the response entity (or a Response).
+	 */
+	public <T> void submit(AsyncResponse response, Supplier<T> work)
+	{
+		response.setTimeout(timeout, TimeUnit.MILLISECONDS);
+		response.setTimeoutHandler(r ->
+		{
+			timeouts.mark();
+			r.resume(unavailable());
+		});
+
+		try
+		{
+			executor.execute(() ->
+			{
+				// skip the work if the request already timed out waiting
+				if (response.isDone())
+					return;
+
+				try
+				{
+					// null is no content, as for a synchronous resource method
+					T rv = work.get();
+					response.resume((rv == null) ? Response.noContent().build() : rv);
+				} catch (Throwable t)
+				{
+					response.resume(t);
+				}
+			});
+		} catch (RejectedExecutionException e)
+		{
+			rejections.mark();
+			logger.debug("submit: rejected: " + e.toString());
+			response.resume(unavailable());
+		}
+	}
+
+	/**
+	 * @return A 503, asking the client to try again shortly.
+	 */
+	protected Response unavailable()
+	{
+		return Response.status(Status.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, RETRY_AFTER).build();
+	}
+}
@@ -0,0 +1,47 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+package org.ggolden.expensey.rest;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import io.dropwizard.util.Duration;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * How the REST requests are run, off the Jetty threads: how many at once, how many may wait, and how long one may take before it is answered 503.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RequestPolicy
+{
+	/** How many requests run at once - 0 to match the database pool's maxSize, as each may hold a connection. */
+	@Min(0)
+	protected int threads = 0;
+
+	/** How many requests may wait for a thread - past this, requests are answered 503 right away. */
+	@Min(1)
+	protected int queueSize = 200;
+
+	/** How long a request may wait and run before it is answered 503. */
+	@NotNull
+	protected Duration timeout = Duration.seconds(10);
+}
@@ -18,7 +18,7 @@
 	angular.module("Expensey").controller("Expenses", Expenses);
 
 	// the Expenses controller function
-	function Expenses($log, $http, $q, $location)
+	function Expenses($log, $http, $q, $location, $scope)
 	{
 		// refer to the controller as 'ctrl', matching how we refer to it in the html
 		var ctrl = this;
@@ -30,30 +30,54 @@
 		ctrl.expenses = [];
 		ctrl.noExpenses = false;
 
+		// the cursor to the next page of expenses, null if we have them all
+		ctrl.next = null;
+
+		// the version of the user's expenses we have, to ask for the changes since, null if not known
+		ctrl.version = null;
+
 		ctrl.expense = newExpense();
 		ctrl.adding = false;
 
 		ctrl.addExpense = addExpense;
 		ctrl.invalidExpense = invalidExpense;
+		ctrl.loadMore = loadMore;
 		ctrl.logout = logout;
+		ctrl.major = major;
+		ctrl.minorDigits = minorDigits;
 
 		ctrl.datePickerFormat = "MMM dd, yyyy";
 		ctrl.datePickerOpen = false;
 
 		ctrl.loading = false;
 
+		// how many expenses to read per page
+		var pageSize = 50;
+
 		/** ******************************************************************************************************** */
 
-		// get all expenses for the current user
-		function get_expenses(options)
+		// get a page of expenses for the current user, starting after the cursor (if any)
+		function get_expenses(cursor, options)
 		{
 			if (options.before !== undefined)
 			{
 				options.before();
 			}
 
+			var params =
+			{
+				limit : pageSize
+			};
+			if (cursor != null)
+			{
+				params.cursor = cursor;
+			}
+
 			// the REST API call, creating a promise we will act upon when it succeeds
-			var expensesPromise = $http.get("/api/data/expenses");
+			var expensesPromise = $http.get("/api/data/expenses/page",
+			{
+				params : params
+			});
 
 			// when they are ALL done (note, in this case, we have a single call to make, but in general, it may be many concurrent)
 			$q.all([ expensesPromise ]).then(function(results)
@@ -71,7 +95,8 @@
 					{
 						options.success(
 						{
-							expenses : results[0].data
+							expenses : results[0].data.expenses,
+							next : results[0].data.next
 						});
 					}
 					if (options.after !== undefined)
@@ -94,6 +119,43 @@
 			});
 		}
 
+		// get the changes to the current user's expenses since the version (or, with no version, just the current version)
+		function get_changes(since, options)
+		{
+			var params = {};
+			if (since != null)
+			{
+				params.since = since;
+			}
+
+			$http.get("/api/data/expenses/changes",
+			{
+				params : params
+			}).then(function(response)
+			{
+				if ((response.status == 200) && (response.data))
+				{
+					if (options.success !== undefined)
+					{
+						options.success(response.data);
+					}
+				}
+				else
+				{
+					if (options.failure !== undefined)
+					{
+						options.failure(response);
+					}
+				}
+			}, function(response)
+			{
+				if (options.failure !== undefined)
+				{
+					options.failure(response);
+				}
+			});
+		}
+
 		// post an expense
 		function post_expense(expense, options)
 		{
@@ -137,14 +199,70 @@
 			});
 		}
 
-		// read all expenses for the current user
+		// listen for new expenses pushed from the server (from this or any other device), merging them in - or on a resync, reading the changes
+		function listen()
+		{
+			if (typeof EventSource === "undefined")
+			{
+				return;
+			}
+
+			var events = new EventSource("/api/data/expenses/events");
+			events.addEventListener("expense", function(event)
+			{
+				var expense = JSON.parse(event.data);
+				$scope.$apply(function()
+				{
+					var have = ctrl.allExpenses.some(function(e)
+					{
+						return e.id == expense.id;
+					});
+					if (!have)
+					{
+						ctrl.allExpenses.push(expense);
+						ctrl.expenses = process(ctrl.allExpenses);
+						ctrl.noExpenses = (ctrl.expenses.length == 0);
+					}
+				});
+			});
+			events.addEventListener("resync", function(event)
+			{
+				$scope.$apply(sync);
+			});
+
+			$scope.$on("$destroy", function()
+			{
+				events.close();
+			});
+		}
+
+		// read the current version, then the first page of expenses for the current user - a change between the two is seen again in the next sync
 		function load()
 		{
-			get_expenses(
+			get_changes(null,
+			{
+				success : function(data)
+				{
+					ctrl.version = data.version;
+					loadFirst();
+				},
+				failure : function()
+				{
+					ctrl.version = null;
+					loadFirst();
+				}
+			});
+		}
+
+		// read the first page of expenses for the current user
+		function loadFirst()
+		{
+			get_expenses(null,
 			{
 				success : function(data)
 				{
 					ctrl.allExpenses = data.expenses;
+					ctrl.next = data.next;
 					ctrl.expenses = process(ctrl.allExpenses);
 					ctrl.noExpenses = (ctrl.expenses.length == 0);
 				},
@@ -163,6 +281,88 @@
 			});
 		}
 
+		// read the next page of expenses, adding them to those we have
+		function loadMore()
+		{
+			if (ctrl.next == null)
+			{
+				return;
+			}
+
+			get_expenses(ctrl.next,
+			{
+				success : function(data)
+				{
+					ctrl.allExpenses = ctrl.allExpenses.concat(data.expenses);
+					ctrl.next = data.next;
+					ctrl.expenses = process(ctrl.allExpenses);
+					ctrl.noExpenses = (ctrl.expenses.length == 0);
+				},
+				failure : function()
+				{
+					$log.log("failure");
+				},
+				before : function()
+				{
+					ctrl.loading = true;
+				},
+				after : function()
+				{
+					ctrl.loading = false;
+				}
+			});
+		}
+
+		// merge the changes since the version we have into the expenses we have, or read them all again if we have no version
+		function sync()
+		{
+			if (ctrl.version == null)
+			{
+				load();
+				return;
+			}
+
+			get_changes(ctrl.version,
+			{
+				success : function(data)
+				{
+					// drop those changed or deleted
+					var gone = {};
+					data.changed.forEach(function(e)
+					{
+						gone[e.id] = true;
+					});
+					data.deleted.forEach(function(id)
+					{
+						gone[id] = true;
+					});
+					var merged = ctrl.allExpenses.filter(function(e)
+					{
+						return !gone[e.id];
+					});
+
+					// add those changed - if we have not read all the pages, only those within the pages we have
+					var oldest = (ctrl.allExpenses.length > 0) ? ctrl.allExpenses[ctrl.allExpenses.length - 1].date : null;
+					data.changed.forEach(function(e)
+					{
+						if ((ctrl.next == null) || (oldest == null) || (e.date >= oldest))
+						{
+							merged.push(e);
+						}
+					});
+
+					ctrl.allExpenses = merged;
+					ctrl.version = data.version;
+					ctrl.expenses = process(ctrl.allExpenses);
+					ctrl.noExpenses = (ctrl.expenses.length == 0);
+				},
+				failure : function()
+				{
+					load();
+				}
+			});
+		}
+
 		// process the expenses, selecting those to display, and their order
 		function process(expenses)
 		{
@@ -180,12 +380,18 @@
 
 		function addExpense()
 		{
-			post_expense(ctrl.expense,
+			// the amount is entered in the currency's major units (such as dollars and cents), and sent in its minor units (cents)
+			var expense = angular.extend({}, ctrl.expense,
+			{
+				amount : Math.round(parseFloat(ctrl.expense.amount) * Math.pow(10, minorDigits(ctrl.expense.currency)))
+			});
+
+			post_expense(expense,
 			{
 				success : function(data)
 				{
 					ctrl.expense = newExpense();
-					load();
+					sync();
 				},
 				failure : function()
 				{
@@ -206,7 +412,7 @@
 
 		function invalidExpense()
 		{
-			return ((ctrl.expense.amount == null) || //
+			return ((ctrl.expense.amount == null) || isNaN(parseFloat(ctrl.expense.amount)) || //
 			(ctrl.expense.date == null) || //
 			(ctrl.expense.description == null));
 		}
@@ -217,6 +423,7 @@
 			{
 				id : null,
 				amount : null,
+				currency : "USD",
 				date : new Date(),
 				description : null,
 				userId : null
@@ -225,6 +432,30 @@
 			return rv;
 		}
 
+		// how many digits of the currency's major unit its minor unit is: 2 for USD (cents), 0 for JPY, 3 for KWD
+		function minorDigits(currency)
+		{
+			try
+			{
+				return new Intl.NumberFormat("en-US",
+				{
+					style : "currency",
+					currency : currency
+				}).resolvedOptions().maximumFractionDigits;
+			}
+			catch (e)
+			{
+				// no Intl support for the currency
+				return 2;
+			}
+		}
+
+		// an amount in the currency's minor units, in its major units
+		function major(amount, currency)
+		{
+			return amount / Math.pow(10, minorDigits(currency));
+		}
+
 		function logout()
 		{
 			// TODO: logout on the server
@@ -234,6 +465,7 @@
 		}
 
 		load();
+		listen();
 	}
 
 })();
\ No newline at end of file
@@ -18,12 +18,17 @@
 
 package org.ggolden.expensey.auth;
 
+import java.util.Date;
 import java.util.Optional;
 
 import org.assertj.core.api.Assertions;
 import org.ggolden.expensey.auth.impl.AuthenticationServiceImpl;
+import org.ggolden.expensey.auth.impl.AuthenticationStorageMem;
+import org.ggolden.expensey.auth.impl.CredentialsStorageMem;
+import org.ggolden.expensey.auth.impl.SessionStore;
 import org.ggolden.expensey.auth.model.Authentication;
 import org.ggolden.expensey.auth.model.Credentials;
+import org.ggolden.expensey.dw.Configuration;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -34,7 +39,8 @@ import org.junit.Test;
 public class AuthenticationServiceTest
 {
 	// the service
-	private static final AuthenticationService service = new AuthenticationServiceImpl();
+	private static final AuthenticationService service = new AuthenticationServiceImpl(new SessionStore(new Configuration(), new AuthenticationStorageMem()),
+			new CredentialsStorageMem());
 
 	/**
 	 * Setup each test.
@@ -136,4 +142,25 @@ public class AuthenticationServiceTest
 		auth2 = service.authenticateByToken(auth.get().get_id());
 		Assertions.assertThat(auth2).isEmpty();
 	}
+
+	@Test
+	public void testChangePassword()
+	{
+		// register
+		Credentials newCredentials = new Credentials("Welcome123", "user@outlook.com");
+		Optional<Authentication> auth = service.registerUser(newCredentials);
+		Assertions.assertThat(auth).isNotEmpty();
+
+		// change the password
+		Assertions.assertThat(service.changePassword(auth.get(), "Welcome321")).isTrue();
+
+		// only the new password works
+		Assertions.assertThat(service.authenticateByCredentials(newCredentials)).isEmpty();
+		Assertions.assertThat(service.authenticateByCredentials(new Credentials("Welcome321", newCredentials.getUserId()))).isNotEmpty();
+
+		// an unknown user cannot change a password
+		Assertions.assertThat(service.changePassword(new Authentication("0", new Date(), "user@unknown.com"), "Welcome321")).isFalse();
+
+		service.removeUser(newCredentials.getUserId());
+	}
 }
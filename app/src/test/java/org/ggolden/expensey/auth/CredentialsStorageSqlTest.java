@@ -0,0 +1,150 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth;
+
+import java.util.Optional;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.auth.impl.AuthenticationServiceImpl;
+import org.ggolden.expensey.auth.impl.AuthenticationStorageSql;
+import org.ggolden.expensey.auth.impl.CredentialsStorageSql;
+import org.ggolden.expensey.auth.impl.PasswordHash;
+import org.ggolden.expensey.auth.impl.SessionStore;
+import org.ggolden.expensey.auth.model.Authentication;
+import org.ggolden.expensey.auth.model.Credentials;
+import org.ggolden.expensey.db.Transactor;
+import org.ggolden.expensey.dw.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jdbi.DBIFactory;
+import io.dropwizard.setup.Environment;
+
+/**
+ * Test the AuthenticationService hooked up to the CredentialsStorageSql, through the service.
+ */
+public class CredentialsStorageSqlTest
+{
+	// the service
+	private static AuthenticationService service = null;
+
+	// the db
+	private static Transactor db = null;
+
+	/**
+	 * Setup each test.
+	 */
+	@Before
+	public void setup()
+	{
+		DataSourceFactory database = new DataSourceFactory();
+		database.setDriverClass("org.h2.Driver");
+		database.setUrl("jdbc:h2:mem:CredentialsStorageSqlTest;mode=mysql");
+		database.setUser("u");
+		database.setPassword("p");
+
+		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
+
+		db = new Transactor(new DBIFactory().build(environment, database, "db"));
+
+		service = new AuthenticationServiceImpl(new SessionStore(new Configuration(), new AuthenticationStorageSql(db)), new CredentialsStorageSql(db));
+	}
+
+	@Test
+	public void test()
+	{
+		// the predefined users
+		Optional<Authentication> auth = service.authenticateByCredentials(new Credentials("Welcome123", "user@mac.com"));
+		Assertions.assertThat(auth).isNotEmpty();
+		Assertions.assertThat(auth.get().getUser()).isEqualTo("user@mac.com");
+
+		auth = service.authenticateByCredentials(new Credentials("Welcome1234", "user@mac.com"));
+		Assertions.assertThat(auth).isEmpty();
+	}
+
+	@Test
+	public void testHashed()
+	{
+		// stored as a hash, not the password
+		Optional<Credentials> stored = new CredentialsStorageSql(db).readCredentials("user@mac.com");
+		Assertions.assertThat(stored).isNotEmpty();
+		Assertions.assertThat(stored.get().getPassword()).isNotEqualTo("Welcome123");
+		Assertions.assertThat(PasswordHash.matches("Welcome123", stored.get().getPassword())).isTrue();
+	}
+
+	@Test
+	public void testClearPasswordHashed()
+	{
+		// a clear text password, stored before hashing
+		db.transact(h ->
+		{
+			h.execute("insert into credentials (user, password) values ('user@clear.com', 'Welcome123')");
+		});
+
+		// is hashed on startup, and still works
+		service = new AuthenticationServiceImpl(new SessionStore(new Configuration(), new AuthenticationStorageSql(db)), new CredentialsStorageSql(db));
+		Assertions.assertThat(new CredentialsStorageSql(db).readCredentials("user@clear.com").get().getPassword()).isNotEqualTo("Welcome123");
+		Assertions.assertThat(service.authenticateByCredentials(new Credentials("Welcome123", "user@clear.com"))).isNotEmpty();
+		Assertions.assertThat(service.authenticateByCredentials(new Credentials("Welcome1234", "user@clear.com"))).isEmpty();
+
+		service.removeUser("user@clear.com");
+	}
+
+	@Test
+	public void testNewUser()
+	{
+		Credentials newCredentials = new Credentials("Welcome123", "user@sql.com");
+
+		// register it, but only once
+		Optional<Authentication> auth = service.registerUser(newCredentials);
+		Assertions.assertThat(auth).isNotEmpty();
+		auth = service.registerUser(newCredentials);
+		Assertions.assertThat(auth).isEmpty();
+
+		// change the password
+		Assertions.assertThat(service.changePassword(service.authenticateByCredentials(newCredentials).get(), "Welcome321")).isTrue();
+		Assertions.assertThat(service.authenticateByCredentials(newCredentials)).isEmpty();
+		Assertions.assertThat(service.authenticateByCredentials(new Credentials("Welcome321", newCredentials.getUserId()))).isNotEmpty();
+
+		// remove it
+		service.removeUser(newCredentials.getUserId());
+		Assertions.assertThat(service.authenticateByCredentials(new Credentials("Welcome321", newCredentials.getUserId()))).isEmpty();
+	}
+
+	@Test
+	public void testTokens()
+	{
+		Optional<Authentication> auth = service.authenticateByCredentials(new Credentials("Welcome123", "user@gmail.com"));
+		Assertions.assertThat(auth).isNotEmpty();
+
+		// the token works, and is not guessable from another
+		Assertions.assertThat(service.authenticateByToken(auth.get().get_id())).contains(auth.get());
+		Optional<Authentication> auth2 = service.authenticateByCredentials(new Credentials("Welcome123", "user@gmail.com"));
+		Assertions.assertThat(auth2.get().get_id()).isNotEqualTo(auth.get().get_id());
+
+		// removed, it no longer works
+		service.removeAuthentication(auth.get());
+		Assertions.assertThat(service.authenticateByToken(auth.get().get_id())).isEmpty();
+		Assertions.assertThat(service.authenticateByToken(auth2.get().get_id())).isNotEmpty();
+	}
+}
@@ -0,0 +1,54 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.auth.impl.PasswordHash;
+import org.junit.Test;
+
+/**
+ * Test the PasswordHash.
+ */
+public class PasswordHashTest
+{
+	@Test
+	public void test()
+	{
+		String hash = PasswordHash.of("Welcome123");
+		Assertions.assertThat(hash).doesNotContain("Welcome123");
+		Assertions.assertThat(PasswordHash.isHash(hash)).isTrue();
+		Assertions.assertThat(PasswordHash.matches("Welcome123", hash)).isTrue();
+		Assertions.assertThat(PasswordHash.matches("Welcome1234", hash)).isFalse();
+		Assertions.assertThat(PasswordHash.matches(null, hash)).isFalse();
+
+		// salted: the same password hashes differently each time
+		Assertions.assertThat(PasswordHash.of("Welcome123")).isNotEqualTo(hash);
+	}
+
+	@Test
+	public void testNotHash()
+	{
+		// clear text, or malformed, never matches
+		Assertions.assertThat(PasswordHash.isHash("Welcome123")).isFalse();
+		Assertions.assertThat(PasswordHash.matches("Welcome123", "Welcome123")).isFalse();
+		Assertions.assertThat(PasswordHash.matches("Welcome123", null)).isFalse();
+		Assertions.assertThat(PasswordHash.matches("Welcome123", "pbkdf2:x:y")).isFalse();
+		Assertions.assertThat(PasswordHash.matches("Welcome123", "pbkdf2:1000:!!:!!")).isFalse();
+	}
+}
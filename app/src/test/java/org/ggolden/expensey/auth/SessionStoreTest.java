@@ -0,0 +1,141 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.auth;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.auth.impl.AuthenticationStorageMem;
+import org.ggolden.expensey.auth.impl.SessionStore;
+import org.ggolden.expensey.auth.model.Authentication;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the SessionStore expiration, on a clock we control.
+ */
+public class SessionStoreTest
+{
+	protected static final long TTL = 10000;
+	protected static final long IDLE = 1000;
+	protected static final long CACHE_TTL = 400;
+
+	// the time
+	private final AtomicLong now = new AtomicLong();
+
+	// the storage, shared by the stores
+	private AuthenticationStorage storage = null;
+
+	// the store
+	private SessionStore store = null;
+
+	/**
+	 * Setup each test.
+	 */
+	@Before
+	public void setup()
+	{
+		now.set(0);
+		storage = new AuthenticationStorageMem();
+		store = new SessionStore(storage, TTL, IDLE, CACHE_TTL, 1000, now::get);
+	}
+
+	@Test
+	public void testIdle()
+	{
+		store.put(new Authentication("1", new Date(now.get()), "user@mac.com"));
+		Assertions.assertThat(store.get("1")).isNotEmpty();
+
+		// use keeps it alive
+		now.set(IDLE - 1);
+		Assertions.assertThat(store.get("1")).isNotEmpty();
+		now.set(2 * IDLE - 2);
+		Assertions.assertThat(store.get("1")).isNotEmpty();
+
+		// idle expires it
+		now.set(3 * IDLE);
+		Assertions.assertThat(store.get("1")).isEmpty();
+		Assertions.assertThat(store.getLiveCount()).isEqualTo(0);
+		Assertions.assertThat(store.getEvictionCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testTtl()
+	{
+		store.put(new Authentication("1", new Date(now.get()), "user@mac.com"));
+
+		// keep it from idling, right up to the TTL
+		for (long t = 0; t < TTL; t += IDLE / 2)
+		{
+			now.set(t);
+			Assertions.assertThat(store.get("1")).isNotEmpty();
+		}
+
+		now.set(TTL);
+		Assertions.assertThat(store.get("1")).isEmpty();
+	}
+
+	@Test
+	public void testEvict()
+	{
+		store.put(new Authentication("1", new Date(now.get()), "user@mac.com"));
+		now.set(IDLE - CACHE_TTL / 2);
+		store.put(new Authentication("2", new Date(now.get()), "user@gmail.com"));
+		Assertions.assertThat(store.getLiveCount()).isEqualTo(2);
+
+		// only the first has gone idle
+		now.set(IDLE);
+		Assertions.assertThat(store.evict()).isEqualTo(1);
+		Assertions.assertThat(store.getLiveCount()).isEqualTo(1);
+		Assertions.assertThat(store.getEvictionCount()).isEqualTo(1);
+		Assertions.assertThat(store.get("2")).isNotEmpty();
+
+		// removed sessions are not counted as evicted
+		store.remove("2");
+		Assertions.assertThat(store.getLiveCount()).isEqualTo(0);
+		Assertions.assertThat(store.evict()).isEqualTo(0);
+		Assertions.assertThat(store.getEvictionCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testSharedStorage()
+	{
+		// another node, using the same storage
+		SessionStore other = new SessionStore(storage, TTL, IDLE, CACHE_TTL, 1000, now::get);
+
+		// a session started here works there
+		store.put(new Authentication("1", new Date(now.get()), "user@mac.com"));
+		Assertions.assertThat(other.get("1")).isNotEmpty();
+
+		// use on the other node keeps it from going idle here
+		for (long t = 0; t <= 2 * IDLE; t += IDLE / 4)
+		{
+			now.set(t);
+			Assertions.assertThat(other.get("1")).isNotEmpty();
+		}
+		Assertions.assertThat(store.get("1")).isNotEmpty();
+
+		// ended here, it stops working there once the cached copy is stale
+		store.remove("1");
+		Assertions.assertThat(store.get("1")).isEmpty();
+		now.addAndGet(CACHE_TTL);
+		Assertions.assertThat(other.get("1")).isEmpty();
+	}
+}
@@ -0,0 +1,328 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.db;
+
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jdbi.DBIFactory;
+import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+
+/**
+ * Test the Transactor's retry and backoff.
+ */
+public class TransactorTest
+{
+	// the policy: up to 4 attempts, backoff 1ms doubling to 10ms, within a second
+	private static final RetryPolicy POLICY = new RetryPolicy(4, Duration.milliseconds(1), Duration.milliseconds(10), Duration.seconds(1));
+
+	// the transactor
+	private Transactor db = null;
+
+	// the transactor's database
+	private DBI primary = null;
+
+	// where the transactor counts outcomes
+	private MetricRegistry metrics = null;
+
+	// for async transactions
+	private ScheduledExecutorService scheduler = null;
+
+	/**
+	 * Setup each test.
+	 */
+	@Before
+	public void setup()
+	{
+		DataSourceFactory database = new DataSourceFactory();
+		database.setDriverClass("org.h2.Driver");
+		database.setUrl("jdbc:h2:mem:TransactorTest;mode=mysql");
+		database.setUser("u");
+		database.setPassword("p");
+
+		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
+
+		metrics = new MetricRegistry();
+		scheduler = Executors.newScheduledThreadPool(2);
+		primary = new DBIFactory().build(environment, database, "db");
+		db = new Transactor(primary, POLICY, metrics, scheduler);
+	}
+
+	/**
+	 * Cleanup after each test.
+	 */
+	@After
+	public void teardown() throws InterruptedException
+	{
+		scheduler.shutdown();
+		scheduler.awaitTermination(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testRetryDeadlock()
+	{
+		// deadlocks twice, then succeeds
+		AtomicInteger attempts = new AtomicInteger();
+		boolean rv = db.transact(h ->
+		{
+			if (attempts.incrementAndGet() < 3)
+			{
+				throw deadlock();
+			}
+			h.execute("select 1");
+		});
+
+		Assertions.assertThat(rv).isTrue();
+		Assertions.assertThat(attempts.get()).isEqualTo(3);
+		Assertions.assertThat(meter("retry")).isEqualTo(2);
+		Assertions.assertThat(meter("success")).isEqualTo(1);
+	}
+
+	@Test
+	public void testGiveUp()
+	{
+		// always deadlocks - we stop at the policy's max attempts
+		AtomicInteger attempts = new AtomicInteger();
+		boolean rv = db.transact(h ->
+		{
+			attempts.incrementAndGet();
+			throw deadlock();
+		});
+
+		Assertions.assertThat(rv).isFalse();
+		Assertions.assertThat(attempts.get()).isEqualTo(POLICY.getMaxAttempts());
+		Assertions.assertThat(meter("give-up")).isEqualTo(1);
+	}
+
+	@Test
+	public void testNoRetry()
+	{
+		// a bad statement is not going to get better
+		AtomicInteger attempts = new AtomicInteger();
+		boolean rv = db.transact(h ->
+		{
+			attempts.incrementAndGet();
+			h.execute("select * from no_such_table");
+		});
+
+		Assertions.assertThat(rv).isFalse();
+		Assertions.assertThat(attempts.get()).isEqualTo(1);
+		Assertions.assertThat(meter("retry")).isEqualTo(0);
+		Assertions.assertThat(meter("failure")).isEqualTo(1);
+	}
+
+	@Test
+	public void testAsync() throws Exception
+	{
+		// deadlocks once, then succeeds, retried on the scheduler
+		AtomicInteger attempts = new AtomicInteger();
+		Boolean rv = db.transactAsync(h ->
+		{
+			if (attempts.incrementAndGet() < 2)
+			{
+				throw deadlock();
+			}
+			h.execute("select 1");
+		}).get(1, TimeUnit.SECONDS);
+
+		Assertions.assertThat(rv).isTrue();
+		Assertions.assertThat(attempts.get()).isEqualTo(2);
+		Assertions.assertThat(meter("retry")).isEqualTo(1);
+	}
+
+	@Test
+	public void testInstrumented()
+	{
+		db.instrument(metrics);
+
+		// deadlocks once, then succeeds
+		AtomicInteger attempts = new AtomicInteger();
+		db.transact(h ->
+		{
+			if (attempts.incrementAndGet() < 2)
+			{
+				throw deadlock();
+			}
+			h.execute("select 1");
+		});
+
+		Assertions.assertThat(metrics.timer(MetricRegistry.name(Transactor.class, "attempt")).getCount()).isEqualTo(2);
+		Assertions.assertThat(metrics.timer(MetricRegistry.name(Transactor.class, "wait")).getCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.histogram(MetricRegistry.name(Transactor.class, "attempts")).getSnapshot().getMax()).isEqualTo(2);
+	}
+
+	@Test
+	public void testQuery()
+	{
+		Assertions.assertThat(db.query(h -> h.createQuery("select 42").mapTo(Integer.class).first())).contains(42);
+
+		// autocommit while querying (H2 reports read-only for the database, not the connection, so we can't check that here)
+		Assertions.assertThat(db.query(h -> autoCommit(h))).contains(Boolean.TRUE);
+
+		// and restored after
+		Transactor.Holder<Boolean> after = new Transactor.Holder<>();
+		db.transact(h -> after.value = Optional.of(autoCommit(h)));
+		Assertions.assertThat(after.value).contains(Boolean.FALSE);
+
+		// a failed query is empty, and not retried
+		AtomicInteger attempts = new AtomicInteger();
+		Assertions.assertThat(db.query(h ->
+		{
+			attempts.incrementAndGet();
+			return h.createQuery("select * from no_such_table").list();
+		})).isEmpty();
+		Assertions.assertThat(attempts.get()).isEqualTo(1);
+	}
+
+	@Test
+	public void testReplica()
+	{
+		DBI replica = new DBI("jdbc:h2:mem:TransactorTestReplica;mode=mysql;DB_CLOSE_DELAY=-1", "u", "p");
+		replica.useHandle(h -> h.execute("create table if not exists replicated (id int)"));
+
+		Transactor routed = new Transactor(primary, Optional.of(replica), POLICY, metrics, scheduler);
+
+		// queries go to the replica, transactions to the primary
+		Assertions.assertThat(routed.query(h -> h.createQuery("select count(*) from replicated").mapTo(Integer.class).first())).contains(0);
+		Assertions.assertThat(routed.transact(h -> h.execute("select count(*) from replicated"))).isFalse();
+	}
+
+	@Test
+	public void testLimit() throws Exception
+	{
+		db.limit(1, 0, 10);
+
+		// hold the one connection until released
+		CountDownLatch holding = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Boolean> held = CompletableFuture.supplyAsync(() -> db.transact(h ->
+		{
+			holding.countDown();
+			awaitUninterruptibly(release);
+		}));
+		holding.await(1, TimeUnit.SECONDS);
+
+		// another waits its turn, is retried as for the db down, and gives up
+		Assertions.assertThat(db.getWaitingCount()).isEqualTo(0);
+		Assertions.assertThat(db.transact(h -> h.execute("select 1"))).isFalse();
+		Assertions.assertThat(meter("give-up")).isEqualTo(1);
+
+		// with it released, the connection is free again
+		release.countDown();
+		Assertions.assertThat(held.get(1, TimeUnit.SECONDS)).isTrue();
+		Assertions.assertThat(db.transact(h -> h.execute("select 1"))).isTrue();
+		Assertions.assertThat(db.query(h -> h.createQuery("select 42").mapTo(Integer.class).first())).contains(42);
+	}
+
+	@Test
+	public void testRunOn() throws Exception
+	{
+		// attempts run on the worker, not the scheduler - even the retry
+		AtomicInteger worked = new AtomicInteger();
+		ExecutorService worker = Executors.newCachedThreadPool(r -> new Thread(r, "worker"));
+		db.runOn(r -> worker.execute(() ->
+		{
+			worked.incrementAndGet();
+			r.run();
+		}));
+
+		AtomicInteger attempts = new AtomicInteger();
+		Boolean rv = db.transactAsync(h ->
+		{
+			Assertions.assertThat(Thread.currentThread().getName()).isEqualTo("worker");
+			if (attempts.incrementAndGet() < 2)
+			{
+				throw deadlock();
+			}
+			h.execute("select 1");
+		}).get(1, TimeUnit.SECONDS);
+		worker.shutdown();
+
+		Assertions.assertThat(rv).isTrue();
+		Assertions.assertThat(attempts.get()).isEqualTo(2);
+		Assertions.assertThat(worked.get()).isEqualTo(2);
+	}
+
+	@Test
+	public void testPolicy()
+	{
+		Assertions.assertThat(POLICY.retryable(deadlock())).isTrue();
+		Assertions.assertThat(POLICY.retryable(new UnableToExecuteStatementException(new SQLException("deadlock", "40001", 1213), null))).isTrue();
+		Assertions.assertThat(POLICY.retryable(new UnableToExecuteStatementException(new SQLException("syntax", "42000", 42000), null))).isFalse();
+		Assertions.assertThat(POLICY.retryable(new RuntimeException("oops"))).isFalse();
+
+		// backoff is jittered up to the doubling ceiling, capped at max
+		for (int retry = 1; retry < 10; retry++)
+		{
+			Assertions.assertThat(POLICY.backoff(retry)).isBetween(0L, Math.min(10L, 1L << (retry - 1)));
+		}
+	}
+
+	private UnableToExecuteStatementException deadlock()
+	{
+		return new UnableToExecuteStatementException(new SQLException("deadlock", "40001", 40001), null);
+	}
+
+	private boolean autoCommit(Handle h)
+	{
+		try
+		{
+			return h.getConnection().getAutoCommit();
+		} catch (SQLException e)
+		{
+			throw new UnableToExecuteStatementException(e, null);
+		}
+	}
+
+	private void awaitUninterruptibly(CountDownLatch latch)
+	{
+		try
+		{
+			latch.await(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private long meter(String name)
+	{
+		return metrics.meter(MetricRegistry.name(Transactor.class, name)).getCount();
+	}
+}
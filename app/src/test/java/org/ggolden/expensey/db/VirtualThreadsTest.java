@@ -0,0 +1,94 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.db;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Test VirtualThreads.
+ */
+public class VirtualThreadsTest
+{
+	@Test
+	public void testBounded() throws InterruptedException
+	{
+		ExecutorService pool = Executors.newCachedThreadPool();
+		Executor bounded = VirtualThreads.bounded(pool, 2);
+
+		// two may run
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(3);
+		for (int i = 0; i < 2; i++)
+		{
+			bounded.execute(() ->
+			{
+				await(release);
+				done.countDown();
+			});
+		}
+
+		// the third is refused
+		Assertions.assertThatThrownBy(() -> bounded.execute(done::countDown)).isInstanceOf(RejectedExecutionException.class);
+
+		// until they are done
+		release.countDown();
+		for (long stop = System.currentTimeMillis() + 1000; done.getCount() > 1 && System.currentTimeMillis() < stop;)
+			Thread.sleep(1);
+		bounded.execute(done::countDown);
+		Assertions.assertThat(done.await(1, TimeUnit.SECONDS)).isTrue();
+
+		pool.shutdown();
+	}
+
+	@Test
+	public void testNewExecutor() throws Exception
+	{
+		if (!VirtualThreads.available())
+		{
+			Assertions.assertThatThrownBy(() -> VirtualThreads.newExecutor("test-")).isInstanceOf(UnsupportedOperationException.class);
+			Assume.assumeTrue("virtual threads need Java 21", false);
+		}
+
+		ExecutorService executor = VirtualThreads.newExecutor("test-");
+		Object virtual = executor.submit(() -> Thread.class.getMethod("isVirtual").invoke(Thread.currentThread())).get(1, TimeUnit.SECONDS);
+		executor.shutdown();
+
+		Assertions.assertThat(virtual).isEqualTo(Boolean.TRUE);
+	}
+
+	private void await(CountDownLatch latch)
+	{
+		try
+		{
+			latch.await(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
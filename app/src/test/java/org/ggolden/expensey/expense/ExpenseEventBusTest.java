@@ -0,0 +1,217 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.impl.ExpenseEventBus;
+import org.ggolden.expensey.impl.ExpenseServiceImpl;
+import org.ggolden.expensey.impl.ExpenseStorageMem;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the ExpenseEventBus, fed by the ExpenseService, writing to streams that record what they are sent.
+ */
+public class ExpenseEventBusTest
+{
+	/**
+	 * A stream that records the events written to it, or fails them once the client has "gone".
+	 */
+	protected static class RecordingOutput extends EventOutput
+	{
+		protected final List<OutboundEvent> events = new ArrayList<>();
+		protected boolean gone = false;
+		protected boolean closed = false;
+
+		@Override
+		public void write(OutboundEvent event) throws IOException
+		{
+			if (gone)
+				throw new IOException("gone");
+			events.add(event);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			closed = true;
+		}
+
+		@Override
+		public boolean isClosed()
+		{
+			return closed;
+		}
+
+		protected List<String> names()
+		{
+			List<String> rv = new ArrayList<>();
+			events.forEach(e -> rv.add((e.getComment() != null) ? "#" : e.getName()));
+			return rv;
+		}
+	}
+
+	/**
+	 * A stream whose client has stopped reading: each write blocks until interrupted.
+	 */
+	protected static class StuckOutput extends RecordingOutput
+	{
+		protected final CountDownLatch writing = new CountDownLatch(1);
+
+		@Override
+		public void write(OutboundEvent event) throws IOException
+		{
+			writing.countDown();
+			try
+			{
+				Thread.sleep(Long.MAX_VALUE);
+			} catch (InterruptedException e)
+			{
+				throw new InterruptedIOException("interrupted");
+			}
+		}
+	}
+
+	protected static final String USER = "user@mac.com";
+	protected static final String USER_2 = "user@gmail.com";
+	protected static final SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
+
+	// the bus
+	private ExpenseEventBus bus = null;
+
+	// the service, feeding the bus
+	private ExpenseService service = null;
+
+	// the writer tasks, run when the test says
+	private List<Runnable> writes = null;
+
+	/**
+	 * Setup each test.
+	 */
+	@Before
+	public void setup()
+	{
+		writes = new ArrayList<>();
+		bus = new ExpenseEventBus(writes::add, 2, 1000, 1000);
+		service = new ExpenseServiceImpl(new ExpenseStorageMem(), bus);
+	}
+
+	@Test
+	public void testPublish() throws ParseException
+	{
+		RecordingOutput phone = new RecordingOutput();
+		RecordingOutput laptop = new RecordingOutput();
+		RecordingOutput other = new RecordingOutput();
+		bus.subscribe(USER, phone);
+		bus.subscribe(USER, laptop);
+		bus.subscribe(USER_2, other);
+		Assertions.assertThat(bus.getSubscriberCount()).isEqualTo(3);
+
+		// each of the user's streams gets the new expense, once written
+		Expense lunch = service.addExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER).get();
+		Assertions.assertThat(phone.events).isEmpty();
+		Assertions.assertThat(writes).hasSize(2);
+		writes.forEach(Runnable::run);
+
+		Assertions.assertThat(phone.names()).containsExactly("expense");
+		Assertions.assertThat(phone.events.get(0).getData()).isEqualTo(lunch);
+		Assertions.assertThat(laptop.names()).containsExactly("expense");
+		Assertions.assertThat(other.events).isEmpty();
+	}
+
+	@Test
+	public void testResync() throws ParseException
+	{
+		RecordingOutput slow = new RecordingOutput();
+		bus.subscribe(USER, slow);
+
+		// a buffer of 2 cannot hold 3 - they are dropped for a resync, and the writes after it go out
+		service.addExpense(100, "USD", formatter.parse("20170227"), "Coffee", USER);
+		service.addExpense(200, "USD", formatter.parse("20170227"), "Coffee", USER);
+		service.addExpense(300, "USD", formatter.parse("20170227"), "Coffee", USER);
+		service.addExpense(400, "USD", formatter.parse("20170227"), "Coffee", USER);
+		Assertions.assertThat(bus.getDropCount()).isEqualTo(3);
+
+		// one writer at a time per stream
+		Assertions.assertThat(writes).hasSize(1);
+		writes.get(0).run();
+		Assertions.assertThat(slow.names()).containsExactly("resync", "expense");
+		Assertions.assertThat(((Expense) slow.events.get(1).getData()).getAmount()).isEqualTo(400L);
+	}
+
+	@Test
+	public void testHeartbeat() throws IOException
+	{
+		RecordingOutput idle = new RecordingOutput();
+		RecordingOutput dropped = new RecordingOutput();
+		bus.subscribe(USER, idle);
+		bus.subscribe(USER, dropped);
+
+		bus.heartbeat();
+		writes.forEach(Runnable::run);
+		Assertions.assertThat(idle.names()).containsExactly("#");
+
+		// a client found gone by the heartbeat is closed and forgotten
+		writes.clear();
+		dropped.gone = true;
+		bus.heartbeat();
+		writes.forEach(Runnable::run);
+		Assertions.assertThat(dropped.closed).isTrue();
+		Assertions.assertThat(bus.getSubscriberCount()).isEqualTo(1);
+
+		// all are closed on stop
+		bus.stop();
+		Assertions.assertThat(idle.closed).isTrue();
+		Assertions.assertThat(bus.getSubscriberCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testWriteTimeout() throws Exception
+	{
+		// no write may block at all
+		bus = new ExpenseEventBus(writes::add, 2, 1000, 0);
+		StuckOutput stuck = new StuckOutput();
+		RecordingOutput idle = new RecordingOutput();
+		bus.subscribe(USER, stuck);
+		bus.heartbeat();
+		Thread writer = new Thread(writes.get(0));
+		writer.start();
+		stuck.writing.await();
+		bus.subscribe(USER, idle);
+
+		// the blocked write is interrupted, freeing the writer, and its stream closed and forgotten - not the others
+		bus.expire();
+		writer.join(10000);
+		Assertions.assertThat(writer.isAlive()).isFalse();
+		Assertions.assertThat(stuck.closed).isTrue();
+		Assertions.assertThat(idle.closed).isFalse();
+		Assertions.assertThat(bus.getSubscriberCount()).isEqualTo(1);
+	}
+}
@@ -20,12 +20,19 @@ package org.ggolden.expensey.expense;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.TimeZone;
 
 import org.assertj.core.api.Assertions;
+import org.assertj.core.data.Offset;
 import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpensePage;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
 import org.ggolden.expensey.impl.ExpenseServiceImpl;
 import org.ggolden.expensey.impl.ExpenseStorageMem;
 import org.junit.After;
@@ -42,6 +49,12 @@ public class ExpenseServiceTest
 
 	protected static final String USER = "user@mac.com";
 	protected static final String USER_2 = "user@gmail.com";
+	protected static final String USER_PAGED = "user@paged.com";
+	protected static final String USER_STREAMED = "user@streamed.com";
+	protected static final String USER_BATCH = "user@batch.com";
+	protected static final String USER_SUMMARY = "user@summary.com";
+	protected static final String USER_CURRENCY = "user@currency.com";
+	protected static final String USER_SEARCH = "user@search.com";
 	protected static final SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
 
 	/**
@@ -65,10 +78,10 @@ public class ExpenseServiceTest
 	{
 		// add an expense
 		Date now = new Date();
-		Float amount = 22.22f;
+		long amount = 2222;
 		String description = "Parking at airport";
 		String userId = "user@mac.com";
-		Optional<Expense> expense = service.addExpense(amount, now, description, userId);
+		Optional<Expense> expense = service.addExpense(amount, "USD", now, description, userId);
 		Assertions.assertThat(expense).isNotEmpty();
 		Assertions.assertThat(expense.get().getDate().equals(now));
 		Assertions.assertThat(expense.get().getDescription().equals(description));
@@ -79,32 +92,204 @@ public class ExpenseServiceTest
 	public void testGetExpenses() throws ParseException
 	{
 		// create some expenses for one user
-		Optional<Expense> expense = service.addExpense(23.88f, formatter.parse("20170227"), "Lunch", USER);
+		Optional<Expense> expense = service.addExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER);
 		Assertions.assertThat(expense).isNotEmpty();
-		expense = service.addExpense(120f, formatter.parse("20170227"), "Airport Parking", USER);
+		expense = service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER);
 		Assertions.assertThat(expense).isNotEmpty();
-		expense = service.addExpense(640.95f, formatter.parse("20170227"), "Airplane Ticket", USER);
+		expense = service.addExpense(64095, "USD", formatter.parse("20170227"), "Airplane Ticket", USER);
 		Assertions.assertThat(expense).isNotEmpty();
-		expense = service.addExpense(30f, formatter.parse("20170228"), "Taxi", USER);
+		expense = service.addExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER);
 		Assertions.assertThat(expense).isNotEmpty();
 
 		// create some expenses for another user
-		expense = service.addExpense(120f, formatter.parse("20170227"), "Airport Parking", USER_2);
+		expense = service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER_2);
 		Assertions.assertThat(expense).isNotEmpty();
-		expense = service.addExpense(120f, formatter.parse("20170227"), "Airport Parking", USER_2);
+		expense = service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER_2);
 		Assertions.assertThat(expense).isNotEmpty();
 
 		// get the expenses for the user
-		List<Expense> expenses = service.getExpensesForUser(USER);
+		List<Expense> expenses = service.getExpensesForUser(USER).get();
 		Assertions.assertThat(expenses).isNotNull();
 		Assertions.assertThat(expenses).hasSize(4);
 
-		expenses = service.getExpensesForUser(USER_2);
+		expenses = service.getExpensesForUser(USER_2).get();
 		Assertions.assertThat(expenses).isNotNull();
 		Assertions.assertThat(expenses).hasSize(2);
 
-		expenses = service.getExpensesForUser("");
+		expenses = service.getExpensesForUser("").get();
 		Assertions.assertThat(expenses).isNotNull();
 		Assertions.assertThat(expenses).hasSize(0);
 	}
+
+	@Test
+	public void testGetExpensesPaged() throws ParseException
+	{
+		// create some expenses, two on the same day
+		Expense lunch = service.addExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER_PAGED).get();
+		Expense parking = service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER_PAGED).get();
+		Expense taxi = service.addExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER_PAGED).get();
+		Expense hotel = service.addExpense(30000, "USD", formatter.parse("20170301"), "Hotel", USER_PAGED).get();
+		Expense dinner = service.addExpense(6410, "USD", formatter.parse("20170302"), "Dinner", USER_PAGED).get();
+
+		// page through them all, newest first, ties broken by newest id
+		ExpensePage page = service.getExpensesForUser(USER_PAGED, null, null, null, 2);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(dinner.get_id(), hotel.get_id());
+		Assertions.assertThat(page.getNext()).isNotNull();
+
+		page = service.getExpensesForUser(USER_PAGED, null, null, page.getNext(), 2);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(taxi.get_id(), parking.get_id());
+		Assertions.assertThat(page.getNext()).isNotNull();
+
+		page = service.getExpensesForUser(USER_PAGED, null, null, page.getNext(), 2);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(lunch.get_id());
+		Assertions.assertThat(page.getNext()).isNull();
+
+		// an exact fit has no next page
+		page = service.getExpensesForUser(USER_PAGED, null, null, null, 5);
+		Assertions.assertThat(page.getExpenses()).hasSize(5);
+		Assertions.assertThat(page.getNext()).isNull();
+
+		// limit to a date range
+		page = service.getExpensesForUser(USER_PAGED, formatter.parse("20170228"), formatter.parse("20170302"), null, 10);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(hotel.get_id(), taxi.get_id());
+		Assertions.assertThat(page.getNext()).isNull();
+	}
+
+	@Test
+	public void testStreamExpenses() throws ParseException
+	{
+		service.addExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER_STREAMED);
+		service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER_STREAMED);
+		service.addExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER_STREAMED);
+
+		// stream them
+		List<Expense> streamed = new ArrayList<>();
+		boolean complete = service.streamExpensesForUser(USER_STREAMED, streamed::add);
+		Assertions.assertThat(complete).isTrue();
+		Assertions.assertThat(streamed).hasSize(3);
+		Assertions.assertThat(streamed).extracting("description").containsOnly("Lunch", "Airport Parking", "Taxi");
+
+		// nothing for an unknown user
+		streamed.clear();
+		complete = service.streamExpensesForUser("", streamed::add);
+		Assertions.assertThat(complete).isTrue();
+		Assertions.assertThat(streamed).isEmpty();
+	}
+
+	@Test
+	public void testCurrency() throws ParseException
+	{
+		// the default currency if none is given, and none for a code that is not a currency
+		Assertions.assertThat(service.addExpense(2388, null, formatter.parse("20170227"), "Lunch", USER_CURRENCY).get().getCurrency())
+				.isEqualTo(Expense.DEFAULT_CURRENCY);
+		Assertions.assertThat(service.addExpense(2388, "EUR", formatter.parse("20170227"), "Lunch", USER_CURRENCY).get().getCurrency()).isEqualTo("EUR");
+		Assertions.assertThat(service.addExpense(2388, "XYZ", formatter.parse("20170227"), "Lunch", USER_CURRENCY)).isEmpty();
+		Assertions.assertThat(service.addExpenses(Arrays.asList(new Expense(null, 2388, "XYZ", formatter.parse("20170227"), "Lunch", null)), USER_CURRENCY))
+				.isEmpty();
+
+		// minor units add up exactly - ten dimes are a dollar
+		for (int i = 0; i < 10; i++)
+		{
+			service.addExpense(10, "USD", formatter.parse("20170301"), "Gum", USER_CURRENCY);
+		}
+		Assertions.assertThat(service.summarize(USER_CURRENCY, formatter.parse("20170301"), null, ExpenseBucket.MONTH).get(0).getTotal()).isEqualTo(100L);
+
+		// each currency is summed apart, in order within the period
+		service.addExpense(500, "EUR", formatter.parse("20170302"), "Gum", USER_CURRENCY);
+		List<ExpenseSummary> months = service.summarize(USER_CURRENCY, formatter.parse("20170301"), null, ExpenseBucket.MONTH);
+		Assertions.assertThat(months).extracting(ExpenseSummary::getCurrency).containsExactly("EUR", "USD");
+		Assertions.assertThat(months).extracting(ExpenseSummary::getTotal).containsExactly(500L, 100L);
+	}
+
+	@Test
+	public void testSearch() throws ParseException
+	{
+		Expense taxi = service.addExpense(3000, "USD", formatter.parse("20170227"), "Taxi to the airport", USER_SEARCH).get();
+		Expense parking = service.addExpense(12000, "USD", formatter.parse("20170228"), "Airport Parking", USER_SEARCH).get();
+		service.addExpense(2388, "USD", formatter.parse("20170301"), "Lunch", USER_SEARCH);
+
+		// each word starts a word of the description, in any case, newest first
+		Assertions.assertThat(service.search(USER_SEARCH, "tax air", 10)).containsExactly(taxi);
+		Assertions.assertThat(service.search(USER_SEARCH, "AIRPORT", 10)).containsExactly(parking, taxi);
+		Assertions.assertThat(service.search(USER_SEARCH, "airport", 1)).containsExactly(parking);
+		Assertions.assertThat(service.search(USER_SEARCH, "airports", 10)).isEmpty();
+
+		// only the user's own, and nothing without a query
+		Assertions.assertThat(service.search(USER_CURRENCY, "airport", 10)).isEmpty();
+		Assertions.assertThat(service.search(USER_SEARCH, null, 10)).isEmpty();
+		Assertions.assertThat(service.search(USER_SEARCH, "", 10)).isEmpty();
+	}
+
+	@Test
+	public void testAddExpenses() throws ParseException
+	{
+		List<Expense> statement = new ArrayList<>();
+		statement.add(new Expense(null, 2388, "USD", formatter.parse("20170227"), "Lunch", null));
+		statement.add(new Expense(null, 12000, "USD", formatter.parse("20170227"), "Airport Parking", null));
+		statement.add(new Expense(null, 64095, "USD", formatter.parse("20170227"), "Airplane Ticket", null));
+		statement.add(new Expense(null, 3000, "USD", formatter.parse("20170228"), "Taxi", null));
+		statement.add(new Expense(null, 30000, "USD", formatter.parse("20170301"), "Hotel", null));
+
+		// add them all, and get back IDs in the order given
+		Optional<List<Expense>> added = service.addExpenses(statement, USER_BATCH);
+		Assertions.assertThat(added).isNotEmpty();
+		Assertions.assertThat(added.get()).hasSize(5);
+		Assertions.assertThat(added.get()).extracting("description").containsExactly("Lunch", "Airport Parking", "Airplane Ticket", "Taxi", "Hotel");
+		Assertions.assertThat(added.get()).extracting("userId").containsOnly(USER_BATCH);
+		Assertions.assertThat(added.get()).extracting("_id").doesNotContainNull().doesNotHaveDuplicates();
+
+		// they are stored
+		List<Expense> expenses = service.getExpensesForUser(USER_BATCH).get();
+		Assertions.assertThat(expenses).hasSize(5);
+		Assertions.assertThat(expenses).containsOnlyElementsOf(added.get());
+
+		// an invalid expense rejects the lot
+		statement.add(new Expense(null, 1000, "USD", null, "No Date", null));
+		added = service.addExpenses(statement, USER_BATCH);
+		Assertions.assertThat(added).isEmpty();
+		Assertions.assertThat(service.getExpensesForUser(USER_BATCH).get()).hasSize(5);
+	}
+
+	@Test
+	public void testSummarize() throws ParseException
+	{
+		// summaries are by UTC periods
+		SimpleDateFormat utc = new SimpleDateFormat("yyyyMMdd");
+		utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		// Monday, Monday, Tuesday, Wednesday (Mar 1), the next Monday
+		service.addExpense(2388, "USD", utc.parse("20170227"), "Lunch", USER_SUMMARY);
+		service.addExpense(12000, "USD", utc.parse("20170227"), "Airport Parking", USER_SUMMARY);
+		service.addExpense(3000, "USD", utc.parse("20170228"), "Taxi", USER_SUMMARY);
+		service.addExpense(30000, "USD", utc.parse("20170301"), "Hotel", USER_SUMMARY);
+		service.addExpense(6410, "USD", utc.parse("20170306"), "Dinner", USER_SUMMARY);
+
+		List<ExpenseSummary> days = service.summarize(USER_SUMMARY, null, null, ExpenseBucket.DAY);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getStart).containsExactly(utc.parse("20170227"), utc.parse("20170228"),
+				utc.parse("20170301"), utc.parse("20170306"));
+		Assertions.assertThat(days.get(0).getCount()).isEqualTo(2);
+		Assertions.assertThat(days.get(0).getTotal()).isEqualTo(14388L);
+		Assertions.assertThat(days.get(0).getMin()).isEqualTo(2388L);
+		Assertions.assertThat(days.get(0).getMax()).isEqualTo(12000L);
+		Assertions.assertThat(days.get(0).getAverage()).isCloseTo(7194.0, Offset.offset(0.001));
+
+		List<ExpenseSummary> weeks = service.summarize(USER_SUMMARY, null, null, ExpenseBucket.WEEK);
+		Assertions.assertThat(weeks).extracting(ExpenseSummary::getStart).containsExactly(utc.parse("20170227"), utc.parse("20170306"));
+		Assertions.assertThat(weeks).extracting(ExpenseSummary::getCount).containsExactly(4, 1);
+		Assertions.assertThat(weeks.get(0).getTotal()).isEqualTo(47388L);
+		Assertions.assertThat(weeks.get(0).getMax()).isEqualTo(30000L);
+
+		List<ExpenseSummary> months = service.summarize(USER_SUMMARY, null, null, ExpenseBucket.MONTH);
+		Assertions.assertThat(months).extracting(ExpenseSummary::getStart).containsExactly(utc.parse("20170201"), utc.parse("20170301"));
+		Assertions.assertThat(months).extracting(ExpenseSummary::getCount).containsExactly(3, 2);
+		Assertions.assertThat(months.get(1).getTotal()).isEqualTo(36410L);
+
+		// within a range
+		months = service.summarize(USER_SUMMARY, utc.parse("20170228"), utc.parse("20170306"), ExpenseBucket.MONTH);
+		Assertions.assertThat(months).extracting(ExpenseSummary::getCount).containsExactly(1, 1);
+		Assertions.assertThat(months).extracting(ExpenseSummary::getTotal).containsExactly(3000L, 30000L);
+
+		// nothing for another user
+		Assertions.assertThat(service.summarize("nobody", null, null, ExpenseBucket.DAY)).isEmpty();
+	}
 }
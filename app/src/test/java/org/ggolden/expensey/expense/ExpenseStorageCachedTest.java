@@ -0,0 +1,135 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense;
+
+import java.text.ParseException;
+import java.util.Optional;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.impl.ExpenseCachePolicy;
+import org.ggolden.expensey.impl.ExpenseStorageCached;
+import org.ggolden.expensey.test.ExpenseStorageWrapperTest;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.util.Duration;
+
+/**
+ * Test the ExpenseStorageCached, wrapping an ExpenseStorageMem.
+ */
+public class ExpenseStorageCachedTest extends ExpenseStorageWrapperTest<ExpenseStorage>
+{
+	@Override
+	protected ExpenseStorage wrap(ExpenseStorage stored, MetricRegistry metrics)
+	{
+		// room for 5 expenses (each user's list weighs its expenses plus one)
+		return new ExpenseStorageCached(stored, new ExpenseCachePolicy(true, 5, Duration.minutes(1), Duration.seconds(5)), metrics);
+	}
+
+	@Test
+	public void testReadThrough() throws ParseException
+	{
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER).get();
+
+		// the first read misses, the next hits
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(lunch);
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(lunch);
+		Mockito.verify(stored, Mockito.times(1)).readExpensesForUser(USER);
+		Assertions.assertThat(gauge("hits")).isEqualTo(1L);
+		Assertions.assertThat(gauge("misses")).isEqualTo(1L);
+
+		// what is returned is the caller's to change
+		storage.readExpensesForUser(USER).get().clear();
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(lunch);
+	}
+
+	@Test
+	public void testFailedRead() throws ParseException
+	{
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER).get();
+
+		// a failed read is passed on, not cached - the next read goes to storage again
+		Mockito.doReturn(Optional.empty()).doCallRealMethod().when(stored).readExpensesForUser(USER);
+		Assertions.assertThat(storage.readExpensesForUser(USER)).isEmpty();
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(lunch);
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(lunch);
+		Mockito.verify(stored, Mockito.times(2)).readExpensesForUser(USER);
+	}
+
+	@Test
+	public void testInvalidate() throws ParseException
+	{
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER).get();
+		storage.readExpensesForUser(USER);
+		storage.readExpensesForUser(USER_2);
+
+		// a create is seen
+		Expense taxi = storage.createExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER).get();
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(taxi, lunch);
+
+		// moving an expense to another user changes both users
+		Expense given = new Expense(taxi.get_id(), 3000, "USD", taxi.getDate(), "Taxi", USER_2);
+		storage.updateExpense(given);
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(lunch);
+		Assertions.assertThat(storage.readExpensesForUser(USER_2).get()).containsExactly(given);
+
+		// a delete is seen, even given a copy without the user
+		storage.deleteExpense(new Expense(lunch.get_id(), 0, "USD", null, null, null));
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).isEmpty();
+	}
+
+	@Test
+	public void testVersion() throws ParseException
+	{
+		// read once, then from the cache
+		long version = storage.readVersion(USER);
+		Assertions.assertThat(storage.readVersion(USER)).isEqualTo(version);
+		Mockito.verify(stored, Mockito.times(1)).readVersion(USER);
+
+		// a change is seen
+		storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER);
+		Assertions.assertThat(storage.readVersion(USER)).isGreaterThan(version);
+	}
+
+	@Test
+	public void testEviction() throws ParseException
+	{
+		storage.createExpense(100, "USD", formatter.parse("20170227"), "Coffee", USER);
+		storage.createExpense(200, "USD", formatter.parse("20170227"), "Coffee", USER);
+		storage.createExpense(300, "USD", formatter.parse("20170227"), "Coffee", USER_2);
+		storage.createExpense(400, "USD", formatter.parse("20170227"), "Coffee", USER_2);
+
+		// two users of 3 each do not fit in 5
+		storage.readExpensesForUser(USER);
+		storage.readExpensesForUser(USER_2);
+		Assertions.assertThat(gauge("evictions")).isEqualTo(1L);
+		Assertions.assertThat(gauge("users")).isEqualTo(1L);
+	}
+
+	/**
+	 * @return The value of the cache's gauge.
+	 */
+	protected Object gauge(String name)
+	{
+		return metrics.getGauges().get(MetricRegistry.name(ExpenseStorageCached.class, name)).getValue();
+	}
+}
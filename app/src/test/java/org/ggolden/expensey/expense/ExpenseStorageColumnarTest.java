@@ -0,0 +1,123 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense;
+
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.impl.ExpenseColumnsPolicy;
+import org.ggolden.expensey.impl.ExpenseStorageColumnar;
+import org.ggolden.expensey.test.ExpenseStorageWrapperTest;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Test the ExpenseStorageColumnar, wrapping an ExpenseStorageMem, which it must summarize the same as.
+ */
+public class ExpenseStorageColumnarTest extends ExpenseStorageWrapperTest<ExpenseStorage>
+{
+	@Override
+	protected ExpenseStorage wrap(ExpenseStorage stored, MetricRegistry metrics)
+	{
+		return new ExpenseStorageColumnar(stored, new ExpenseColumnsPolicy(true, 100000), metrics);
+	}
+
+	/**
+	 * Store a year of expenses for each test.
+	 */
+	@Before
+	public void storeExpenses()
+	{
+		storeYear(2000, (i, random) -> "expense " + i);
+	}
+
+	@Test
+	public void testSummarize()
+	{
+		Date[][] ranges = { { null, null }, { new Date(JAN_1 + 40 * ExpenseBucket.DAY_MS + 1234), new Date(JAN_1 + 200 * ExpenseBucket.DAY_MS) },
+				{ null, new Date(JAN_1 + 31 * ExpenseBucket.DAY_MS) }, { new Date(JAN_1 + 300 * ExpenseBucket.DAY_MS), null },
+				{ new Date(JAN_1 + 500 * ExpenseBucket.DAY_MS), null } };
+
+		for (ExpenseBucket bucket : ExpenseBucket.values())
+		{
+			for (Date[] range : ranges)
+			{
+				Assertions.assertThat(storage.summarizeExpensesForUser(USER, range[0], range[1], bucket))
+						.isEqualTo(stored.summarizeExpensesForUser(USER, range[0], range[1], bucket));
+			}
+		}
+
+		// a user with no expenses
+		Assertions.assertThat(storage.summarizeExpensesForUser("nobody", null, null, ExpenseBucket.DAY)).isEmpty();
+	}
+
+	@Test
+	public void testReload()
+	{
+		// loaded once, while unchanged
+		storage.summarizeExpensesForUser(USER, null, null, ExpenseBucket.MONTH);
+		storage.summarizeExpensesForUser(USER, null, null, ExpenseBucket.WEEK);
+		Mockito.verify(stored, Mockito.times(1)).streamExpensesForUser(Mockito.eq(USER), Mockito.any());
+
+		// a change (even made around us) is seen
+		stored.createExpense(100000000, "EUR", new Date(JAN_1), "big", USER);
+		Assertions.assertThat(storage.summarizeExpensesForUser(USER, null, null, ExpenseBucket.MONTH).get(0).getMax()).isEqualTo(100000000L);
+		Mockito.verify(stored, Mockito.times(2)).streamExpensesForUser(Mockito.eq(USER), Mockito.any());
+		Assertions.assertThat(metrics.meter(MetricRegistry.name(ExpenseStorageColumnar.class, "loads")).getCount()).isEqualTo(2);
+	}
+
+	@Test
+	public void testFailedRead()
+	{
+		// the first read fails part way, after delivering some - the second is counted alone
+		Mockito.doAnswer(invocation ->
+		{
+			@SuppressWarnings("unchecked")
+			Consumer<Expense> consumer = (Consumer<Expense>) invocation.getArguments()[1];
+			stored.readExpensesForUser(USER).get().subList(0, 100).forEach(consumer);
+			return false;
+		}).doCallRealMethod().when(stored).streamExpensesForUser(Mockito.eq(USER), Mockito.any());
+
+		Assertions.assertThat(storage.summarizeExpensesForUser(USER, null, null, ExpenseBucket.MONTH))
+				.isEqualTo(stored.summarizeExpensesForUser(USER, null, null, ExpenseBucket.MONTH));
+		Mockito.verify(stored, Mockito.times(2)).streamExpensesForUser(Mockito.eq(USER), Mockito.any());
+	}
+
+	@Test
+	public void testNext()
+	{
+		for (ExpenseBucket bucket : ExpenseBucket.values())
+		{
+			for (long day = 0; day < 800; day++)
+			{
+				long start = bucket.start(JAN_1 + day * ExpenseBucket.DAY_MS);
+				long next = bucket.next(start);
+				Assertions.assertThat(bucket.start(next)).isEqualTo(next);
+				Assertions.assertThat(bucket.start(next - 1)).isEqualTo(start);
+			}
+		}
+	}
+}
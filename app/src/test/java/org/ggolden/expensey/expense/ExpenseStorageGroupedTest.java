@@ -0,0 +1,122 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense;
+
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.impl.ExpenseGroupCommitPolicy;
+import org.ggolden.expensey.impl.ExpenseStorageGrouped;
+import org.ggolden.expensey.test.ExpenseStorageWrapperTest;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.util.Duration;
+
+/**
+ * Test the ExpenseStorageGrouped, wrapping an ExpenseStorageMem.
+ */
+public class ExpenseStorageGroupedTest extends ExpenseStorageWrapperTest<ExpenseStorageGrouped>
+{
+	@Override
+	protected ExpenseStorageGrouped wrap(ExpenseStorage stored, MetricRegistry metrics)
+	{
+		// groups of up to 10, waiting up to 50ms to fill
+		ExpenseStorageGrouped rv = new ExpenseStorageGrouped(stored, new ExpenseGroupCommitPolicy(true, 10, Duration.milliseconds(50), 100), metrics);
+		rv.start();
+
+		return rv;
+	}
+
+	/**
+	 * Cleanup after each test.
+	 */
+	@After
+	public void teardown() throws InterruptedException
+	{
+		storage.stop();
+	}
+
+	@Test
+	public void testGrouped() throws Exception
+	{
+		// many at once are created in groups, each caller getting its own expense back
+		ExecutorService callers = Executors.newFixedThreadPool(30);
+		List<CompletableFuture<Optional<Expense>>> created = IntStream.range(0, 30)
+				.mapToObj(i -> CompletableFuture.supplyAsync(() -> storage.createExpense(i, "USD", new Date(), "expense " + i, USER), callers))
+				.collect(Collectors.toList());
+
+		Set<String> ids = created.stream().map(f -> f.join().get().get_id()).collect(Collectors.toSet());
+		for (int i = 0; i < created.size(); i++)
+		{
+			Assertions.assertThat(created.get(i).get().get().getDescription()).isEqualTo("expense " + i);
+		}
+		callers.shutdown();
+
+		Assertions.assertThat(ids).hasSize(30);
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).hasSize(30);
+
+		// fewer commits than creates, none bigger than the group size
+		Assertions.assertThat(metrics.histogram(MetricRegistry.name(ExpenseStorageGrouped.class, "group-size")).getSnapshot().getMax()).isLessThanOrEqualTo(10);
+		Mockito.verify(stored, Mockito.atMost(15)).createExpenses(Mockito.anyList());
+		Assertions.assertThat(metrics.meter(MetricRegistry.name(ExpenseStorageGrouped.class, "fallback")).getCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void testFallback() throws ParseException
+	{
+		// the group fails, so it is created one by one
+		Mockito.doReturn(Collections.emptyList()).when(stored).createExpenses(Mockito.anyList());
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER).get();
+
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(lunch);
+		Assertions.assertThat(metrics.meter(MetricRegistry.name(ExpenseStorageGrouped.class, "fallback")).getCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void testStopped() throws Exception
+	{
+		// what is waiting at stop is still created
+		CompletableFuture<Optional<Expense>> waiting = CompletableFuture
+				.supplyAsync(() -> storage.createExpense(2388, "USD", new Date(), "Lunch", USER));
+		Thread.sleep(10);
+		storage.stop();
+		Assertions.assertThat(waiting.get(1, TimeUnit.SECONDS)).isPresent();
+
+		// once stopped, each is created on its own
+		Assertions.assertThat(storage.createExpense(3000, "USD", new Date(), "Taxi", USER)).isPresent();
+		Mockito.verify(stored).createExpense(Mockito.eq(3000L), Mockito.eq("USD"), Mockito.any(), Mockito.eq("Taxi"), Mockito.eq(USER));
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).hasSize(2);
+	}
+}
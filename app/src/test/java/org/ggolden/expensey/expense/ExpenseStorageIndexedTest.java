@@ -0,0 +1,148 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.impl.ExpenseIndex;
+import org.ggolden.expensey.impl.ExpenseSearchPolicy;
+import org.ggolden.expensey.impl.ExpenseStorageIndexed;
+import org.ggolden.expensey.test.ExpenseStorageWrapperTest;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Test the ExpenseStorageIndexed, wrapping an ExpenseStorageMem, which it must search the same as.
+ */
+public class ExpenseStorageIndexedTest extends ExpenseStorageWrapperTest<ExpenseStorage>
+{
+	/** The words the descriptions are made of. */
+	protected static final String[] WORDS = { "Taxi", "to", "the", "airport", "lunch", "with", "client", "hotel", "Airfare", "taxes", "dinner", "coffee",
+			"parking", "train", "tickets", "office", "supplies" };
+
+	@Override
+	protected ExpenseStorage wrap(ExpenseStorage stored, MetricRegistry metrics)
+	{
+		return new ExpenseStorageIndexed(stored, new ExpenseSearchPolicy(true, 100000), metrics);
+	}
+
+	/**
+	 * Store a year of expenses for each test, with descriptions of a few random words.
+	 */
+	@Before
+	public void storeExpenses()
+	{
+		storeYear(2000, (i, random) ->
+		{
+			StringBuilder description = new StringBuilder();
+			for (int w = 0; w < 1 + random.nextInt(4); w++)
+			{
+				description.append(WORDS[random.nextInt(WORDS.length)]).append((w % 2 == 0) ? " " : ", ");
+			}
+			return description.toString().trim();
+		});
+	}
+
+	@Test
+	public void testSearch()
+	{
+		String[] queries = { "taxi", "TAX", "tax air", "air tax", "t", "lunch client", "the the", "coffee, tickets!", "hotel train parking office", "xyz",
+				"taxi xyz" };
+		for (String query : queries)
+		{
+			for (int limit : new int[] { 1, 10, 1000, 10000 })
+			{
+				Assertions.assertThat(storage.searchExpensesForUser(USER, query, limit)).isEqualTo(stored.searchExpensesForUser(USER, query, limit));
+			}
+		}
+
+		// the words of the query each start a word of the description
+		List<Expense> found = storage.searchExpensesForUser(USER, "tax air", 10000);
+		Assertions.assertThat(found).isNotEmpty();
+		Assertions.assertThat(found).allMatch(e -> ExpenseIndex.matches(e.getDescription(), ExpenseIndex.terms("tax air")));
+		Assertions.assertThat(found).allMatch(e -> e.getUserId().equals(USER));
+
+		// no words, or no such user
+		Assertions.assertThat(storage.searchExpensesForUser(USER, " - ", 10)).isEmpty();
+		Assertions.assertThat(storage.searchExpensesForUser("nobody", "taxi", 10)).isEmpty();
+
+		// built once, while unchanged
+		Mockito.verify(stored, Mockito.times(1)).streamExpensesForUser(Mockito.eq(USER), Mockito.any());
+	}
+
+	@Test
+	public void testChanges()
+	{
+		Assertions.assertThat(storage.searchExpensesForUser(USER, "zebra", 10)).isEmpty();
+
+		// created, updated and deleted around us are seen by the next search
+		Expense created = stored.createExpense(500, "USD", new Date(JAN_1), "Zebra rides", USER).get();
+		Assertions.assertThat(storage.searchExpensesForUser(USER, "zebra", 10)).containsExactly(created);
+
+		Expense updated = new Expense(created.get_id(), 500, "USD", new Date(JAN_1), "Camel rides", USER);
+		stored.updateExpense(updated);
+		Assertions.assertThat(storage.searchExpensesForUser(USER, "zebra", 10)).isEmpty();
+		Assertions.assertThat(storage.searchExpensesForUser(USER, "camel", 10)).containsExactly(updated);
+
+		stored.deleteExpense(updated);
+		Assertions.assertThat(storage.searchExpensesForUser(USER, "camel", 10)).isEmpty();
+
+		// brought up to date from the changes, not built again
+		Mockito.verify(stored, Mockito.times(1)).streamExpensesForUser(Mockito.eq(USER), Mockito.any());
+		Assertions.assertThat(metrics.meter(MetricRegistry.name(ExpenseStorageIndexed.class, "loads")).getCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.meter(MetricRegistry.name(ExpenseStorageIndexed.class, "updates")).getCount()).isEqualTo(3);
+	}
+
+	@Test
+	public void testCompact()
+	{
+		ExpenseIndex index = new ExpenseIndex(0);
+		List<Expense> expenses = new ArrayList<>();
+		for (int i = 0; i < 5000; i++)
+		{
+			Expense e = new Expense(String.format("%05d", i), i, "USD", new Date(JAN_1 + i * 1000L), (i % 2 == 0) ? "even taxi" : "odd taxi", USER);
+			expenses.add(e);
+			index.add(e);
+		}
+
+		// changed over and over - leaving empty slots, compacted along the way
+		for (int round = 0; round < 3; round++)
+		{
+			for (Expense e : expenses)
+			{
+				index.add(e);
+			}
+		}
+		for (int i = 0; i < 4000; i++)
+		{
+			index.remove(expenses.get(i).get_id());
+		}
+
+		Assertions.assertThat(index.size()).isEqualTo(1000);
+		Assertions.assertThat(index.search(ExpenseIndex.terms("odd tax"), 10000)).hasSize(500);
+		Assertions.assertThat(index.search(ExpenseIndex.terms("taxi"), 2)).containsExactly(expenses.get(4999), expenses.get(4998));
+	}
+}
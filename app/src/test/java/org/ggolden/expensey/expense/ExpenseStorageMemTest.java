@@ -0,0 +1,192 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpenseCursor;
+import org.ggolden.expensey.impl.ExpenseStorageMem;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the ExpenseStorageMem directly, for the CRUD the service does not (yet) expose.
+ */
+public class ExpenseStorageMemTest
+{
+	protected static final String USER = "user@mac.com";
+	protected static final String USER_2 = "user@gmail.com";
+	protected static final SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
+
+	// the storage
+	private ExpenseStorage storage = null;
+
+	/**
+	 * Setup each test.
+	 */
+	@Before
+	public void setup()
+	{
+		storage = new ExpenseStorageMem();
+	}
+
+	@Test
+	public void testReadUpdateDelete() throws ParseException
+	{
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER).get();
+		Expense taxi = storage.createExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER).get();
+
+		// read
+		Assertions.assertThat(storage.readExpense(lunch.get_id())).contains(lunch);
+		Assertions.assertThat(storage.readExpense("0")).isEmpty();
+
+		// update the date, which moves it in the user's order
+		Expense moved = new Expense(lunch.get_id(), 2500, "USD", formatter.parse("20170301"), "Late Lunch", USER);
+		storage.updateExpense(moved);
+		Assertions.assertThat(storage.readExpense(lunch.get_id())).contains(moved);
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(moved, taxi);
+
+		// update to another user
+		Expense given = new Expense(taxi.get_id(), 3000, "USD", taxi.getDate(), "Taxi", USER_2);
+		storage.updateExpense(given);
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).containsExactly(moved);
+		Assertions.assertThat(storage.readExpensesForUser(USER_2).get()).containsExactly(given);
+
+		// updating an unknown expense does not create it
+		storage.updateExpense(new Expense("0", 100, "USD", taxi.getDate(), "Unknown", USER));
+		Assertions.assertThat(storage.readExpense("0")).isEmpty();
+
+		// delete
+		storage.deleteExpense(moved);
+		Assertions.assertThat(storage.readExpense(moved.get_id())).isEmpty();
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).isEmpty();
+		Assertions.assertThat(storage.readExpensesForUser(USER_2).get()).hasSize(1);
+	}
+
+	@Test
+	public void testVersion() throws ParseException
+	{
+		Assertions.assertThat(storage.readVersion(USER)).isEqualTo(0);
+
+		// each change to the user's expenses changes the version, and only theirs
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER).get();
+		long created = storage.readVersion(USER);
+		Assertions.assertThat(created).isGreaterThan(0);
+
+		storage.updateExpense(new Expense(lunch.get_id(), 2500, "USD", lunch.getDate(), "Lunch", USER));
+		long updated = storage.readVersion(USER);
+		Assertions.assertThat(updated).isGreaterThan(created);
+
+		storage.deleteExpense(lunch);
+		Assertions.assertThat(storage.readVersion(USER)).isGreaterThan(updated);
+		Assertions.assertThat(storage.readVersion(USER_2)).isEqualTo(0);
+	}
+
+	@Test
+	public void testChanges() throws ParseException
+	{
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER).get();
+		Expense taxi = storage.createExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER).get();
+
+		// all of them, from the start
+		ExpenseChanges changes = storage.readChangesForUser(USER, 0).get();
+		Assertions.assertThat(changes.getChanged()).containsOnly(lunch, taxi);
+		Assertions.assertThat(changes.getDeleted()).isEmpty();
+		long since = changes.getVersion();
+
+		// nothing new
+		changes = storage.readChangesForUser(USER, since).get();
+		Assertions.assertThat(changes.getChanged()).isEmpty();
+		Assertions.assertThat(changes.getDeleted()).isEmpty();
+		Assertions.assertThat(changes.getVersion()).isEqualTo(since);
+
+		// an update, a delete, a create, and one moved away to another user
+		Expense moved = new Expense(lunch.get_id(), 2500, "USD", lunch.getDate(), "Late Lunch", USER);
+		storage.updateExpense(moved);
+		Expense hotel = storage.createExpense(30000, "USD", formatter.parse("20170301"), "Hotel", USER).get();
+		storage.deleteExpense(taxi);
+		Expense dinner = storage.createExpense(6410, "USD", formatter.parse("20170302"), "Dinner", USER).get();
+		storage.updateExpense(new Expense(dinner.get_id(), 6410, "USD", dinner.getDate(), "Dinner", USER_2));
+
+		changes = storage.readChangesForUser(USER, since).get();
+		Assertions.assertThat(changes.getChanged()).containsOnly(moved, hotel);
+		Assertions.assertThat(changes.getDeleted()).containsOnly(taxi.get_id(), dinner.get_id());
+		Assertions.assertThat(changes.getVersion()).isGreaterThan(since);
+
+		// and to the other user, it is new
+		Assertions.assertThat(storage.readChangesForUser(USER_2, 0).get().getChanged()).extracting("_id").contains(dinner.get_id());
+	}
+
+	@Test
+	public void testPagedRange() throws ParseException
+	{
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER).get();
+		Expense taxi = storage.createExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER).get();
+		Expense hotel = storage.createExpense(30000, "USD", formatter.parse("20170301"), "Hotel", USER).get();
+		Expense dinner = storage.createExpense(6410, "USD", formatter.parse("20170302"), "Dinner", USER).get();
+
+		// a cursor before the range's upper bound
+		List<Expense> page = storage.readExpensesForUser(USER, null, formatter.parse("20170302"), Optional.of(ExpenseCursor.of(dinner)), 10);
+		Assertions.assertThat(page).containsExactly(hotel, taxi, lunch);
+
+		// a cursor within the range
+		page = storage.readExpensesForUser(USER, formatter.parse("20170228"), formatter.parse("20170303"), Optional.of(ExpenseCursor.of(hotel)), 10);
+		Assertions.assertThat(page).containsExactly(taxi);
+	}
+
+	@Test
+	public void testConcurrentCreate() throws Exception
+	{
+		Date date = formatter.parse("20170227");
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < 8; t++)
+		{
+			String user = (t % 2 == 0) ? USER : USER_2;
+			futures.add(executor.submit(() ->
+			{
+				for (int i = 0; i < 1000; i++)
+				{
+					storage.createExpense(100, "USD", date, "Coffee", user);
+				}
+				return null;
+			}));
+		}
+		for (Future<?> f : futures)
+		{
+			f.get();
+		}
+		executor.shutdown();
+
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).hasSize(4000);
+		Assertions.assertThat(storage.readExpensesForUser(USER_2).get()).hasSize(4000);
+	}
+}
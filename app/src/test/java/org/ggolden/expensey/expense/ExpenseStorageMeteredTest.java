@@ -0,0 +1,83 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.expense;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.assertj.core.api.Assertions;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.impl.ExpenseStorageMem;
+import org.ggolden.expensey.impl.ExpenseStorageMetered;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Test the ExpenseStorageMetered, wrapping an ExpenseStorageMem.
+ */
+public class ExpenseStorageMeteredTest
+{
+	protected static final String USER = "user@mac.com";
+	protected static final SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
+
+	// the metrics
+	private MetricRegistry metrics = null;
+
+	// the storage
+	private ExpenseStorage storage = null;
+
+	/**
+	 * Setup each test.
+	 */
+	@Before
+	public void setup()
+	{
+		metrics = new MetricRegistry();
+		storage = new ExpenseStorageMetered(new ExpenseStorageMem(), metrics);
+	}
+
+	@Test
+	public void test() throws ParseException
+	{
+		storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER);
+		storage.createExpenses(Arrays.asList(new Expense(null, 3000, "USD", formatter.parse("20170228"), "Taxi", USER),
+				new Expense(null, 1000, "USD", formatter.parse("20170301"), "Coffee", USER)));
+
+		// reads pass through, recording their sizes
+		Assertions.assertThat(storage.readExpensesForUser(USER).get()).hasSize(3);
+		Assertions.assertThat(storage.readExpensesForUser(USER, null, null, Optional.empty(), 2)).hasSize(2);
+		List<Expense> streamed = new ArrayList<>();
+		Assertions.assertThat(storage.streamExpensesForUser(USER, streamed::add)).isTrue();
+		Assertions.assertThat(streamed).hasSize(3);
+
+		Assertions.assertThat(metrics.timer(MetricRegistry.name(ExpenseStorage.class, "createExpense")).getCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "createExpenses", "size")).getSnapshot().getMax()).isEqualTo(2);
+		Assertions.assertThat(metrics.timer(MetricRegistry.name(ExpenseStorage.class, "readExpensesForUser")).getCount()).isEqualTo(1);
+		Assertions.assertThat(metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "readExpensesForUser", "size")).getSnapshot().getMax()).isEqualTo(3);
+		Assertions.assertThat(metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "readPage", "size")).getSnapshot().getMax()).isEqualTo(2);
+		Assertions.assertThat(metrics.histogram(MetricRegistry.name(ExpenseStorage.class, "streamExpensesForUser", "size")).getSnapshot().getMax()).isEqualTo(3);
+		Assertions.assertThat(metrics.meter(MetricRegistry.name(ExpenseStorage.class, "streamExpensesForUser", "failure")).getCount()).isEqualTo(0);
+	}
+}
@@ -18,20 +18,33 @@
 
 package org.ggolden.expensey.expense;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.TimeZone;
 
 import org.assertj.core.api.Assertions;
+import org.assertj.core.data.Offset;
 import org.ggolden.expensey.db.Transactor;
+import org.ggolden.expensey.dw.Configuration;
 import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpensePage;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
 import org.ggolden.expensey.impl.ExpenseServiceImpl;
 import org.ggolden.expensey.impl.ExpenseStorageSql;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.skife.jdbi.v2.exceptions.UnableToObtainConnectionException;
 
 import com.codahale.metrics.MetricRegistry;
 
@@ -48,8 +61,22 @@ public class ExpenseStorageSqlTest
 	// the service
 	private static ExpenseService service = null;
 
+	// the storage under the service
+	private static ExpenseStorageSql storage = null;
+
 	protected static final String USER = "user@mac.com";
 	protected static final String USER_2 = "user@gmail.com";
+	protected static final String USER_PAGED = "user@paged.com";
+	protected static final String USER_PAGED_NO_DATE = "user@pagednodate.com";
+	protected static final String USER_STREAMED = "user@streamed.com";
+	protected static final String USER_BATCH = "user@batch.com";
+	protected static final String USER_SUMMARY = "user@summary.com";
+	protected static final String USER_ROLLUP = "user@rollup.com";
+	protected static final String USER_CRUD = "user@crud.com";
+	protected static final String USER_VERSION = "user@version.com";
+	protected static final String USER_VERSION_2 = "user@version2.com";
+	protected static final String USER_CHANGES = "user@changes.com";
+	protected static final String USER_CHANGES_2 = "user@changes2.com";
 	protected static final SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
 
 	/**
@@ -68,7 +95,11 @@ public class ExpenseStorageSqlTest
 
 		Transactor db = new Transactor(new DBIFactory().build(environment, database, "db"));
 
-		ExpenseStorage storage = new ExpenseStorageSql(db);
+		// a small batch, so bulk creates span several transactions
+		Configuration config = new Configuration();
+		config.setBatchSize(2);
+
+		storage = new ExpenseStorageSql(db, config);
 		service = new ExpenseServiceImpl(storage);
 	}
 
@@ -85,10 +116,10 @@ public class ExpenseStorageSqlTest
 	{
 		// add an expense
 		Date now = new Date();
-		Float amount = 22.22f;
+		long amount = 2222;
 		String description = "Parking at airport";
 		String userId = "user@mac.com";
-		Optional<Expense> expense = service.addExpense(amount, now, description, userId);
+		Optional<Expense> expense = service.addExpense(amount, "USD", now, description, userId);
 		Assertions.assertThat(expense).isNotEmpty();
 		Assertions.assertThat(expense.get().getDate().equals(now));
 		Assertions.assertThat(expense.get().getDescription().equals(description));
@@ -99,32 +130,416 @@ public class ExpenseStorageSqlTest
 	public void testGetExpenses() throws ParseException
 	{
 		// create some expenses for one user
-		Optional<Expense> expense = service.addExpense(23.88f, formatter.parse("20170227"), "Lunch", USER);
+		Optional<Expense> expense = service.addExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER);
 		Assertions.assertThat(expense).isNotEmpty();
-		expense = service.addExpense(120f, formatter.parse("20170227"), "Airport Parking", USER);
+		expense = service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER);
 		Assertions.assertThat(expense).isNotEmpty();
-		expense = service.addExpense(640.95f, formatter.parse("20170227"), "Airplane Ticket", USER);
+		expense = service.addExpense(64095, "USD", formatter.parse("20170227"), "Airplane Ticket", USER);
 		Assertions.assertThat(expense).isNotEmpty();
-		expense = service.addExpense(30f, formatter.parse("20170228"), "Taxi", USER);
+		expense = service.addExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER);
 		Assertions.assertThat(expense).isNotEmpty();
 
 		// create some expenses for another user
-		expense = service.addExpense(120f, formatter.parse("20170227"), "Airport Parking", USER_2);
+		expense = service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER_2);
 		Assertions.assertThat(expense).isNotEmpty();
-		expense = service.addExpense(120f, formatter.parse("20170227"), "Airport Parking", USER_2);
+		expense = service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER_2);
 		Assertions.assertThat(expense).isNotEmpty();
 
 		// get the expenses for the user
-		List<Expense> expenses = service.getExpensesForUser(USER);
+		List<Expense> expenses = service.getExpensesForUser(USER).get();
 		Assertions.assertThat(expenses).isNotNull();
 		Assertions.assertThat(expenses).hasSize(4);
 
-		expenses = service.getExpensesForUser(USER_2);
+		expenses = service.getExpensesForUser(USER_2).get();
 		Assertions.assertThat(expenses).isNotNull();
 		Assertions.assertThat(expenses).hasSize(2);
 
-		expenses = service.getExpensesForUser("");
+		// read together, they share the user and currency Strings
+		Assertions.assertThat(expenses.get(1).getUserId()).isSameAs(expenses.get(0).getUserId());
+		Assertions.assertThat(expenses.get(1).getCurrency()).isSameAs(expenses.get(0).getCurrency());
+
+		expenses = service.getExpensesForUser("").get();
 		Assertions.assertThat(expenses).isNotNull();
 		Assertions.assertThat(expenses).hasSize(0);
 	}
+
+	@Test
+	public void testGetExpensesPaged() throws ParseException
+	{
+		// create some expenses, two on the same day
+		Expense lunch = service.addExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER_PAGED).get();
+		Expense parking = service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER_PAGED).get();
+		Expense taxi = service.addExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER_PAGED).get();
+		Expense hotel = service.addExpense(30000, "USD", formatter.parse("20170301"), "Hotel", USER_PAGED).get();
+		Expense dinner = service.addExpense(6410, "USD", formatter.parse("20170302"), "Dinner", USER_PAGED).get();
+
+		// page through them all, newest first, ties broken by newest id
+		ExpensePage page = service.getExpensesForUser(USER_PAGED, null, null, null, 2);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(dinner.get_id(), hotel.get_id());
+		Assertions.assertThat(page.getNext()).isNotNull();
+
+		page = service.getExpensesForUser(USER_PAGED, null, null, page.getNext(), 2);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(taxi.get_id(), parking.get_id());
+		Assertions.assertThat(page.getNext()).isNotNull();
+
+		page = service.getExpensesForUser(USER_PAGED, null, null, page.getNext(), 2);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(lunch.get_id());
+		Assertions.assertThat(page.getNext()).isNull();
+
+		// an exact fit has no next page
+		page = service.getExpensesForUser(USER_PAGED, null, null, null, 5);
+		Assertions.assertThat(page.getExpenses()).hasSize(5);
+		Assertions.assertThat(page.getNext()).isNull();
+
+		// limit to a date range
+		page = service.getExpensesForUser(USER_PAGED, formatter.parse("20170228"), formatter.parse("20170302"), null, 10);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(hotel.get_id(), taxi.get_id());
+		Assertions.assertThat(page.getNext()).isNull();
+	}
+
+	@Test
+	public void testGetExpensesPagedNoDate()
+	{
+		// expenses dated 0, read back with no date
+		Expense first = service.addExpense(2388, "USD", new Date(0), "Lunch", USER_PAGED_NO_DATE).get();
+		Expense second = service.addExpense(3000, "USD", new Date(0), "Taxi", USER_PAGED_NO_DATE).get();
+		Assertions.assertThat(service.getExpensesForUser(USER_PAGED_NO_DATE).get()).extracting("date").containsOnly((Object) null);
+
+		// page through them, the cursor encoding the missing date as 0
+		ExpensePage page = service.getExpensesForUser(USER_PAGED_NO_DATE, null, null, null, 1);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(second.get_id());
+		Assertions.assertThat(page.getNext()).isNotNull();
+
+		page = service.getExpensesForUser(USER_PAGED_NO_DATE, null, null, page.getNext(), 1);
+		Assertions.assertThat(page.getExpenses()).extracting("_id").containsExactly(first.get_id());
+		Assertions.assertThat(page.getNext()).isNull();
+	}
+
+	@Test
+	public void testStreamExpenses() throws ParseException
+	{
+		service.addExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER_STREAMED);
+		service.addExpense(12000, "USD", formatter.parse("20170227"), "Airport Parking", USER_STREAMED);
+		service.addExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER_STREAMED);
+
+		// stream them
+		List<Expense> streamed = new ArrayList<>();
+		boolean complete = service.streamExpensesForUser(USER_STREAMED, streamed::add);
+		Assertions.assertThat(complete).isTrue();
+		Assertions.assertThat(streamed).hasSize(3);
+		Assertions.assertThat(streamed).extracting("description").containsOnly("Lunch", "Airport Parking", "Taxi");
+
+		// nothing for an unknown user
+		streamed.clear();
+		complete = service.streamExpensesForUser("", streamed::add);
+		Assertions.assertThat(complete).isTrue();
+		Assertions.assertThat(streamed).isEmpty();
+
+		// a transient failure part way fails the stream, rather than delivering them again
+		streamed.clear();
+		complete = service.streamExpensesForUser(USER_STREAMED, e ->
+		{
+			streamed.add(e);
+			if (streamed.size() == 2)
+			{
+				throw new UnableToObtainConnectionException(new SQLException("db down"));
+			}
+		});
+		Assertions.assertThat(complete).isFalse();
+		Assertions.assertThat(streamed).hasSize(2).doesNotHaveDuplicates();
+	}
+
+	@Test
+	public void testAddExpenses() throws ParseException
+	{
+		List<Expense> statement = new ArrayList<>();
+		statement.add(new Expense(null, 2388, "USD", formatter.parse("20170227"), "Lunch", null));
+		statement.add(new Expense(null, 12000, "USD", formatter.parse("20170227"), "Airport Parking", null));
+		statement.add(new Expense(null, 64095, "USD", formatter.parse("20170227"), "Airplane Ticket", null));
+		statement.add(new Expense(null, 3000, "USD", formatter.parse("20170228"), "Taxi", null));
+		statement.add(new Expense(null, 30000, "USD", formatter.parse("20170301"), "Hotel", null));
+
+		// add them all, and get back IDs in the order given
+		Optional<List<Expense>> added = service.addExpenses(statement, USER_BATCH);
+		Assertions.assertThat(added).isNotEmpty();
+		Assertions.assertThat(added.get()).hasSize(5);
+		Assertions.assertThat(added.get()).extracting("description").containsExactly("Lunch", "Airport Parking", "Airplane Ticket", "Taxi", "Hotel");
+		Assertions.assertThat(added.get()).extracting("userId").containsOnly(USER_BATCH);
+		Assertions.assertThat(added.get()).extracting("_id").doesNotContainNull().doesNotHaveDuplicates();
+
+		// they are stored
+		List<Expense> expenses = service.getExpensesForUser(USER_BATCH).get();
+		Assertions.assertThat(expenses).hasSize(5);
+		Assertions.assertThat(expenses).containsOnlyElementsOf(added.get());
+
+		// an invalid expense rejects the lot
+		statement.add(new Expense(null, 1000, "USD", null, "No Date", null));
+		added = service.addExpenses(statement, USER_BATCH);
+		Assertions.assertThat(added).isEmpty();
+		Assertions.assertThat(service.getExpensesForUser(USER_BATCH).get()).hasSize(5);
+	}
+
+	@Test
+	public void testSummarize() throws ParseException
+	{
+		// summaries are by UTC periods
+		SimpleDateFormat utc = new SimpleDateFormat("yyyyMMdd");
+		utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		// Monday, Monday, Tuesday, Wednesday (Mar 1), the next Monday
+		service.addExpense(2388, "USD", utc.parse("20170227"), "Lunch", USER_SUMMARY);
+		service.addExpense(12000, "USD", utc.parse("20170227"), "Airport Parking", USER_SUMMARY);
+		service.addExpense(3000, "USD", utc.parse("20170228"), "Taxi", USER_SUMMARY);
+		service.addExpense(30000, "USD", utc.parse("20170301"), "Hotel", USER_SUMMARY);
+		service.addExpense(6410, "USD", utc.parse("20170306"), "Dinner", USER_SUMMARY);
+
+		List<ExpenseSummary> days = service.summarize(USER_SUMMARY, null, null, ExpenseBucket.DAY);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getStart).containsExactly(utc.parse("20170227"), utc.parse("20170228"),
+				utc.parse("20170301"), utc.parse("20170306"));
+		Assertions.assertThat(days.get(0).getCount()).isEqualTo(2);
+		Assertions.assertThat(days.get(0).getTotal()).isEqualTo(14388L);
+		Assertions.assertThat(days.get(0).getMin()).isEqualTo(2388L);
+		Assertions.assertThat(days.get(0).getMax()).isEqualTo(12000L);
+		Assertions.assertThat(days.get(0).getAverage()).isCloseTo(7194.0, Offset.offset(0.001));
+
+		List<ExpenseSummary> weeks = service.summarize(USER_SUMMARY, null, null, ExpenseBucket.WEEK);
+		Assertions.assertThat(weeks).extracting(ExpenseSummary::getStart).containsExactly(utc.parse("20170227"), utc.parse("20170306"));
+		Assertions.assertThat(weeks).extracting(ExpenseSummary::getCount).containsExactly(4, 1);
+		Assertions.assertThat(weeks.get(0).getTotal()).isEqualTo(47388L);
+		Assertions.assertThat(weeks.get(0).getMax()).isEqualTo(30000L);
+
+		List<ExpenseSummary> months = service.summarize(USER_SUMMARY, null, null, ExpenseBucket.MONTH);
+		Assertions.assertThat(months).extracting(ExpenseSummary::getStart).containsExactly(utc.parse("20170201"), utc.parse("20170301"));
+		Assertions.assertThat(months).extracting(ExpenseSummary::getCount).containsExactly(3, 2);
+		Assertions.assertThat(months.get(1).getTotal()).isEqualTo(36410L);
+
+		// within a range
+		months = service.summarize(USER_SUMMARY, utc.parse("20170228"), utc.parse("20170306"), ExpenseBucket.MONTH);
+		Assertions.assertThat(months).extracting(ExpenseSummary::getCount).containsExactly(1, 1);
+		Assertions.assertThat(months).extracting(ExpenseSummary::getTotal).containsExactly(3000L, 30000L);
+
+		// nothing for another user
+		Assertions.assertThat(service.summarize("nobody", null, null, ExpenseBucket.DAY)).isEmpty();
+	}
+
+	@Test
+	public void testReadUpdateDelete() throws ParseException
+	{
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER_CRUD).get();
+
+		// read
+		Assertions.assertThat(storage.readExpense(lunch.get_id())).contains(lunch);
+		Assertions.assertThat(storage.readExpense("0")).isEmpty();
+		Assertions.assertThat(storage.readExpense("not-a-number")).isEmpty();
+
+		// update
+		Expense moved = new Expense(lunch.get_id(), 2500, "USD", formatter.parse("20170301"), "Late Lunch", USER_CRUD);
+		storage.updateExpense(moved);
+		Assertions.assertThat(storage.readExpense(lunch.get_id())).contains(moved);
+
+		// updating an unknown expense does not create it
+		storage.updateExpense(new Expense("0", 100, "USD", moved.getDate(), "Unknown", USER_CRUD));
+		Assertions.assertThat(storage.readExpense("0")).isEmpty();
+
+		// delete
+		storage.deleteExpense(moved);
+		Assertions.assertThat(storage.readExpense(moved.get_id())).isEmpty();
+		Assertions.assertThat(storage.readExpensesForUser(USER_CRUD).get()).isEmpty();
+	}
+
+	@Test
+	public void testUpgradeTables() throws ParseException
+	{
+		DataSourceFactory database = new DataSourceFactory();
+		database.setDriverClass("org.h2.Driver");
+		database.setUrl("jdbc:h2:mem:UpgradeTablesTest;mode=mysql");
+		database.setUser("u");
+		database.setPassword("p");
+
+		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
+		Transactor db = new Transactor(new DBIFactory().build(environment, database, "db"));
+
+		// the table as it was first, with only a (user) key
+		long date = formatter.parse("20170227").getTime();
+		db.transact(h ->
+		{
+			h.execute("create table expense (id bigint unsigned auto_increment not null primary key, user varchar (255) not null, date bigint not null,"
+					+ " amount float not null, description longtext, key expense_u (user))");
+			h.execute("insert into expense (user, date, amount, description) values ('" + USER + "', " + date + ", 23.88, 'Lunch')");
+		});
+
+		// brought up to date, and starting again changes nothing
+		new ExpenseStorageSql(db, new Configuration());
+		ExpenseStorageSql upgraded = new ExpenseStorageSql(db, new Configuration());
+		Assertions.assertThat(indexes(db, "expense")).contains("EXPENSE_UDI", "EXPENSE_US");
+		Assertions.assertThat(upgraded.readExpensesForUser(USER, null, null, Optional.empty(), 10)).extracting(Expense::getAmount).containsExactly(2388L);
+	}
+
+	@Test
+	public void testMigrateAmounts() throws ParseException
+	{
+		DataSourceFactory database = new DataSourceFactory();
+		database.setDriverClass("org.h2.Driver");
+		database.setUrl("jdbc:h2:mem:MigrateAmountsTest;mode=mysql");
+		database.setUser("u");
+		database.setPassword("p");
+
+		Environment environment = new Environment("test-env", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
+		Transactor db = new Transactor(new DBIFactory().build(environment, database, "db"));
+
+		// tables as they were, with float amounts
+		long date = formatter.parse("20170227").getTime();
+		db.transact(h ->
+		{
+			h.execute("create table expense (id bigint unsigned auto_increment not null primary key, user varchar (255) not null, date bigint not null,"
+					+ " amount float not null, description longtext, key expense_udi (user, date, id))");
+			h.execute("create table expense_daily (user varchar (255) not null, day bigint not null, n int not null, total double not null,"
+					+ " low float not null, high float not null, primary key (user, day))");
+			h.execute("insert into expense (user, date, amount, description) values ('" + USER + "', " + date + ", 23.88, 'Lunch'), ('" + USER + "', " + date
+					+ ", 0.1, 'Gum')");
+			h.execute("insert into expense_daily (user, day, n, total, low, high) values ('" + USER + "', 0, 2, 23.98, 0.1, 23.88)");
+		});
+
+		// the amounts are moved to cents, and the rollup rebuilt
+		ExpenseStorageSql migrated = new ExpenseStorageSql(db, new Configuration());
+		Assertions.assertThat(migrated.readExpensesForUser(USER).get()).extracting(Expense::getAmount).containsOnly(2388L, 10L);
+		Assertions.assertThat(migrated.readExpensesForUser(USER).get()).extracting(Expense::getCurrency).containsOnly(Expense.DEFAULT_CURRENCY);
+		Assertions.assertThat(migrated.summarizeExpensesForUser(USER, null, null, ExpenseBucket.DAY)).extracting(ExpenseSummary::getTotal)
+				.containsExactly(2398L);
+
+		// and once moved, starting again changes nothing
+		Assertions.assertThat(new ExpenseStorageSql(db, new Configuration()).readExpensesForUser(USER).get()).extracting(Expense::getAmount).containsOnly(2388L,
+				10L);
+	}
+
+	@Test
+	public void testRollup() throws ParseException
+	{
+		SimpleDateFormat utc = new SimpleDateFormat("yyyyMMddHH");
+		utc.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		Expense breakfast = storage.createExpense(1000, "USD", utc.parse("2017022708"), "Breakfast", USER_ROLLUP).get();
+		Expense lunch = storage.createExpense(2000, "USD", utc.parse("2017022712"), "Lunch", USER_ROLLUP).get();
+		storage.createExpenses(Arrays.asList(new Expense(null, 3000, "USD", utc.parse("2017022718"), "Dinner", USER_ROLLUP),
+				new Expense(null, 4000, "USD", utc.parse("2017022808"), "Taxi", USER_ROLLUP),
+				new Expense(null, 5000, "USD", utc.parse("2017030108"), "Hotel", USER_ROLLUP)));
+
+		List<ExpenseSummary> days = storage.summarizeExpensesForUser(USER_ROLLUP, null, null, ExpenseBucket.DAY);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getCount).containsExactly(3, 1, 1);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getTotal).containsExactly(6000L, 4000L, 5000L);
+
+		// a range with partial days at both edges: from 10:00 on the 27th to 10:00 on the 1st
+		days = storage.summarizeExpensesForUser(USER_ROLLUP, utc.parse("2017022710"), utc.parse("2017030110"), ExpenseBucket.DAY);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getCount).containsExactly(2, 1, 1);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getTotal).containsExactly(5000L, 4000L, 5000L);
+
+		// a range within one day
+		days = storage.summarizeExpensesForUser(USER_ROLLUP, utc.parse("2017022710"), utc.parse("2017022713"), ExpenseBucket.DAY);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getTotal).containsExactly(2000L);
+
+		// moving the breakfast to the 28th changes both days, min and max included
+		storage.updateExpense(new Expense(breakfast.get_id(), 500, "USD", utc.parse("2017022809"), "Breakfast", USER_ROLLUP));
+		days = storage.summarizeExpensesForUser(USER_ROLLUP, null, null, ExpenseBucket.DAY);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getCount).containsExactly(2, 2, 1);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getMin).containsExactly(2000L, 500L, 5000L);
+
+		// deleting the last of a day drops the day
+		storage.deleteExpense(lunch);
+		days = storage.summarizeExpensesForUser(USER_ROLLUP, null, null, ExpenseBucket.WEEK);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getCount).containsExactly(4);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getTotal).containsExactly(12500L);
+
+		// another currency is summed apart, in the rollup and at the edges
+		storage.createExpense(700, "EUR", utc.parse("2017022811"), "Coffee", USER_ROLLUP);
+		days = storage.summarizeExpensesForUser(USER_ROLLUP, null, null, ExpenseBucket.WEEK);
+		Assertions.assertThat(days).extracting(ExpenseSummary::getCurrency).containsExactly("EUR", "USD");
+		Assertions.assertThat(days).extracting(ExpenseSummary::getTotal).containsExactly(700L, 12500L);
+		Assertions.assertThat(storage.summarizeExpensesForUser(USER_ROLLUP, utc.parse("2017022810"), utc.parse("2017022812"), ExpenseBucket.DAY))
+				.extracting(ExpenseSummary::getCurrency).containsExactly("EUR");
+
+		// a rebuild gives the same rollup
+		Assertions.assertThat(storage.rebuildRollups(2)).isGreaterThanOrEqualTo(1);
+		Assertions.assertThat(storage.summarizeExpensesForUser(USER_ROLLUP, null, null, ExpenseBucket.WEEK)).isEqualTo(days);
+	}
+
+	@Test
+	public void testVersion() throws ParseException
+	{
+		Assertions.assertThat(storage.readVersion(USER_VERSION)).isEqualTo(0);
+
+		// each change to the user's expenses changes the version
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER_VERSION).get();
+		Assertions.assertThat(storage.readVersion(USER_VERSION)).isEqualTo(1);
+
+		storage.createExpenses(Arrays.asList(new Expense(null, 3000, "USD", formatter.parse("20170228"), "Taxi", USER_VERSION),
+				new Expense(null, 1000, "USD", formatter.parse("20170301"), "Coffee", USER_VERSION)));
+		Assertions.assertThat(storage.readVersion(USER_VERSION)).isEqualTo(2);
+
+		// moving an expense to another user changes both
+		storage.updateExpense(new Expense(lunch.get_id(), 2500, "USD", lunch.getDate(), "Lunch", USER_VERSION_2));
+		Assertions.assertThat(storage.readVersion(USER_VERSION)).isEqualTo(3);
+		Assertions.assertThat(storage.readVersion(USER_VERSION_2)).isEqualTo(1);
+
+		// deleting what is not there changes nothing
+		storage.deleteExpense(new Expense("0", 0, "USD", null, null, USER_VERSION));
+		Assertions.assertThat(storage.readVersion(USER_VERSION)).isEqualTo(3);
+	}
+
+	@Test
+	public void testChanges() throws ParseException
+	{
+		Expense lunch = storage.createExpense(2388, "USD", formatter.parse("20170227"), "Lunch", USER_CHANGES).get();
+		Expense taxi = storage.createExpense(3000, "USD", formatter.parse("20170228"), "Taxi", USER_CHANGES).get();
+
+		// all of them, from the start
+		ExpenseChanges changes = storage.readChangesForUser(USER_CHANGES, 0).get();
+		Assertions.assertThat(changes.getChanged()).containsOnly(lunch, taxi);
+		Assertions.assertThat(changes.getDeleted()).isEmpty();
+		long since = changes.getVersion();
+
+		// nothing new
+		changes = storage.readChangesForUser(USER_CHANGES, since).get();
+		Assertions.assertThat(changes.getChanged()).isEmpty();
+		Assertions.assertThat(changes.getDeleted()).isEmpty();
+		Assertions.assertThat(changes.getVersion()).isEqualTo(since);
+
+		// an update, a delete, a create, and one moved away to another user
+		Expense moved = new Expense(lunch.get_id(), 2500, "USD", lunch.getDate(), "Late Lunch", USER_CHANGES);
+		storage.updateExpense(moved);
+		Expense hotel = storage.createExpense(30000, "USD", formatter.parse("20170301"), "Hotel", USER_CHANGES).get();
+		storage.deleteExpense(taxi);
+		Expense dinner = storage.createExpense(6410, "USD", formatter.parse("20170302"), "Dinner", USER_CHANGES).get();
+		storage.updateExpense(new Expense(dinner.get_id(), 6410, "USD", dinner.getDate(), "Dinner", USER_CHANGES_2));
+
+		changes = storage.readChangesForUser(USER_CHANGES, since).get();
+		Assertions.assertThat(changes.getChanged()).containsOnly(moved, hotel);
+		Assertions.assertThat(changes.getDeleted()).containsOnly(taxi.get_id(), dinner.get_id());
+		Assertions.assertThat(changes.getVersion()).isGreaterThan(since);
+
+		// and to the other user, it is new
+		Assertions.assertThat(storage.readChangesForUser(USER_CHANGES_2, 0).get().getChanged()).extracting("_id").contains(dinner.get_id());
+	}
+
+	/**
+	 * @return The names of the table's indexes, in upper case.
+	 */
+	protected static List<String> indexes(Transactor db, String table)
+	{
+		List<String> rv = new ArrayList<>();
+		db.transact(h ->
+		{
+			try (ResultSet r = h.getConnection().getMetaData().getIndexInfo(null, null, table.toUpperCase(), false, true))
+			{
+				while (r.next())
+				{
+					rv.add(r.getString("INDEX_NAME").toUpperCase());
+				}
+			} catch (SQLException e)
+			{
+				throw new UnableToExecuteStatementException(e, null);
+			}
+		});
+
+		return rv;
+	}
 }
@@ -34,7 +34,7 @@ public class ExpenseTest extends ModelTest<Expense>
 	@Override
 	protected Expense mockObjectAsFixture()
 	{
-		final Expense expense = new Expense("ID", 100.50f, new Date(1L), "DESCRIPTION", "USER");
+		final Expense expense = new Expense("ID", 10050, "USD", new Date(1L), "DESCRIPTION", "USER");
 		return expense;
 	}
 }
@@ -19,11 +19,20 @@
 package org.ggolden.expensey.rest;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
@@ -34,12 +43,23 @@ import org.ggolden.expensey.auth.model.Credentials;
 import org.ggolden.expensey.dw.Configuration;
 import org.ggolden.expensey.expense.ExpenseService;
 import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseChanges;
+import org.ggolden.expensey.expense.model.ExpensePage;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
+import org.ggolden.expensey.impl.ExpenseEventBus;
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
+import org.glassfish.jersey.test.grizzly.GrizzlyWebTestContainerFactory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.jackson.Jackson;
 import io.dropwizard.testing.junit.ResourceTestRule;
 
 /**
@@ -51,21 +71,29 @@ public class ExpenseyRestTest
 	public static final AuthenticationService authenticationService = Mockito.mock(AuthenticationService.class);
 
 	/** mock config */
-	public static Configuration config = new Configuration("db");
+	public static Configuration config = new Configuration();
 
 	/** mock expense service */
 	public static final ExpenseService expenseService = Mockito.mock(ExpenseService.class);
 
+	/** mock event bus */
+	public static final ExpenseEventBus events = Mockito.mock(ExpenseEventBus.class);
+
+	/** runs the requests, with a queue of 1 behind 1 thread */
+	public static final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+
 	/** the resource we are testing */
 	@ClassRule
-	public static final ResourceTestRule z_rest = ResourceTestRule.builder().addResource(new ExpenseyRest(config, authenticationService, expenseService))
-			.build();
+	public static final ResourceTestRule z_rest = ResourceTestRule.builder()
+			.addResource(new ExpenseyRest(config, authenticationService, expenseService, events, Jackson.newObjectMapper(),
+					new RequestExecutor(executor, 2000, new MetricRegistry())))
+			.addProvider(SseFeature.class).setTestContainerFactory(new GrizzlyWebTestContainerFactory()).build();
 
 	/** some credentials used in tests */
 	protected static Credentials credentials_bad = new Credentials("Welcome1234", "user@mac.com");
 	protected static Credentials credentials_good = new Credentials("Welcome123", "user@mac.com");
 
-	protected static Expense expense = new Expense("id", 85.0f, new Date(), "Parking at airport", "user@mac.com");
+	protected static Expense expense = new Expense("id", 8500, "USD", new Date(), "Parking at airport", "user@mac.com");
 
 	/**
 	 * Before each test, setup the mock services to return the mock models, if asked for nicely ;-)
@@ -81,13 +109,29 @@ public class ExpenseyRestTest
 		Mockito.when(authenticationService.authenticateByCredentials(Mockito.eq(credentials_bad))).thenReturn(Optional.empty());
 
 		// setup expenseService
-		Mockito.when(expenseService.addExpense(Mockito.anyFloat(), Mockito.any(Date.class), Mockito.anyString(), Mockito.anyString()))
+		Mockito.when(expenseService.addExpense(Mockito.anyLong(), Mockito.any(), Mockito.any(Date.class), Mockito.anyString(), Mockito.anyString()))
 				.thenReturn(Optional.of(expense));
 
 		List<Expense> expenses = new ArrayList<>();
 		expenses.add(expense);
 		expenses.add(expense);
-		Mockito.when(expenseService.getExpensesForUser(Mockito.anyString())).thenReturn(expenses);
+		Mockito.when(expenseService.getExpensesForUser(Mockito.anyString())).thenReturn(Optional.of(expenses));
+		Mockito.when(expenseService.getVersion(Mockito.anyString())).thenReturn(3L);
+		Mockito.when(expenseService.getChangesForUser(Mockito.anyString(), Mockito.anyLong()))
+				.thenReturn(Optional.of(new ExpenseChanges(expenses, Collections.singletonList("gone"), 5L)));
+		Mockito.when(expenseService.addExpenses(Mockito.anyList(), Mockito.anyString())).thenReturn(Optional.of(expenses));
+		Mockito.when(expenseService.getExpensesForUser(Mockito.anyString(), Mockito.any(), Mockito.any(), Mockito.any(), Mockito.anyInt()))
+				.thenReturn(new ExpensePage(expenses, "next"));
+		Mockito.when(expenseService.summarize(Mockito.anyString(), Mockito.any(), Mockito.any(), Mockito.eq(ExpenseBucket.WEEK)))
+				.thenReturn(Collections.singletonList(new ExpenseSummary(new Date(0), "USD", 2, 17000, 8500, 8500, 8500.0)));
+		Mockito.when(expenseService.search(Mockito.anyString(), Mockito.eq("air"), Mockito.anyInt())).thenReturn(Collections.singletonList(expense));
+		Mockito.when(expenseService.streamExpensesForUser(Mockito.anyString(), Mockito.any())).thenAnswer(invocation ->
+		{
+			@SuppressWarnings("unchecked")
+			Consumer<Expense> consumer = (Consumer<Expense>) invocation.getArguments()[1];
+			expenses.forEach(consumer);
+			return true;
+		});
 	}
 
 	/**
@@ -98,6 +142,7 @@ public class ExpenseyRestTest
 	{
 		Mockito.reset(authenticationService);
 		Mockito.reset(expenseService);
+		Mockito.reset(events);
 	}
 
 	/**
@@ -106,11 +151,11 @@ public class ExpenseyRestTest
 	@Test
 	public void testLogin()
 	{
-		Response rv = z_rest.client().target("/data/login").request().post(Entity.entity(credentials_bad, MediaType.APPLICATION_JSON_TYPE));
+		Response rv = z_rest.target("/data/login").request().post(Entity.entity(credentials_bad, MediaType.APPLICATION_JSON_TYPE));
 		Assertions.assertThat(rv).isNotNull();
 		Assertions.assertThat(rv.getStatus()).isEqualTo(403);
 
-		rv = z_rest.client().target("/data/login").request().post(Entity.entity(credentials_good, MediaType.APPLICATION_JSON_TYPE));
+		rv = z_rest.target("/data/login").request().post(Entity.entity(credentials_good, MediaType.APPLICATION_JSON_TYPE));
 		Assertions.assertThat(rv).isNotNull();
 		Assertions.assertThat(rv.getStatus()).isEqualTo(200);
 	}
@@ -122,12 +167,12 @@ public class ExpenseyRestTest
 	public void testExpense()
 	{
 		// not valid auth token
-		Expense rv = z_rest.client().target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "auth")
+		Expense rv = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "auth")
 				.post(Entity.entity(expense, MediaType.APPLICATION_JSON_TYPE), Expense.class);
 		Assertions.assertThat(rv).isNull();
 
 		// valid auth token
-		rv = z_rest.client().target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized")
+		rv = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized")
 				.post(Entity.entity(expense, MediaType.APPLICATION_JSON_TYPE), Expense.class);
 		Assertions.assertThat(rv).isNotNull();
 		Assertions.assertThat(rv.get_id()).isNotNull();
@@ -146,11 +191,11 @@ public class ExpenseyRestTest
 		List<String> rv = new ArrayList<>();
 
 		// token not valid
-		List<String> value = z_rest.client().target("/data/hello/1").request().cookie(AuthenticationService.TOKEN, "auth").get(rv.getClass());
+		List<String> value = z_rest.target("/data/hello/1").request().cookie(AuthenticationService.TOKEN, "auth").get(rv.getClass());
 		Assertions.assertThat(value).isNull();
 
 		// token is valid
-		value = z_rest.client().target("/data/hello/1").request().cookie(AuthenticationService.TOKEN, "authorized").get(rv.getClass());
+		value = z_rest.target("/data/hello/1").request().cookie(AuthenticationService.TOKEN, "authorized").get(rv.getClass());
 		Assertions.assertThat(value).isNotNull();
 		Assertions.assertThat(value).isNotEmpty();
 		Assertions.assertThat(value).hasSize(4);
@@ -167,13 +212,258 @@ public class ExpenseyRestTest
 		List<String> rv = new ArrayList<>();
 
 		// token not valid
-		List<Expense> value = z_rest.client().target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "auth").get(rv.getClass());
+		List<Expense> value = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "auth").get(rv.getClass());
 		Assertions.assertThat(value).isNull();
 
 		// token is valid
-		value = z_rest.client().target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized").get(rv.getClass());
+		value = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized").get(rv.getClass());
 		Assertions.assertThat(value).isNotNull();
 		Assertions.assertThat(value).isNotEmpty();
 		Assertions.assertThat(value).hasSize(2);
 	}
+
+	/**
+	 * test the "/expenses path, conditional on the version
+	 */
+	@Test
+	public void testExpensesNotModified()
+	{
+		// the first read gets the tag
+		Response rv = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized").get();
+		Assertions.assertThat(rv.getStatus()).isEqualTo(200);
+		EntityTag tag = rv.getEntityTag();
+		Assertions.assertThat(tag).isNotNull();
+		Assertions.assertThat(tag.isWeak()).isTrue();
+
+		// the same version is not modified, and the expenses are not read
+		Mockito.reset(expenseService);
+		Mockito.when(expenseService.getVersion(Mockito.anyString())).thenReturn(3L);
+		rv = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized").header(HttpHeaders.IF_NONE_MATCH, tag)
+				.get();
+		Assertions.assertThat(rv.getStatus()).isEqualTo(304);
+		Mockito.verify(expenseService, Mockito.never()).getExpensesForUser(Mockito.anyString());
+
+		// a new version is read
+		Mockito.when(expenseService.getVersion(Mockito.anyString())).thenReturn(4L);
+		Mockito.when(expenseService.getExpensesForUser(Mockito.anyString())).thenReturn(Optional.of(Collections.singletonList(expense)));
+		rv = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized").header(HttpHeaders.IF_NONE_MATCH, tag)
+				.get();
+		Assertions.assertThat(rv.getStatus()).isEqualTo(200);
+		Assertions.assertThat(rv.getEntityTag()).isNotEqualTo(tag);
+		Mockito.verify(expenseService).getExpensesForUser(Mockito.anyString());
+
+		// a failed read is an error, with no tag for the client to keep
+		Mockito.when(expenseService.getVersion(Mockito.anyString())).thenReturn(5L);
+		Mockito.when(expenseService.getExpensesForUser(Mockito.anyString())).thenReturn(Optional.empty());
+		rv = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized").get();
+		Assertions.assertThat(rv.getStatus()).isEqualTo(500);
+		Assertions.assertThat(rv.getEntityTag()).isNull();
+	}
+
+	/**
+	 * test the "/expenses/page path
+	 */
+	@Test
+	public void testExpensesPage()
+	{
+		// token not valid
+		ExpensePage value = z_rest.target("/data/expenses/page").request().cookie(AuthenticationService.TOKEN, "auth").get(ExpensePage.class);
+		Assertions.assertThat(value).isNull();
+
+		// token is valid
+		value = z_rest.target("/data/expenses/page").queryParam("limit", 2).request().cookie(AuthenticationService.TOKEN, "authorized")
+				.get(ExpensePage.class);
+		Assertions.assertThat(value).isNotNull();
+		Assertions.assertThat(value.getExpenses()).hasSize(2);
+		Assertions.assertThat(value.getNext()).isEqualTo("next");
+	}
+
+	/**
+	 * test the "/expenses/events path
+	 */
+	@Test
+	public void testExpensesEvents()
+	{
+		// token not valid
+		Response rv = z_rest.target("/data/expenses/events").request().cookie(AuthenticationService.TOKEN, "auth").get();
+		Assertions.assertThat(rv.getStatus()).isEqualTo(204);
+		Mockito.verify(events, Mockito.never()).subscribe(Mockito.anyString(), Mockito.any());
+
+		// token is valid - the stream is subscribed (and here, closed right away, ending the response)
+		Mockito.doAnswer(invocation ->
+		{
+			((EventOutput) invocation.getArguments()[1]).close();
+			return null;
+		}).when(events).subscribe(Mockito.anyString(), Mockito.any());
+		rv = z_rest.target("/data/expenses/events").request().cookie(AuthenticationService.TOKEN, "authorized").get();
+		Assertions.assertThat(rv.getStatus()).isEqualTo(200);
+		Assertions.assertThat(rv.getMediaType().toString()).isEqualTo(SseFeature.SERVER_SENT_EVENTS);
+		Mockito.verify(events).subscribe(Mockito.eq("user"), Mockito.any());
+	}
+
+	/**
+	 * test the "/expenses/changes path
+	 */
+	@Test
+	public void testExpensesChanges()
+	{
+		// token not valid
+		ExpenseChanges value = z_rest.target("/data/expenses/changes").request().cookie(AuthenticationService.TOKEN, "auth")
+				.get(ExpenseChanges.class);
+		Assertions.assertThat(value).isNull();
+
+		// without since, just the version
+		value = z_rest.target("/data/expenses/changes").request().cookie(AuthenticationService.TOKEN, "authorized").get(ExpenseChanges.class);
+		Assertions.assertThat(value.getChanged()).isEmpty();
+		Assertions.assertThat(value.getVersion()).isEqualTo(3L);
+
+		// since a version
+		value = z_rest.target("/data/expenses/changes").queryParam("since", 3).request().cookie(AuthenticationService.TOKEN, "authorized")
+				.get(ExpenseChanges.class);
+		Assertions.assertThat(value.getChanged()).hasSize(2);
+		Assertions.assertThat(value.getDeleted()).containsExactly("gone");
+		Assertions.assertThat(value.getVersion()).isEqualTo(5L);
+		Mockito.verify(expenseService).getChangesForUser(Mockito.anyString(), Mockito.eq(3L));
+	}
+
+	/**
+	 * test the "/expenses/summary path
+	 */
+	@Test
+	public void testExpensesSummary()
+	{
+		// token not valid
+		List<ExpenseSummary> value = z_rest.target("/data/expenses/summary").request().cookie(AuthenticationService.TOKEN, "auth")
+				.get(new GenericType<List<ExpenseSummary>>()
+				{
+				});
+		Assertions.assertThat(value).isNull();
+
+		// token is valid, bucket by name, any case
+		value = z_rest.target("/data/expenses/summary").queryParam("bucket", "Week").request().cookie(AuthenticationService.TOKEN, "authorized")
+				.get(new GenericType<List<ExpenseSummary>>()
+				{
+				});
+		Assertions.assertThat(value).hasSize(1);
+		Assertions.assertThat(value.get(0).getCount()).isEqualTo(2);
+		Assertions.assertThat(value.get(0).getTotal()).isEqualTo(17000L);
+
+		// unknown bucket
+		value = z_rest.target("/data/expenses/summary").queryParam("bucket", "fortnight").request()
+				.cookie(AuthenticationService.TOKEN, "authorized").get(new GenericType<List<ExpenseSummary>>()
+				{
+				});
+		Assertions.assertThat(value).isNull();
+	}
+
+	/**
+	 * test the "/expenses/search path
+	 */
+	@Test
+	public void testExpensesSearch()
+	{
+		// token not valid
+		Expense[] value = z_rest.target("/data/expenses/search").queryParam("q", "air").request().cookie(AuthenticationService.TOKEN, "auth")
+				.get(Expense[].class);
+		Assertions.assertThat(value).isNull();
+
+		// token is valid
+		value = z_rest.target("/data/expenses/search").queryParam("q", "air").queryParam("limit", 5).request()
+				.cookie(AuthenticationService.TOKEN, "authorized").get(Expense[].class);
+		Assertions.assertThat(value).hasSize(1);
+		Assertions.assertThat(value[0].getDescription()).isEqualTo("Parking at airport");
+		Mockito.verify(expenseService).search(Mockito.anyString(), Mockito.eq("air"), Mockito.eq(5));
+	}
+
+	/**
+	 * test the "/expenses/stream path
+	 */
+	@Test
+	public void testExpensesStream()
+	{
+		// token not valid
+		Expense[] value = z_rest.target("/data/expenses/stream").request().cookie(AuthenticationService.TOKEN, "auth").get(Expense[].class);
+		Assertions.assertThat(value).isNull();
+
+		// token is valid
+		value = z_rest.target("/data/expenses/stream").request().cookie(AuthenticationService.TOKEN, "authorized").get(Expense[].class);
+		Assertions.assertThat(value).isNotNull();
+		Assertions.assertThat(value).hasSize(2);
+		Assertions.assertThat(value[0].getDescription()).isEqualTo(expense.getDescription());
+	}
+
+	/**
+	 * test the /expenses/batch path
+	 */
+	@Test
+	public void testExpensesBatch()
+	{
+		List<Expense> statement = new ArrayList<>();
+		statement.add(expense);
+		statement.add(expense);
+
+		// not valid auth token
+		Expense[] rv = z_rest.target("/data/expenses/batch").request().cookie(AuthenticationService.TOKEN, "auth")
+				.post(Entity.entity(statement, MediaType.APPLICATION_JSON_TYPE), Expense[].class);
+		Assertions.assertThat(rv).isNull();
+
+		// valid auth token
+		rv = z_rest.target("/data/expenses/batch").request().cookie(AuthenticationService.TOKEN, "authorized")
+				.post(Entity.entity(statement, MediaType.APPLICATION_JSON_TYPE), Expense[].class);
+		Assertions.assertThat(rv).isNotNull();
+		Assertions.assertThat(rv).hasSize(2);
+		Assertions.assertThat(rv[0].get_id()).isNotNull();
+
+		// posting fails part way: an error, with those that were posted
+		statement.add(expense);
+		Response partial = z_rest.target("/data/expenses/batch").request().cookie(AuthenticationService.TOKEN, "authorized")
+				.post(Entity.entity(statement, MediaType.APPLICATION_JSON_TYPE));
+		Assertions.assertThat(partial.getStatus()).isEqualTo(500);
+		Assertions.assertThat(partial.readEntity(Expense[].class)).hasSize(2);
+	}
+
+	/**
+	 * test requests when the request threads are busy
+	 */
+	@Test
+	public void testBusy() throws InterruptedException
+	{
+		// hold the one request thread
+		CountDownLatch release = new CountDownLatch(1);
+		executor.execute(() ->
+		{
+			try
+			{
+				release.await();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		});
+
+		try
+		{
+			// waits in the queue, past the timeout
+			Response rv = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized").get();
+			Assertions.assertThat(rv.getStatus()).isEqualTo(503);
+			Assertions.assertThat(rv.getHeaderString(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+
+			// its work still holds the one place in the queue, so this is refused right away
+			rv = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized").get();
+			Assertions.assertThat(rv.getStatus()).isEqualTo(503);
+			Assertions.assertThat(rv.getHeaderString(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+		} finally
+		{
+			release.countDown();
+		}
+
+		// the timed out request's work is skipped
+		while (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty())
+			Thread.sleep(10);
+		Mockito.verify(expenseService, Mockito.never()).getExpensesForUser(Mockito.anyString());
+
+		// and requests are served again
+		Response rv = z_rest.target("/data/expenses").request().cookie(AuthenticationService.TOKEN, "authorized").get();
+		Assertions.assertThat(rv.getStatus()).isEqualTo(200);
+	}
 }
@@ -0,0 +1,93 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.impl.ExpenseStorageMem;
+import org.junit.Before;
+import org.mockito.Mockito;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Set up a test of a storage wrapper, around an ExpenseStorageMem watched for the calls that reach it.
+ */
+public abstract class ExpenseStorageWrapperTest<S extends ExpenseStorage>
+{
+	protected static final String USER = "user@mac.com";
+	protected static final String USER_2 = "user@gmail.com";
+	protected static final SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd");
+
+	/** 2017-01-01 (ms), UTC. */
+	protected static final long JAN_1 = 1483228800000L;
+
+	// the metrics
+	protected MetricRegistry metrics = null;
+
+	// the wrapped storage, watched for the calls that reach it
+	protected ExpenseStorage stored = null;
+
+	// the storage
+	protected S storage = null;
+
+	/**
+	 * Setup each test.
+	 */
+	@Before
+	public void setup()
+	{
+		metrics = new MetricRegistry();
+		stored = Mockito.spy(new ExpenseStorageMem());
+		storage = wrap(stored, metrics);
+	}
+
+	/** Provide the storage to test, wrapping the stored. */
+	protected abstract S wrap(ExpenseStorage stored, MetricRegistry metrics);
+
+	/**
+	 * Store a year of expenses from 2017-01-01, in no order, the same each time: every fourth for USER_2, the rest for USER, every seventh in EUR, the rest
+	 * in USD, each amount a whole number of quarters, so their sums are exact in any order.
+	 * 
+	 * @param count
+	 *            How many.
+	 * @param description
+	 *            Makes an expense's description, from its number and the random source.
+	 */
+	protected void storeYear(int count, BiFunction<Integer, Random, String> description)
+	{
+		Random random = new Random(42);
+		List<Expense> expenses = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+		{
+			long date = JAN_1 + (long) (random.nextDouble() * 365 * ExpenseBucket.DAY_MS);
+			String currency = (i % 7 == 0) ? "EUR" : "USD";
+			expenses.add(new Expense(null, random.nextInt(40000) * 25, currency, new Date(date), description.apply(i, random), (i % 4 == 0) ? USER_2 : USER));
+		}
+		stored.createExpenses(expenses);
+	}
+}
@@ -0,0 +1,94 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.ggolden.expensey.auth.AuthenticationService;
+import org.ggolden.expensey.auth.AuthenticationStorage;
+import org.ggolden.expensey.auth.impl.AuthenticationServiceImpl;
+import org.ggolden.expensey.auth.impl.AuthenticationStorageMem;
+import org.ggolden.expensey.auth.impl.AuthenticationStorageSql;
+import org.ggolden.expensey.auth.impl.CredentialsStorageMem;
+import org.ggolden.expensey.auth.impl.SessionStore;
+import org.ggolden.expensey.auth.model.Authentication;
+import org.ggolden.expensey.dw.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * AuthenticationServiceImpl.authenticateByToken from many threads at once, over a set of live sessions, with the sessions stored in memory or in SQL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticationBenchmark
+{
+	/** How many live sessions. */
+	protected final static int SESSIONS = 1000;
+
+	@Param({ "mem", "sql" })
+	public String storage;
+
+	protected AuthenticationService service;
+
+	protected String[] tokens;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		AuthenticationStorage authentications = "mem".equals(storage) ? new AuthenticationStorageMem()
+				: new AuthenticationStorageSql(Data.transactor("bench-" + UUID.randomUUID()));
+		SessionStore sessions = new SessionStore(new Configuration(), authentications);
+		service = new AuthenticationServiceImpl(sessions, new CredentialsStorageMem());
+
+		// sessions put directly, not by authenticating - each authenticateByCredentials hashes the password, slowly by design
+		tokens = new String[SESSIONS];
+		for (int i = 0; i < SESSIONS; i++)
+		{
+			tokens[i] = UUID.randomUUID().toString();
+			sessions.put(new Authentication(tokens[i], new Date(), "user@mac.com"));
+		}
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Optional<Authentication> authenticateByToken()
+	{
+		return service.authenticateByToken(tokens[ThreadLocalRandom.current().nextInt(SESSIONS)]);
+	}
+}
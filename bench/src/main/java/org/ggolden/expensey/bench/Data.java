@@ -0,0 +1,178 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.ggolden.expensey.db.Transactor;
+import org.ggolden.expensey.expense.model.Expense;
+import org.skife.jdbi.v2.DBI;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jdbi.DBIFactory;
+import io.dropwizard.setup.Environment;
+
+/**
+ * Data and databases for the benchmarks.
+ */
+public class Data
+{
+	/** How many users the expenses are spread over. */
+	public final static int USERS = 10;
+
+	/** Expense dates fall in the year before this (ms). */
+	protected final static long NOW = 1496275200000L;
+
+	/** A year (ms). */
+	protected final static long YEAR = 365L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * Make up some expenses, spread over the users and the year.
+	 * 
+	 * @param count
+	 *            How many.
+	 * @return The expenses.
+	 */
+	public static List<Expense> expenses(int count)
+	{
+		List<Expense> rv = new ArrayList<>(count);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < count; i++)
+		{
+			rv.add(new Expense(null, random.nextInt(10000), Expense.DEFAULT_CURRENCY, new Date(NOW - random.nextLong(YEAR)), "expense " + i, user(i % USERS)));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Pick one of the users at random.
+	 * 
+	 * @return The user ID.
+	 */
+	public static String randomUser()
+	{
+		return user(ThreadLocalRandom.current().nextInt(USERS));
+	}
+
+	/**
+	 * Open a new H2 in-memory database, pooled as in the app.
+	 * 
+	 * @param name
+	 *            The database name - unique for a new, empty database.
+	 * @return The DBI for the database.
+	 */
+	public static DBI dbi(String name)
+	{
+		return dbi(name, new DataSourceFactory().getMaxSize());
+	}
+
+	/**
+	 * Open a new H2 in-memory database, pooled as in the app, but to this many connections.
+	 * 
+	 * @param name
+	 *            The database name - unique for a new, empty database.
+	 * @param connections
+	 *            The pool's maxSize.
+	 * @return The DBI for the database.
+	 */
+	public static DBI dbi(String name, int connections)
+	{
+		return open("mem:" + name + ";DB_CLOSE_DELAY=-1", connections);
+	}
+
+	/**
+	 * Open an H2 database, pooled as in the app, but to this many connections.
+	 * 
+	 * @param url
+	 *            The database part of the H2 URL (mem:name..., file:path...).
+	 * @param connections
+	 *            The pool's maxSize.
+	 * @return The DBI for the database.
+	 */
+	protected static DBI open(String url, int connections)
+	{
+		DataSourceFactory database = new DataSourceFactory();
+		database.setMaxSize(connections);
+		database.setMinSize(Math.min(database.getMinSize(), connections));
+		database.setInitialSize(Math.min(database.getInitialSize(), connections));
+		database.setDriverClass("org.h2.Driver");
+		database.setUrl("jdbc:h2:" + url + ";mode=mysql");
+		database.setUser("u");
+		database.setPassword("p");
+
+		Environment environment = new Environment("bench", Jackson.newObjectMapper(), null, new MetricRegistry(), null);
+
+		return new DBIFactory().build(environment, database, "db");
+	}
+
+	/**
+	 * Open a new H2 in-memory database, pooled as in the app.
+	 * 
+	 * @param name
+	 *            The database name - unique for a new, empty database.
+	 * @return A Transactor for the database.
+	 */
+	public static Transactor transactor(String name)
+	{
+		return new Transactor(dbi(name));
+	}
+
+	/**
+	 * Open a new H2 database, pooled as in the app, in memory or backed by a (temporary) file.
+	 * 
+	 * @param name
+	 *            The database name - unique for a new, empty database.
+	 * @param file
+	 *            true for a file backed database, so commits write, false for in memory.
+	 * @return A Transactor for the database.
+	 */
+	public static Transactor transactor(String name, boolean file)
+	{
+		if (!file)
+		{
+			return transactor(name);
+		}
+
+		String path = new File(System.getProperty("java.io.tmpdir"), name).getAbsolutePath();
+		new File(path + ".mv.db").deleteOnExit();
+		new File(path + ".trace.db").deleteOnExit();
+
+		return new Transactor(open("file:" + path, new DataSourceFactory().getMaxSize()));
+	}
+
+	/**
+	 * The user ID for a user.
+	 * 
+	 * @param n
+	 *            Which user.
+	 * @return The user ID.
+	 */
+	public static String user(int n)
+	{
+		return "user" + n + "@bench.com";
+	}
+}
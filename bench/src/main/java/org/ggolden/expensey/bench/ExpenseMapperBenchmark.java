@@ -0,0 +1,127 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.ggolden.expensey.db.Transactor;
+import org.ggolden.expensey.dw.Configuration;
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.impl.ExpenseStorageSql;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+/**
+ * Reading all of a user's expenses from SQL (readExpensesForUser): with ExpenseStorageSql's mapper (columns found once per result set, fetch size and
+ * forward fetch set, user and currency Strings shared), or with the mapper as it was (columns found by name for each row, no fetch hints). Run with -prof gc
+ * to see the allocation per read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ExpenseMapperBenchmark
+{
+	/**
+	 * ExpenseStorageSql, reading a user's expenses as it did before the mapper was made lean.
+	 */
+	protected static class ByNameStorage extends ExpenseStorageSql
+	{
+		ByNameStorage(Transactor db, Configuration config)
+		{
+			super(db, config);
+		}
+
+		@Override
+		public Optional<List<Expense>> readExpensesForUser(String user)
+		{
+			return db.query(h -> h //
+					.createQuery("select id, user, date, amount_minor, currency, description from expense where user=:user") //
+					.bind("user", user) //
+					.map(new ByNameMapper()) //
+					.list());
+		}
+	}
+
+	/**
+	 * The mapper as it was: each column found by name, for each row.
+	 */
+	protected static class ByNameMapper implements ResultSetMapper<Expense>
+	{
+		@Override
+		public Expense map(int index, ResultSet r, StatementContext ctx) throws SQLException
+		{
+			Expense rv = new Expense(Long.toString(r.getLong("id")), r.getLong("amount_minor"), r.getString("currency"), Transactor.toDate(r.getLong("date")),
+					r.getString("description"), r.getString("user"));
+			return rv;
+		}
+	}
+
+	/** The one user, holding all the rows. */
+	protected final static String USER = Data.user(0);
+
+	@Param({ "100000" })
+	public int rows;
+
+	@Param({ "byName", "lean" })
+	public String mapper;
+
+	protected ExpenseStorage expenses;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Transactor db = Data.transactor("bench-" + UUID.randomUUID());
+		expenses = "byName".equals(mapper) ? new ByNameStorage(db, new Configuration()) : new ExpenseStorageSql(db, new Configuration());
+
+		// preload, all for the one user, in one insert - only reads are measured, so no versions or rollup are kept
+		db.transact(h -> h.createStatement("insert into expense (user, date, amount_minor, currency, description)"
+				+ " select :user, :start + x * 300000, mod(x * 7919, 10000), 'USD', concat('expense ', x) from system_range(1, :rows)") //
+				.bind("user", USER) //
+				.bind("start", Data.NOW - Data.YEAR) //
+				.bind("rows", rows) //
+				.execute());
+	}
+
+	@Benchmark
+	public Optional<List<Expense>> read()
+	{
+		return expenses.readExpensesForUser(USER);
+	}
+}
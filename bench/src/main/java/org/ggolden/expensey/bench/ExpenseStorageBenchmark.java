@@ -0,0 +1,106 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.ggolden.expensey.dw.Configuration;
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.impl.ExpenseStorageMem;
+import org.ggolden.expensey.impl.ExpenseStorageSql;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ExpenseStorage create and read-by-user throughput, in memory and in SQL (H2 in-memory), with the store preloaded to different sizes. The rows are spread
+ * over Data.USERS users, so a full read-by-user returns rows / USERS expenses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ExpenseStorageBenchmark
+{
+	/** Page size for the paged read. */
+	protected final static int PAGE = 50;
+
+	@Param({ "1000", "100000", "1000000" })
+	public int rows;
+
+	@Param({ "mem", "sql" })
+	public String storage;
+
+	protected ExpenseStorage expenses;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		if ("mem".equals(storage))
+		{
+			expenses = new ExpenseStorageMem();
+		} else
+		{
+			expenses = new ExpenseStorageSql(Data.transactor("bench-" + UUID.randomUUID()), new Configuration());
+		}
+
+		// preload, in batches so the SQL store commits as it goes
+		final int batch = 10000;
+		for (int loaded = 0; loaded < rows; loaded += batch)
+		{
+			expenses.createExpenses(Data.expenses(Math.min(batch, rows - loaded)));
+		}
+	}
+
+	@Benchmark
+	public Optional<Expense> create()
+	{
+		return expenses.createExpense(1234, Expense.DEFAULT_CURRENCY, new Date(), "bench", Data.randomUser());
+	}
+
+	@Benchmark
+	@Measurement(iterations = 5, time = 5)
+	public Optional<List<Expense>> readAll()
+	{
+		return expenses.readExpensesForUser(Data.randomUser());
+	}
+
+	@Benchmark
+	public List<Expense> readPage()
+	{
+		return expenses.readExpensesForUser(Data.randomUser(), null, null, Optional.empty(), ThreadLocalRandom.current().nextInt(1, PAGE + 1));
+	}
+}
@@ -0,0 +1,97 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.ggolden.expensey.dw.Configuration;
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.impl.ExpenseGroupCommitPolicy;
+import org.ggolden.expensey.impl.ExpenseStorageGrouped;
+import org.ggolden.expensey.impl.ExpenseStorageSql;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * SQL (H2, file backed, so each commit writes) createExpense throughput with many callers at once, each committing on its own, or in groups. Run with -t to
+ * see how each scales with the callers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(64)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupCommitBenchmark
+{
+	@Param({ "false", "true" })
+	public boolean grouped;
+
+	protected ExpenseStorage expenses;
+
+	protected ExpenseStorageGrouped groups;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		Configuration config = new Configuration();
+		expenses = new ExpenseStorageSql(Data.transactor("bench-" + UUID.randomUUID(), true), config);
+
+		if (grouped)
+		{
+			groups = new ExpenseStorageGrouped(expenses, new ExpenseGroupCommitPolicy(), new MetricRegistry());
+			groups.start();
+			expenses = groups;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws InterruptedException
+	{
+		if (groups != null)
+		{
+			groups.stop();
+		}
+	}
+
+	@Benchmark
+	public Optional<Expense> create()
+	{
+		return expenses.createExpense(1234, Expense.DEFAULT_CURRENCY, new Date(), "bench", Data.randomUser());
+	}
+}
@@ -0,0 +1,82 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ggolden.expensey.expense.model.Expense;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+
+import io.dropwizard.jackson.Jackson;
+
+/**
+ * Jackson serialization of a List&lt;Expense&gt;, with the ObjectMapper set up as the app's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark
+{
+	@Param({ "10", "1000", "100000" })
+	public int size;
+
+	protected List<Expense> expenses;
+
+	protected ObjectWriter writer;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		writer = Jackson.newObjectMapper().registerModule(new Jdk8Module()).writerFor(new TypeReference<List<Expense>>()
+		{
+		});
+
+		expenses = Data.expenses(size);
+		for (int i = 0; i < size; i++)
+		{
+			expenses.get(i).set_id(Integer.toString(i + 1));
+		}
+	}
+
+	@Benchmark
+	public byte[] serialize() throws JsonProcessingException
+	{
+		return writer.writeValueAsBytes(expenses);
+	}
+}
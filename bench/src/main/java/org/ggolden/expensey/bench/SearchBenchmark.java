@@ -0,0 +1,137 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.ggolden.expensey.db.Transactor;
+import org.ggolden.expensey.dw.Configuration;
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.Expense;
+import org.ggolden.expensey.impl.ExpenseSearchPolicy;
+import org.ggolden.expensey.impl.ExpenseStorageIndexed;
+import org.ggolden.expensey.impl.ExpenseStorageMem;
+import org.ggolden.expensey.impl.ExpenseStorageSql;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.PreparedBatch;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Searching one user's expenses for the newest 50 matches: by checking each of the user's expenses in memory, by streaming them all from SQL, and from
+ * ExpenseStorageIndexed's index (over the SQL storage, built in setup). The queries are a common word, two words (one a prefix) that few descriptions have
+ * together, and a word only one has.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SearchBenchmark
+{
+	/** The descriptions are a category, a vendor, a city and a reference number. */
+	protected final static String[] CATEGORIES = { "Taxi", "Hotel", "Airfare", "Lunch", "Dinner", "Coffee", "Parking", "Train", "Supplies", "Fuel",
+			"Conference", "Phone" };
+
+	protected final static String[] VENDORS = { "Acme", "Globex", "Initech", "Umbrella", "Hooli", "Vandelay", "Stark", "Wayne", "Wonka", "Tyrell",
+			"Cyberdyne", "Soylent", "Oscorp", "Aperture", "Massive", "Dynamic", "Sterling", "Pied", "Gringotts", "Monarch" };
+
+	protected final static String[] CITIES = { "Boston", "Chicago", "Denver", "Zurich", "London", "Paris", "Tokyo", "Austin", "Seattle", "Berlin", "Madrid",
+			"Oslo", "Dublin", "Toronto", "Sydney" };
+
+	/** The one user, holding all the rows. */
+	protected final static String USER = Data.user(0);
+
+	@Param({ "100000" })
+	public int rows;
+
+	@Param({ "mem", "sql", "indexed" })
+	public String storage;
+
+	@Param({ "taxi", "taxi zur", "ref 77777" })
+	public String query;
+
+	protected ExpenseStorage expenses;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		// the same expenses each trial, all for the one user
+		Random random = new Random(42);
+		List<Expense> all = new ArrayList<>(rows);
+		for (int i = 0; i < rows; i++)
+		{
+			String description = CATEGORIES[random.nextInt(CATEGORIES.length)] + " " + VENDORS[random.nextInt(VENDORS.length)] + " "
+					+ CITIES[random.nextInt(CITIES.length)] + " ref " + i;
+			all.add(new Expense(null, random.nextInt(10000), Expense.DEFAULT_CURRENCY, new Date(Data.NOW - (long) (random.nextDouble() * Data.YEAR)),
+					description, USER));
+		}
+
+		if ("mem".equals(storage))
+		{
+			expenses = new ExpenseStorageMem();
+			expenses.createExpenses(all);
+			return;
+		}
+
+		// preload, in one batch - only reads are measured, so no versions or rollup are kept
+		Transactor db = Data.transactor("bench-" + UUID.randomUUID());
+		expenses = new ExpenseStorageSql(db, new Configuration());
+		db.transact(h ->
+		{
+			PreparedBatch batch = h.prepareBatch("insert into expense (user, date, amount_minor, currency, description)"
+					+ " values (:user, :date, :amount, :currency, :description)");
+			for (Expense e : all)
+			{
+				batch.add().bind("user", e.getUserId()).bind("date", Transactor.fromDate(e.getDate())).bind("amount", e.getAmount())
+						.bind("currency", e.getCurrency()).bind("description", e.getDescription());
+			}
+			batch.execute();
+		});
+
+		if ("indexed".equals(storage))
+		{
+			expenses = new ExpenseStorageIndexed(expenses, new ExpenseSearchPolicy(), new MetricRegistry());
+			expenses.searchExpensesForUser(USER, "build", 1);
+		}
+	}
+
+	@Benchmark
+	public List<Expense> search()
+	{
+		return expenses.searchExpensesForUser(USER, query, 50);
+	}
+}
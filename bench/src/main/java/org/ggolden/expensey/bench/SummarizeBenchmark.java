@@ -0,0 +1,101 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.ggolden.expensey.dw.Configuration;
+import org.ggolden.expensey.expense.ExpenseStorage;
+import org.ggolden.expensey.expense.model.ExpenseBucket;
+import org.ggolden.expensey.expense.model.ExpenseSummary;
+import org.ggolden.expensey.impl.ExpenseColumnsPolicy;
+import org.ggolden.expensey.impl.ExpenseStorageColumnar;
+import org.ggolden.expensey.impl.ExpenseStorageMem;
+import org.ggolden.expensey.impl.ExpenseStorageSql;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * A user's year of expenses summarized by week: from Expense objects in memory, from SQL (with its daily rollup), and from the columns (over the memory
+ * storage, loaded in setup). The rows are spread over Data.USERS users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class SummarizeBenchmark
+{
+	@Param({ "100000", "1000000" })
+	public int rows;
+
+	@Param({ "mem", "sql", "columnar" })
+	public String storage;
+
+	protected ExpenseStorage expenses;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		if ("sql".equals(storage))
+		{
+			expenses = new ExpenseStorageSql(Data.transactor("bench-" + UUID.randomUUID()), new Configuration());
+		} else
+		{
+			expenses = new ExpenseStorageMem();
+		}
+
+		// preload, in batches so the SQL store commits as it goes
+		final int batch = 10000;
+		for (int loaded = 0; loaded < rows; loaded += batch)
+		{
+			expenses.createExpenses(Data.expenses(Math.min(batch, rows - loaded)));
+		}
+
+		if ("columnar".equals(storage))
+		{
+			expenses = new ExpenseStorageColumnar(expenses, new ExpenseColumnsPolicy(), new MetricRegistry());
+			for (int user = 0; user < Data.USERS; user++)
+			{
+				expenses.summarizeExpensesForUser(Data.user(user), null, null, ExpenseBucket.DAY);
+			}
+		}
+	}
+
+	@Benchmark
+	public List<ExpenseSummary> summarize()
+	{
+		return expenses.summarizeExpensesForUser(Data.randomUser(), null, null, ExpenseBucket.WEEK);
+	}
+}
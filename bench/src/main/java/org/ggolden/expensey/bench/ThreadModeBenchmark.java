@@ -0,0 +1,144 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.ggolden.expensey.db.Transactor;
+import org.ggolden.expensey.db.VirtualThreads;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.DBI;
+
+/**
+ * A load test of the two thread modes: many clients at once, each request run as the app runs it - on the request pool (platform: fixed, sized to the
+ * database pool, with a queue) or a virtual thread each (virtual: bounded, the Transactor limiting the connections in use), waiting on something outside the
+ * database, then holding a connection for a query. Throughput and sampled latency (see p0.99) are reported for each. The virtual mode needs Java 21 or later -
+ * on Java 8, run with -p mode=platform.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(200)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ThreadModeBenchmark
+{
+	/** How many requests may wait, in either mode. */
+	protected final static int QUEUE = 1000;
+
+	/**
+	 * Wait, as for a remote call, or a query's round trip to a database server.
+	 * 
+	 * @param ms
+	 *            How long (ms).
+	 */
+	protected static void sleep(long ms)
+	{
+		try
+		{
+			Thread.sleep(ms);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** The database pool's maxSize - and the platform request threads. */
+	@Param({ "8" })
+	public int connections;
+
+	/** platform or virtual. */
+	@Param({ "platform", "virtual" })
+	public String mode;
+
+	/** How long (ms) each query holds its connection. */
+	@Param({ "1" })
+	public int query;
+
+	/** How long (ms) each request waits outside the database (a remote call, say). */
+	@Param({ "2" })
+	public int remote;
+
+	protected Transactor db;
+
+	protected ExecutorService pool;
+
+	protected Executor requests;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		DBI dbi = Data.dbi("bench-" + UUID.randomUUID(), connections);
+		db = new Transactor(dbi);
+
+		if ("virtual".equals(mode))
+		{
+			pool = VirtualThreads.newExecutor("bench-");
+			requests = VirtualThreads.bounded(pool, connections + QUEUE);
+			db.limit(connections, 0, 1000);
+		} else
+		{
+			pool = new ThreadPoolExecutor(connections, connections, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE));
+			requests = pool;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void teardown() throws InterruptedException
+	{
+		pool.shutdown();
+		pool.awaitTermination(5, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public Boolean request()
+	{
+		return CompletableFuture.supplyAsync(() ->
+		{
+			sleep(remote);
+
+			// the wait is outside H2, which would otherwise hold its database lock (and pin a virtual thread's carrier) throughout
+			return db.transact(h ->
+			{
+				h.execute("select 1");
+				sleep(query);
+			});
+		}, requests).join();
+	}
+}
@@ -0,0 +1,85 @@
+/**********************************************************************************
+ *
+ * Copyright 2017 Glenn R. Golden 
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at 
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0 
+ *
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.ggolden.expensey.bench;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.ggolden.expensey.db.Transactor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.skife.jdbi.v2.DBI;
+import org.skife.jdbi.v2.Handle;
+
+/**
+ * What the Transactor costs over using a pooled handle directly: the same trivial statement run raw, in transact(), and in query().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactorBenchmark
+{
+	/** The trivial statement. */
+	protected final static String SQL = "select 1";
+
+	protected Transactor db;
+
+	protected DBI dbi;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		dbi = Data.dbi("bench-" + UUID.randomUUID());
+		db = new Transactor(dbi);
+	}
+
+	@Benchmark
+	public Integer raw()
+	{
+		try (Handle h = dbi.open())
+		{
+			return h.createQuery(SQL).mapTo(Integer.class).first();
+		}
+	}
+
+	@Benchmark
+	public boolean transact()
+	{
+		return db.transact(h -> h.createQuery(SQL).mapTo(Integer.class).first());
+	}
+
+	@Benchmark
+	public Optional<Integer> query()
+	{
+		return db.query(h -> h.createQuery(SQL).mapTo(Integer.class).first());
+	}
+}